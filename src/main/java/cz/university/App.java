@@ -1,34 +1,192 @@
 package cz.university;
 
+import cz.university.codegen.AotCompiler;
+import cz.university.codegen.ClosureCompiler;
 import cz.university.codegen.CodeGeneratorVisitor;
+import cz.university.codegen.ConstantFolder;
+import cz.university.codegen.DeadCodeEliminator;
+import cz.university.codegen.InstructionPass;
+import cz.university.codegen.JavaSourceGenerator;
+import cz.university.codegen.PeepholeOptimizer;
+import cz.university.runtime.Input;
+import cz.university.runtime.Output;
+import cz.university.runtime.Program;
+import cz.university.runtime.ProgramFile;
+import cz.university.runtime.RegisterMachine;
 import cz.university.runtime.StackMachine;
 import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.tree.*;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
 
+/**
+ * Usage: {@code App [options] [file]}, where {@code file} is relative to
+ * {@code src/test/resources/} and defaults to {@code test.lang}. The program is
+ * compiled and run in memory. A {@code .bin} file produced by
+ * {@code --emit-binary} (path relative to the working directory) is loaded and
+ * run without compiling.
+ *
+ * <p>With {@code --batch}, {@code file} is a directory, glob or manifest (see
+ * {@link BatchCompiler#sources}, default {@code src/test/resources/}). Every
+ * program it names is compiled, not run, in this one JVM; {@code --optimize}
+ * applies to each, and {@code --emit-text}/{@code --emit-binary} write
+ * {@code name.out}/{@code name.bin} next to each source. Files are compiled
+ * in parallel on {@code --jobs=N} threads (default: one per core). The exit
+ * status is 1 when any file fails.</p>
+ *
+ * <ul>
+ *   <li>{@code --dump-tree} - print the parse tree</li>
+ *   <li>{@code --emit-text} - write the instruction listing to {@code output.out}</li>
+ *   <li>{@code --emit-binary} - write the binary program to {@code output.bin}</li>
+ *   <li>{@code --emit-jar} - compile the program ahead of time to a runnable {@code output.jar}</li>
+ *   <li>{@code --optimize} - run the optimization passes and report to stderr what they removed</li>
+ *   <li>{@code --jit} - compile hot loops to JVM bytecode while running</li>
+ *   <li>{@code --closures} - run the program as a tree of compiled closures instead of on the stack VM</li>
+ *   <li>{@code --registers} - translate the stack code to register code and run it on the register VM</li>
+ *   <li>{@code --stream} - read, parse, check and compile one top-level statement at a time without keeping the
+ *   source, its tokens or the parse tree</li>
+ *   <li>{@code --parse-stats} - report to stderr whether the SLL stage parsed the program or full LL had to</li>
+ *   <li>{@code --cache=DIR} - look the program up in the compile cache in {@code DIR} (see {@link CompileCache})
+ *   and run a hit without lexing, parsing, checking or generating code; a miss is compiled and stored. Not used
+ *   with {@code --dump-tree}, {@code --emit-text}, {@code --emit-jar} or {@code --closures}, which need the tree
+ *   or the instruction list</li>
+ *   <li>{@code --cache-size=MB} - how large the cache directory may grow before the least recently used
+ *   programs are evicted (default 64)</li>
+ * </ul>
+ */
 public class App {
     private static final String EXT = "lang";
     private static final String DIR = "src/test/resources/";
+    private static final int JIT_THRESHOLD = 1000;
+    private static final int CACHE_SIZE_MB = 64;
+
     public static void main(String[] args) throws IOException {
-        String file = args.length == 0 ? "test." + EXT : args[0];
+        String file = "test." + EXT;
+        boolean dumpTree = false;
+        boolean emitText = false;
+        boolean emitBinary = false;
+        boolean emitJar = false;
+        boolean optimize = false;
+        boolean jit = false;
+        boolean closures = false;
+        boolean registers = false;
+        boolean batch = false;
+        boolean parseStats = false;
+        boolean stream = false;
+        String spec = DIR;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        String cacheDir = null;
+        long cacheSizeMb = CACHE_SIZE_MB;
+        for (String arg : args) {
+            switch (arg) {
+                case "--dump-tree" -> dumpTree = true;
+                case "--emit-text" -> emitText = true;
+                case "--emit-binary" -> emitBinary = true;
+                case "--emit-jar" -> emitJar = true;
+                case "--optimize" -> optimize = true;
+                case "--jit" -> jit = true;
+                case "--closures" -> closures = true;
+                case "--registers" -> registers = true;
+                case "--batch" -> batch = true;
+                case "--parse-stats" -> parseStats = true;
+                case "--stream" -> stream = true;
+                default -> {
+                    if (arg.startsWith("--jobs=")) {
+                        jobs = Integer.parseInt(arg.substring("--jobs=".length()));
+                    } else if (arg.startsWith("--cache=")) {
+                        cacheDir = arg.substring("--cache=".length());
+                    } else if (arg.startsWith("--cache-size=")) {
+                        cacheSizeMb = Long.parseLong(arg.substring("--cache-size=".length()));
+                    } else if (arg.startsWith("--")) {
+                        System.err.println("Unknown option: " + arg);
+                        System.exit(1);
+                    } else {
+                        file = arg;
+                        spec = arg;
+                    }
+                }
+            }
+        }
+        if (stream && (dumpTree || emitJar || closures)) {
+            System.err.println("--stream cannot be combined with --dump-tree, --emit-jar or --closures");
+            System.exit(1);
+        }
+        if (batch) {
+            System.exit(compileBatch(spec, jobs, optimize, emitText, emitBinary) == 0 ? 0 : 1);
+        }
         System.out.println("START: " + file);
 
-        CharStream input = CharStreams.fromFileName(DIR + file);
-        cz.university.LanguageLexer lexer = new cz.university.LanguageLexer(input);
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
-        cz.university.LanguageParser parser = new cz.university.LanguageParser(tokens);
+        Output output = Output.stdout();
+        Input stdin = Input.stdin();
+        StackMachine machine = new StackMachine();
+        machine.setOutput(output);
+        machine.setInput(stdin);
+        if (jit) {
+            machine.setJitThreshold(JIT_THRESHOLD);
+        }
+        RegisterMachine registerMachine = new RegisterMachine();
+        registerMachine.setOutput(output);
+        registerMachine.setInput(stdin);
 
-        parser.removeErrorListeners();
-        parser.addErrorListener(new VerboseListener());
+        if (file.endsWith(".bin")) {
+            if (registers) {
+                registerMachine.execute(ProgramFile.load(Paths.get(file)));
+            } else {
+                machine.execute(ProgramFile.load(Paths.get(file)));
+            }
+            System.out.println("FINISH: " + file);
+            return;
+        }
 
-        ParseTree tree = parser.program(); // start rule
+        CompileCache cache = null;
+        String cacheKey = null;
+        if (cacheDir != null && !(dumpTree || emitText || emitJar || closures)) {
+            cache = new CompileCache(Paths.get(cacheDir), cacheSizeMb * 1024 * 1024);
+            cacheKey = CompileCache.key(Paths.get(DIR + file), optimize ? "optimize" : "");
+            Program cached = cache.load(cacheKey);
+            System.err.println(cache.report());
+            if (cached != null) {
+                if (emitBinary) {
+                    ProgramFile.write(cached, Paths.get("output.bin"));
+                    System.out.println("Code successfully generated to output.bin");
+                }
+                if (registers) {
+                    registerMachine.execute(cached);
+                } else {
+                    machine.execute(cached);
+                }
+                System.out.println("FINISH: " + file);
+                return;
+            }
+        }
 
+        TwoStageParser parser = new TwoStageParser(new VerboseListener());
         TypeCheckerVisitor checker = new TypeCheckerVisitor();
-        checker.visit(tree);
+        CodeGeneratorVisitor generator = new CodeGeneratorVisitor(checker.getSymbolTable(), checker.getTypes());
+        ParseTree tree = null;
+        if (stream) {
+            // each statement is checked and compiled, then its tree and tokens are dropped
+            try (InputStream source = Files.newInputStream(Paths.get(DIR + file))) {
+                parser.openUnbuffered(source);
+                for (ParseTree statement; (statement = parser.nextStatement()) != null; ) {
+                    checker.visit(statement);
+                    if (checker.getErrors().isEmpty()) {
+                        generator.visit(statement);
+                    }
+                    checker.getTypes().clear();
+                }
+            }
+        } else {
+            tree = parser.parse(CharStreams.fromFileName(DIR + file));
+            checker.visit(tree);
+        }
+        if (parseStats) {
+            System.err.println(parser.report());
+        }
 
         //System.out.println(checker.getSymbolTableDebug());
 
@@ -38,19 +196,68 @@ public class App {
             return;
         }
 
-        System.out.println(tree.toStringTree(parser));
+        if (dumpTree) {
+            System.out.println(tree.toStringTree(parser.getParser()));
+        }
+
+        if (!stream) {
+            generator.visit(tree);
+        }
 
-        CodeGeneratorVisitor generator = new CodeGeneratorVisitor(checker.getSymbolTable());
-        generator.visit(tree);
+        if (optimize) {
+            for (InstructionPass pass : List.of(new ConstantFolder(), new DeadCodeEliminator(),
+                    new PeepholeOptimizer())) {
+                generator.optimize(pass);
+                System.err.println(pass.report());
+            }
+        }
 
         // === Save to file ===
-        generator.saveToFile("output.out");
-        System.out.println("Code successfully generated to output.out");
+        if (emitText) {
+            generator.saveToFile("output.out");
+            System.out.println("Code successfully generated to output.out");
+        }
+        if (emitBinary) {
+            generator.saveToBinary("output.bin");
+            System.out.println("Code successfully generated to output.bin");
+        }
+        if (emitJar) {
+            JavaSourceGenerator java = new JavaSourceGenerator(checker.getSymbolTable());
+            java.visit(tree);
+            AotCompiler.writeJar(java.getSource(), Paths.get("output.jar"));
+            System.out.println("Code successfully generated to output.jar");
+        }
 
-        List<String> instructions = Files.readAllLines(Paths.get("output.out"));
-        StackMachine machine = new StackMachine();
-        machine.execute(instructions);
+        if (closures) {
+            ClosureCompiler compiler = new ClosureCompiler(checker.getSymbolTable());
+            compiler.setOutput(output);
+            compiler.setInput(stdin);
+            compiler.compile(tree).run();
+        } else {
+            Program program = Program.assemble(generator.getInstructions());
+            if (cache != null) {
+                try {
+                    cache.store(cacheKey, program);
+                } catch (IOException e) {
+                    System.err.println("Failed to store compiled program in cache: " + e.getMessage());
+                }
+            }
+            if (registers) {
+                registerMachine.execute(program);
+            } else {
+                machine.execute(program);
+            }
+        }
 
         System.out.println("FINISH: " + file);
     }
+
+    /** Compiles every program named by {@code spec}; returns the number of files that failed. */
+    private static int compileBatch(String spec, int jobs, boolean optimize, boolean emitText, boolean emitBinary)
+            throws IOException {
+        long start = System.nanoTime();
+        List<BatchCompiler.Result> results = BatchCompiler.compileAll(BatchCompiler.sources(spec), jobs,
+                () -> new BatchCompiler(optimize, emitText, emitBinary));
+        return BatchCompiler.report(results, System.nanoTime() - start, System.out);
+    }
 }
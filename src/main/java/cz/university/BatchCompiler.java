@@ -0,0 +1,255 @@
+package cz.university;
+
+import cz.university.codegen.CodeGeneratorVisitor;
+import cz.university.codegen.ConstantFolder;
+import cz.university.codegen.DeadCodeEliminator;
+import cz.university.codegen.Instruction;
+import cz.university.codegen.PeepholeOptimizer;
+import cz.university.runtime.Program;
+import cz.university.runtime.ProgramFile;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Compiles many programs in one JVM. One lexer and one parser are reused for
+ * every file; the ATN and the DFA cache that ANTLR builds while parsing are
+ * static per grammar, so every file after the first parses with a warmed-up
+ * prediction cache instead of paying for deserialization and warm-up again.
+ *
+ * <p>A syntax or type error fails only its own file: errors are collected
+ * into the {@link Result} instead of ending the process.</p>
+ *
+ * <p>An instance compiles one file at a time. {@link #compileAll} spreads the
+ * files over a fork-join pool with one instance per worker thread; every
+ * compilation phase keeps its state in per-file objects, and ANTLR guards its
+ * shared DFA cache itself, so workers share nothing else.</p>
+ */
+public class BatchCompiler {
+
+    /**
+     * The outcome of one file; {@code instructions} is empty when there are
+     * errors, {@code stage} is the parsing stage that finished (null if the file
+     * could not be read).
+     */
+    public record Result(Path file, List<Instruction> instructions, List<String> errors,
+                         TwoStageParser.Stage stage, long nanos) {
+        public boolean ok() {
+            return errors.isEmpty();
+        }
+    }
+
+    private static final String EXT = ".lang";
+
+    private final List<String> syntaxErrors = new ArrayList<>();
+    private final TwoStageParser parser;
+    private final boolean optimize;
+    private final boolean emitText;
+    private final boolean emitBinary;
+
+    /** With {@code emitText}/{@code emitBinary}, writes {@code name.out}/{@code name.bin} next to each compiled source. */
+    public BatchCompiler(boolean optimize, boolean emitText, boolean emitBinary) {
+        this.optimize = optimize;
+        this.emitText = emitText;
+        this.emitBinary = emitBinary;
+        BaseErrorListener collector = new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol,
+                                    int line, int charPositionInLine, String msg, RecognitionException e) {
+                syntaxErrors.add("line " + line + ":" + charPositionInLine + " " + msg);
+            }
+        };
+        parser = new TwoStageParser(collector);
+        parser.getLexer().removeErrorListeners();
+        parser.getLexer().addErrorListener(collector);
+    }
+
+    public Result compile(Path file) {
+        long start = System.nanoTime();
+        List<String> errors = new ArrayList<>();
+        List<Instruction> instructions = List.of();
+        TwoStageParser.Stage stage = null;
+        try {
+            instructions = compile(CharStreams.fromPath(file), errors);
+            stage = parser.getLastStage();
+            if (errors.isEmpty()) {
+                emit(file, instructions);
+            }
+        } catch (IOException e) {
+            errors.add("I/O error: " + e.getMessage());
+        } catch (RuntimeException e) {
+            errors.add("compilation failed: " + e);
+        }
+        return new Result(file, instructions, errors, stage, System.nanoTime() - start);
+    }
+
+    private List<Instruction> compile(CharStream source, List<String> errors) {
+        syntaxErrors.clear();
+        ParseTree tree = parser.parse(source);
+        if (!syntaxErrors.isEmpty()) {
+            errors.addAll(syntaxErrors);
+            return List.of();
+        }
+
+        TypeCheckerVisitor checker = new TypeCheckerVisitor();
+        checker.visit(tree);
+        if (!checker.getErrors().isEmpty()) {
+            errors.addAll(checker.getErrors());
+            return List.of();
+        }
+
+        CodeGeneratorVisitor generator = new CodeGeneratorVisitor(checker.getSymbolTable(), checker.getTypes());
+        generator.visit(tree);
+        if (optimize) {
+            generator.optimize(new ConstantFolder());
+            generator.optimize(new DeadCodeEliminator());
+            generator.optimize(new PeepholeOptimizer());
+        }
+        return generator.getInstructions();
+    }
+
+    private void emit(Path file, List<Instruction> instructions) throws IOException {
+        String name = file.toString();
+        String base = name.endsWith(EXT) ? name.substring(0, name.length() - EXT.length()) : name;
+        if (emitText) {
+            Files.write(Paths.get(base + ".out"), instructions.stream().map(Object::toString).toList());
+        }
+        if (emitBinary) {
+            ProgramFile.write(Program.assemble(instructions), Paths.get(base + ".bin"));
+        }
+    }
+
+    /**
+     * Compiles {@code files} on a fork-join pool of {@code parallelism} threads,
+     * each with its own compiler built by {@code compilers}. The results are in
+     * the order of {@code files}.
+     */
+    public static List<Result> compileAll(List<Path> files, int parallelism, Supplier<BatchCompiler> compilers) {
+        Result[] results = new Result[files.size()];
+        ThreadLocal<BatchCompiler> compiler = ThreadLocal.withInitial(compilers);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new CompileRange(files, results, compiler, 0, files.size()));
+        } finally {
+            pool.shutdown();
+        }
+        return Arrays.asList(results);
+    }
+
+    /** Splits its range in halves until one file is left; idle workers steal the other halves. */
+    private static final class CompileRange extends RecursiveAction {
+        private final List<Path> files;
+        private final Result[] results;
+        private final ThreadLocal<BatchCompiler> compiler;
+        private final int from;
+        private final int to;
+
+        CompileRange(List<Path> files, Result[] results, ThreadLocal<BatchCompiler> compiler, int from, int to) {
+            this.files = files;
+            this.results = results;
+            this.compiler = compiler;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (from < to) {
+                    results[from] = compiler.get().compile(files.get(from));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new CompileRange(files, results, compiler, from, middle),
+                    new CompileRange(files, results, compiler, middle, to));
+        }
+    }
+
+    /**
+     * The programs named by {@code spec}: every {@code .lang} file below a
+     * directory, the files matching a glob such as {@code scripts/**.lang}, a
+     * single {@code .lang} file, or a manifest listing one path per line
+     * (relative to the manifest; blank lines and {@code #} comments are skipped).
+     */
+    public static List<Path> sources(String spec) throws IOException {
+        int glob = firstGlobCharacter(spec);
+        if (glob >= 0) {
+            int separator = Math.max(spec.lastIndexOf('/', glob), spec.lastIndexOf('\\', glob));
+            Path root = Paths.get(separator < 0 ? "." : spec.substring(0, separator + 1));
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + spec);
+            try (Stream<Path> files = Files.walk(root)) {
+                return files.map(path -> separator < 0 ? root.relativize(path) : path)
+                        .filter(path -> matcher.matches(path) && Files.isRegularFile(path))
+                        .sorted()
+                        .toList();
+            }
+        }
+        Path path = Paths.get(spec);
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.walk(path)) {
+                return files.filter(file -> file.toString().endsWith(EXT) && Files.isRegularFile(file))
+                        .sorted()
+                        .toList();
+            }
+        }
+        if (spec.endsWith(EXT)) {
+            return List.of(path);
+        }
+        Path directory = path.toAbsolutePath().getParent();
+        List<Path> listed = new ArrayList<>();
+        for (String line : Files.readAllLines(path)) {
+            String entry = line.strip();
+            if (!entry.isEmpty() && !entry.startsWith("#")) {
+                listed.add(directory.resolve(entry).normalize());
+            }
+        }
+        return listed;
+    }
+
+    private static int firstGlobCharacter(String spec) {
+        for (int i = 0; i < spec.length(); i++) {
+            if ("*?[{".indexOf(spec.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Prints one line per file (and its errors) and a summary; returns the number of files that failed. */
+    public static int report(List<Result> results, long wallNanos, PrintStream out) {
+        int failed = 0;
+        for (Result result : results) {
+            if (result.ok()) {
+                out.printf("OK     %s (%d instructions, %s, %.1f ms)%n",
+                        result.file(), result.instructions().size(), result.stage(), result.nanos() / 1e6);
+            } else {
+                failed++;
+                out.printf("FAILED %s (%.1f ms)%n", result.file(), result.nanos() / 1e6);
+                result.errors().forEach(error -> out.println("       " + error));
+            }
+        }
+        long compileNanos = results.stream().mapToLong(Result::nanos).sum();
+        long sll = results.stream().filter(result -> result.stage() == TwoStageParser.Stage.SLL).count();
+        long ll = results.stream().filter(result -> result.stage() == TwoStageParser.Stage.LL).count();
+        out.printf("Compiled %d files, %d failed, in %.1f ms (%.1f ms compile time over all files, %.2f ms per file)%n",
+                results.size(), failed, wallNanos / 1e6, compileNanos / 1e6,
+                results.isEmpty() ? 0.0 : compileNanos / 1e6 / results.size());
+        out.printf("Parsed %d files with SLL, %d re-parsed with full LL%n", sll, ll);
+        return failed;
+    }
+}
@@ -0,0 +1,216 @@
+package cz.university;
+
+import cz.university.runtime.Linker;
+import cz.university.runtime.Program;
+import cz.university.runtime.ProgramFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Compiled programs on disk, keyed by content: the SHA-256 of the compiler
+ * version, the options that change the generated code and the source bytes.
+ * The compiler version is itself a digest of the compiler's class files (see
+ * {@link #compilerVersion}). An unchanged source therefore maps to the same
+ * entry on every run, and any change to it - or to any compiler class - to a
+ * new one; entries never have to be invalidated. Each entry is the
+ * {@link ProgramFile} form of the program, {@code <key>.bin} in the cache
+ * directory.
+ *
+ * <p>Several processes may share a directory. An entry is written to a
+ * temporary file and renamed into place, so readers see either no entry or a
+ * complete one, and two writers of the same key write the same bytes. An entry
+ * that cannot be loaded, or whose program the {@link Linker} rejects, is
+ * deleted and counts as a miss.</p>
+ *
+ * <p>A hit sets the entry's modification time to now. After each store the
+ * least recently used entries are deleted until the directory holds at most
+ * {@code maxBytes}.</p>
+ */
+public class CompileCache {
+
+    private static final String ENTRY = ".bin";
+    private static final String TEMPORARY = ".tmp";
+    /** Temporary files this old were left by a process that died while writing. */
+    private static final long ABANDONED_MILLIS = 60 * 60 * 1000;
+    private static final int CHUNK = 64 * 1024;
+
+    private final Path directory;
+    private final long maxBytes;
+    private int hits;
+    private int misses;
+
+    public CompileCache(Path directory, long maxBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+    }
+
+    /** The key of {@code source} compiled with {@code options} by this compiler. */
+    public static String key(Path source, String options) throws IOException {
+        return key(source, options, compilerVersion());
+    }
+
+    /**
+     * The key of {@code source} compiled with {@code options} by compiler
+     * {@code version}; the source is read in chunks, so large sources are not held.
+     */
+    public static String key(Path source, String options, String version) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update((version + '\0' + options + '\0').getBytes(StandardCharsets.UTF_8));
+        try (InputStream in = Files.newInputStream(source)) {
+            byte[] chunk = new byte[CHUNK];
+            for (int read; (read = in.read(chunk)) >= 0; ) {
+                digest.update(chunk, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * A digest of the classes this compiler was loaded from - the JAR, or every
+     * {@code .class} file below the classes directory - computed once per
+     * process. Rebuilding the compiler with any change therefore changes every
+     * key. If the classes cannot be read, the version is unique to this process
+     * and nothing is shared with other runs.
+     */
+    public static String compilerVersion() {
+        return Version.VALUE;
+    }
+
+    private static final class Version {
+        static final String VALUE = compute();
+
+        private static String compute() {
+            try {
+                Path location = Path.of(CompileCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+                MessageDigest digest = sha256();
+                if (Files.isDirectory(location)) {
+                    List<Path> classes;
+                    try (Stream<Path> files = Files.walk(location)) {
+                        classes = files.filter(file -> file.toString().endsWith(".class")).sorted().toList();
+                    }
+                    for (Path file : classes) {
+                        digest.update(location.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                        digest.update(Files.readAllBytes(file));
+                    }
+                } else {
+                    digest.update(Files.readAllBytes(location));
+                }
+                return HexFormat.of().formatHex(digest.digest());
+            } catch (IOException | URISyntaxException | RuntimeException e) {
+                return "unversioned-" + UUID.randomUUID();
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required on every Java platform", e);
+        }
+    }
+
+    /** The program stored under {@code key}, still unlinked but already verified, or null. */
+    public Program load(String key) {
+        Path entry = directory.resolve(key + ENTRY);
+        if (!Files.isRegularFile(entry)) {
+            misses++;
+            return null;
+        }
+        try {
+            Program program = ProgramFile.load(entry);
+            Linker.link(program);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            hits++;
+            return program;
+        } catch (NoSuchFileException e) {
+            misses++; // evicted by another process in the meantime
+            return null;
+        } catch (IOException | RuntimeException e) {
+            misses++;
+            delete(entry);
+            return null;
+        }
+    }
+
+    /** Stores {@code program}, which must not be linked yet, under {@code key} and then evicts down to the size limit. */
+    public void store(String key, Program program) throws IOException {
+        Path temporary = Files.createTempFile(directory, key, TEMPORARY);
+        try {
+            ProgramFile.write(program, temporary);
+            Path entry = directory.resolve(key + ENTRY);
+            try {
+                Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        evict();
+    }
+
+    /** Deletes the least recently used entries until the rest fit in {@code maxBytes}. */
+    private void evict() throws IOException {
+        record Entry(Path path, long size, long used) {
+        }
+        List<Entry> entries = new ArrayList<>();
+        long total = 0;
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                String name = file.getFileName().toString();
+                long used = attributes.lastModifiedTime().toMillis();
+                if (name.endsWith(ENTRY)) {
+                    entries.add(new Entry(file, attributes.size(), used));
+                    total += attributes.size();
+                } else if (name.endsWith(TEMPORARY) && now - used > ABANDONED_MILLIS) {
+                    delete(file);
+                }
+            }
+        }
+        entries.sort(Comparator.comparingLong(Entry::used));
+        for (int i = 0; i < entries.size() && total > maxBytes; i++) {
+            delete(entries.get(i).path());
+            total -= entries.get(i).size();
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // another process may hold or remove it; the next eviction tries again
+        }
+    }
+
+    /** One-line summary of this run's lookups. */
+    public String report() {
+        return String.format("Compile cache: %d hits, %d misses in %s", hits, misses, directory);
+    }
+}
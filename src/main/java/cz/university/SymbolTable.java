@@ -2,6 +2,8 @@ package cz.university;
 
 import org.antlr.v4.runtime.ParserRuleContext;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -10,10 +12,16 @@ public class SymbolTable {
 
     public static class VariableInfo {
         public final Type type;
+        public final int slot;
         public Object value;
 
         public VariableInfo(Type type) {
+            this(type, -1);
+        }
+
+        public VariableInfo(Type type, int slot) {
             this.type = type;
+            this.slot = slot;
             this.value = defaultValue(type);
         }
 
@@ -38,7 +46,7 @@ public class SymbolTable {
         if (table.containsKey(name)) {
             throw new TypeException(line + ": variable '" + name + "' already declared.");
         }
-        table.put(name, new VariableInfo(type));
+        table.put(name, new VariableInfo(type, table.size()));
     }
 
     public Type getType(String name, int line) throws TypeException {
@@ -49,6 +57,22 @@ public class SymbolTable {
         return info.type;
     }
 
+    /**
+     * Every declared variable owns a fixed slot in the VM's variable array,
+     * assigned in declaration order.
+     */
+    public int getSlot(String name, int line) throws TypeException {
+        VariableInfo info = table.get(name);
+        if (info == null) {
+            throw new TypeException(line + ": variable '" + name + "' not declared.");
+        }
+        return info.slot;
+    }
+
+    public int getSlotCount() {
+        return table.size();
+    }
+
     public Type getExprType(ParserRuleContext ctx, int line) {
         if (ctx instanceof cz.university.LanguageParser.IdExprContext idCtx) {
             String name = idCtx.IDENTIFIER().getText();
@@ -66,21 +90,9 @@ public class SymbolTable {
             return getExprType(parenCtx.expr(), line);
         }
 
-        if (ctx instanceof cz.university.LanguageParser.AdditiveExprContext addCtx) {
-            Type left = getExprType(addCtx.left, line);
-            Type right = getExprType(addCtx.right, line);
-            if (left == Type.FLOAT || right == Type.FLOAT) return Type.FLOAT;
-            if (left == Type.INT && right == Type.INT) return Type.INT;
-            if (left == Type.STRING && right == Type.STRING) return Type.STRING;
-            throw new RuntimeException("Cannot infer type for additive expr: " + ctx.getText());
-        }
-
-        if (ctx instanceof cz.university.LanguageParser.MultiplicativeExprContext mulCtx) {
-            Type left = getExprType(mulCtx.left, line);
-            Type right = getExprType(mulCtx.right, line);
-            if (left == Type.FLOAT || right == Type.FLOAT) return Type.FLOAT;
-            if (left == Type.INT && right == Type.INT) return Type.INT;
-            throw new RuntimeException("Cannot infer type for multiplicative expr: " + ctx.getText());
+        if (ctx instanceof cz.university.LanguageParser.AdditiveExprContext
+                || ctx instanceof cz.university.LanguageParser.MultiplicativeExprContext) {
+            return getArithmeticType(ctx, line);
         }
 
         if (ctx instanceof cz.university.LanguageParser.AssignExprContext assignCtx) {
@@ -103,7 +115,33 @@ public class SymbolTable {
         throw new RuntimeException("Cannot statically infer type of expression: " + ctx.getText());
     }
 
-
+    /** Walks a left-nested arithmetic chain with an explicit stack, so its length does not grow the Java stack. */
+    private Type getArithmeticType(ParserRuleContext ctx, int line) {
+        Deque<ParserRuleContext> spine = new ArrayDeque<>();
+        ParserRuleContext current = ctx;
+        while (current instanceof cz.university.LanguageParser.AdditiveExprContext
+                || current instanceof cz.university.LanguageParser.MultiplicativeExprContext) {
+            spine.push(current);
+            current = current.getRuleContext(cz.university.LanguageParser.ExprContext.class, 0);
+        }
+        Type left = getExprType(current, line);
+        while (!spine.isEmpty()) {
+            ParserRuleContext node = spine.pop();
+            Type right = getExprType(node.getRuleContext(cz.university.LanguageParser.ExprContext.class, 1), line);
+            boolean additive = node instanceof cz.university.LanguageParser.AdditiveExprContext;
+            if (left == Type.FLOAT || right == Type.FLOAT) {
+                left = Type.FLOAT;
+            } else if (left == Type.INT && right == Type.INT) {
+                left = Type.INT;
+            } else if (additive && left == Type.STRING && right == Type.STRING) {
+                left = Type.STRING;
+            } else {
+                throw new RuntimeException("Cannot infer type for " + (additive ? "additive" : "multiplicative")
+                        + " expr: " + node.getText());
+            }
+        }
+        return left;
+    }
 
     public Object getValue(String name, int line) throws TypeException {
         VariableInfo info = table.get(name);
@@ -122,7 +160,8 @@ public class SymbolTable {
     }
 
     public void define(String name, Type type) {
-        table.put(name, new VariableInfo(type));
+        VariableInfo existing = table.get(name);
+        table.put(name, new VariableInfo(type, existing != null ? existing.slot : table.size()));
     }
 
     public boolean contains(String name) {
@@ -0,0 +1,142 @@
+package cz.university;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * Parses programs in two stages. The first try uses SLL prediction, which
+ * needs far less lookahead than full LL, and a {@link BailErrorStrategy}
+ * that gives up at the first syntax error. Almost every valid program gets
+ * through it. Only when it fails - a real syntax error, or one of the rare
+ * inputs SLL cannot decide - are the buffered tokens parsed again with full
+ * LL, the default error strategy and {@code listener}, so errors are
+ * reported exactly as before.
+ *
+ * <p>The lexer and parser are reused for every {@link #parse} call.
+ * {@link #open} (or {@link #openUnbuffered}) and {@link #nextStatement}
+ * parse a program statement by statement instead of building one tree for
+ * all of it.</p>
+ */
+public class TwoStageParser {
+
+    public enum Stage { SLL, LL }
+
+    private static final int CHAR_BUFFER = 64 * 1024;
+    private static final int TOKEN_BUFFER = 256;
+
+    private final cz.university.LanguageLexer lexer = new cz.university.LanguageLexer(null);
+    private final cz.university.LanguageParser parser = new cz.university.LanguageParser(null);
+    private final ANTLRErrorListener listener;
+    private Stage lastStage;
+    private int sllParses;
+    private int llParses;
+    private long sllNanos;
+    private long llNanos;
+
+    /** {@code listener} hears the syntax errors of the full-LL stage; lexer errors go to the lexer's listeners. */
+    public TwoStageParser(ANTLRErrorListener listener) {
+        this.listener = listener;
+    }
+
+    public cz.university.LanguageLexer getLexer() {
+        return lexer;
+    }
+
+    public cz.university.LanguageParser getParser() {
+        return parser;
+    }
+
+    public ParseTree parse(CharStream source) {
+        open(source);
+        return twoStage(parser::program);
+    }
+
+    /**
+     * Starts parsing {@code source} one top-level statement at a time: each
+     * {@link #nextStatement} call parses (in two stages) only the next
+     * statement. Nothing links the statements, so a statement's tree can be
+     * collected as soon as the caller is done with it.
+     */
+    public void open(CharStream source) {
+        lexer.setInputStream(source);
+        lexer.setTokenFactory(CommonTokenFactory.DEFAULT);
+        parser.setTokenStream(new CommonTokenStream(lexer));
+    }
+
+    /**
+     * Like {@link #open}, but decodes {@code source} (UTF-8) through
+     * unbuffered character and token streams: only the characters of the
+     * token being lexed and the tokens of the statement being parsed are held,
+     * so the source may be larger than the heap. Tokens carry a copy of their
+     * text and their line and column, so error messages are unchanged.
+     */
+    public void openUnbuffered(InputStream source) {
+        lexer.setInputStream(new UnbufferedCharStream(source, CHAR_BUFFER, StandardCharsets.UTF_8));
+        lexer.setTokenFactory(new CommonTokenFactory(true));
+        parser.setTokenStream(new UnbufferedTokenStream<>(lexer, TOKEN_BUFFER));
+    }
+
+    /** The next top-level statement of the source passed to {@link #open}, or null at its end. */
+    public cz.university.LanguageParser.StatementContext nextStatement() {
+        TokenStream tokens = parser.getTokenStream();
+        if (tokens.LA(1) == Token.EOF) {
+            return null;
+        }
+        int index = tokens.index();
+        int marker = tokens.mark(); // keeps the statement's tokens for a re-parse with full LL
+        try {
+            cz.university.LanguageParser.StatementContext statement = twoStage(parser::statement);
+            if (tokens.index() == index) {
+                tokens.consume(); // error recovery consumed nothing; skip the offending token
+            }
+            return statement;
+        } finally {
+            tokens.release(marker);
+        }
+    }
+
+    private <T extends ParseTree> T twoStage(Supplier<T> rule) {
+        TokenStream tokens = parser.getTokenStream();
+        int index = tokens.LT(1).getTokenIndex();
+        long start = System.nanoTime();
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.setErrorHandler(new BailErrorStrategy());
+        parser.removeErrorListeners();
+        try {
+            T tree = rule.get();
+            sllParses++;
+            sllNanos += System.nanoTime() - start;
+            lastStage = Stage.SLL;
+            return tree;
+        } catch (ParseCancellationException e) {
+            // the rules have already unwound the parser's context; Parser.reset()
+            // would seek to token 0, which an unbuffered stream no longer has
+            tokens.seek(index);
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.addErrorListener(listener);
+            T tree = rule.get();
+            llParses++;
+            llNanos += System.nanoTime() - start;
+            lastStage = Stage.LL;
+            return tree;
+        }
+    }
+
+    /** The stage that produced the tree of the last {@link #parse} or {@link #nextStatement} call. */
+    public Stage getLastStage() {
+        return lastStage;
+    }
+
+    /** One-line summary of how many parses each stage finished and how long they took. */
+    public String report() {
+        return String.format("Parsing: %d with SLL (%.1f ms), %d re-parsed with full LL (%.1f ms)",
+                sllParses, sllNanos / 1e6, llParses, llNanos / 1e6);
+    }
+}
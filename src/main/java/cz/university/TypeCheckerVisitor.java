@@ -1,19 +1,46 @@
 package cz.university;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
 
 public class TypeCheckerVisitor extends cz.university.LanguageBaseVisitor<SymbolTable.Type> {
 
+    /** The type of every expression node that checked without errors. */
+    public static final class ExprTypes extends ParseTreeProperty<SymbolTable.Type> {
+        /** Forgets all annotations, e.g. once a streamed statement has been compiled. */
+        public void clear() {
+            annotations.clear();
+        }
+    }
+
     private final SymbolTable symbolTable = new SymbolTable();
     private final List<String> errors = new ArrayList<>();
+    private final ExprTypes types = new ExprTypes();
 
     public List<String> getErrors() {
         return errors;
     }
 
+    /** Expression types computed while checking, so code generation does not derive them again. */
+    public ExprTypes getTypes() {
+        return types;
+    }
+
+    @Override
+    public SymbolTable.Type visit(ParseTree tree) {
+        SymbolTable.Type type = super.visit(tree);
+        if (type != null && tree instanceof cz.university.LanguageParser.ExprContext) {
+            types.put(tree, type);
+        }
+        return type;
+    }
+
     // === Statements ===
 
     @Override
@@ -44,8 +71,10 @@ public class TypeCheckerVisitor extends cz.university.LanguageBaseVisitor<Symbol
 
     @Override
     public SymbolTable.Type visitFileAppendExpr(cz.university.LanguageParser.FileAppendExprContext ctx) {
-        SymbolTable.Type leftType = visit(ctx.expr(0));
-        SymbolTable.Type rightType = visit(ctx.expr(1));
+        return visitLeftSpine(ctx);
+    }
+
+    private SymbolTable.Type fileAppendType(cz.university.LanguageParser.FileAppendExprContext ctx, SymbolTable.Type leftType, SymbolTable.Type rightType) {
 
         if (leftType != SymbolTable.Type.FILE) {
             Token opToken = (Token) ctx.getChild(1).getPayload();
@@ -105,8 +134,10 @@ public class TypeCheckerVisitor extends cz.university.LanguageBaseVisitor<Symbol
 
     @Override
     public SymbolTable.Type visitAdditiveExpr(cz.university.LanguageParser.AdditiveExprContext ctx) {
-        SymbolTable.Type left = visit(ctx.expr(0));
-        SymbolTable.Type right = visit(ctx.expr(1));
+        return visitLeftSpine(ctx);
+    }
+
+    private SymbolTable.Type additiveType(cz.university.LanguageParser.AdditiveExprContext ctx, SymbolTable.Type left, SymbolTable.Type right) {
         String op = ctx.getChild(1).getText();
 
         if (left == null || right == null) return null;
@@ -126,9 +157,11 @@ public class TypeCheckerVisitor extends cz.university.LanguageBaseVisitor<Symbol
 
     @Override
     public SymbolTable.Type visitMultiplicativeExpr(cz.university.LanguageParser.MultiplicativeExprContext ctx) {
+        return visitLeftSpine(ctx);
+    }
+
+    private SymbolTable.Type multiplicativeType(cz.university.LanguageParser.MultiplicativeExprContext ctx, SymbolTable.Type left, SymbolTable.Type right) {
         String op = ctx.getChild(1).getText();
-        SymbolTable.Type left = visit(ctx.expr(0));
-        SymbolTable.Type right = visit(ctx.expr(1));
 
         if ("%".equals(op)) {
             if (left != SymbolTable.Type.INT || right != SymbolTable.Type.INT) {
@@ -143,8 +176,10 @@ public class TypeCheckerVisitor extends cz.university.LanguageBaseVisitor<Symbol
 
     @Override
     public SymbolTable.Type visitEqualityExpr(cz.university.LanguageParser.EqualityExprContext ctx) {
-        SymbolTable.Type left = visit(ctx.expr(0));
-        SymbolTable.Type right = visit(ctx.expr(1));
+        return visitLeftSpine(ctx);
+    }
+
+    private SymbolTable.Type equalityType(cz.university.LanguageParser.EqualityExprContext ctx, SymbolTable.Type left, SymbolTable.Type right) {
 
         if (left == null || right == null) return null;
 
@@ -168,8 +203,10 @@ public class TypeCheckerVisitor extends cz.university.LanguageBaseVisitor<Symbol
 
     @Override
     public SymbolTable.Type visitRelationalExpr(cz.university.LanguageParser.RelationalExprContext ctx) {
-        SymbolTable.Type left = visit(ctx.expr(0));
-        SymbolTable.Type right = visit(ctx.expr(1));
+        return visitLeftSpine(ctx);
+    }
+
+    private SymbolTable.Type relationalType(cz.university.LanguageParser.RelationalExprContext ctx, SymbolTable.Type left, SymbolTable.Type right) {
 
         if (left == null || right == null) return null;
 
@@ -250,17 +287,15 @@ public class TypeCheckerVisitor extends cz.university.LanguageBaseVisitor<Symbol
 
     @Override
     public SymbolTable.Type visitAndExpr(cz.university.LanguageParser.AndExprContext ctx) {
-        return visitLogicalBinary(ctx.expr(0), ctx.expr(1), ctx,"&&");
+        return visitLeftSpine(ctx);
     }
 
     @Override
     public SymbolTable.Type visitOrExpr(cz.university.LanguageParser.OrExprContext ctx) {
-        return visitLogicalBinary(ctx.expr(0), ctx.expr(1), ctx, "||");
+        return visitLeftSpine(ctx);
     }
 
-    private SymbolTable.Type visitLogicalBinary(cz.university.LanguageParser.ExprContext leftExpr, cz.university.LanguageParser.ExprContext rightExpr, ParserRuleContext ctx, String op) {
-        SymbolTable.Type left = visit(leftExpr);
-        SymbolTable.Type right = visit(rightExpr);
+    private SymbolTable.Type logicalType(ParserRuleContext ctx, String op, SymbolTable.Type left, SymbolTable.Type right) {
 
         if (left == SymbolTable.Type.BOOL && right == SymbolTable.Type.BOOL) {
             return SymbolTable.Type.BOOL;
@@ -372,6 +407,58 @@ public class TypeCheckerVisitor extends cz.university.LanguageBaseVisitor<Symbol
 
     // === Helpers ===
 
+    /**
+     * Chains such as {@code a + b - c} or {@code f << x << y} nest to the left,
+     * one level per operator, and the parser builds them without recursion
+     * however long they are. They are checked the same way: the left spine of
+     * binary operators goes on an explicit stack, its innermost operand is
+     * visited, and each operator is then checked bottom-up with the type
+     * accumulated so far, so the Java stack depth does not grow with the length
+     * of the chain.
+     */
+    private SymbolTable.Type visitLeftSpine(cz.university.LanguageParser.ExprContext ctx) {
+        Deque<cz.university.LanguageParser.ExprContext> spine = new ArrayDeque<>();
+        cz.university.LanguageParser.ExprContext current = ctx;
+        while (isBinary(current)) {
+            spine.push(current);
+            current = current.getRuleContext(cz.university.LanguageParser.ExprContext.class, 0);
+        }
+        SymbolTable.Type type = visit(current);
+        while (!spine.isEmpty()) {
+            cz.university.LanguageParser.ExprContext node = spine.pop();
+            SymbolTable.Type right = visit(node.getRuleContext(cz.university.LanguageParser.ExprContext.class, 1));
+            if (node instanceof cz.university.LanguageParser.AdditiveExprContext additive) {
+                type = additiveType(additive, type, right);
+            } else if (node instanceof cz.university.LanguageParser.MultiplicativeExprContext multiplicative) {
+                type = multiplicativeType(multiplicative, type, right);
+            } else if (node instanceof cz.university.LanguageParser.EqualityExprContext equality) {
+                type = equalityType(equality, type, right);
+            } else if (node instanceof cz.university.LanguageParser.RelationalExprContext relational) {
+                type = relationalType(relational, type, right);
+            } else if (node instanceof cz.university.LanguageParser.FileAppendExprContext append) {
+                type = fileAppendType(append, type, right);
+            } else if (node instanceof cz.university.LanguageParser.AndExprContext) {
+                type = logicalType(node, "&&", type, right);
+            } else {
+                type = logicalType(node, "||", type, right);
+            }
+            if (type != null) {
+                types.put(node, type);
+            }
+        }
+        return type;
+    }
+
+    private static boolean isBinary(cz.university.LanguageParser.ExprContext expr) {
+        return expr instanceof cz.university.LanguageParser.AdditiveExprContext
+                || expr instanceof cz.university.LanguageParser.MultiplicativeExprContext
+                || expr instanceof cz.university.LanguageParser.EqualityExprContext
+                || expr instanceof cz.university.LanguageParser.RelationalExprContext
+                || expr instanceof cz.university.LanguageParser.FileAppendExprContext
+                || expr instanceof cz.university.LanguageParser.AndExprContext
+                || expr instanceof cz.university.LanguageParser.OrExprContext;
+    }
+
     private SymbolTable.Type computeBinaryNumericType(SymbolTable.Type left, SymbolTable.Type right,  ParserRuleContext ctx) {
         if (left == null || right == null) return null;
         if (left == SymbolTable.Type.FLOAT || right == SymbolTable.Type.FLOAT) {
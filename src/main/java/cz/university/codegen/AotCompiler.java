@@ -0,0 +1,102 @@
+package cz.university.codegen;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Compiles the output of {@link JavaSourceGenerator} in memory with the
+ * platform's {@link JavaCompiler} and packages it as a runnable JAR
+ * ({@code java -jar}). The generated class only uses the JDK, so the JAR needs
+ * nothing else on the class path.
+ */
+public final class AotCompiler {
+
+    private AotCompiler() {
+    }
+
+    /** Compiles {@code source} and writes the classes to {@code jar} with a {@code Main-Class} manifest. */
+    public static void writeJar(String source, Path jar) throws IOException {
+        Map<String, byte[]> classes = compile(source);
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, JavaSourceGenerator.CLASS_NAME);
+
+        Path temp = jar.resolveSibling(jar.getFileName() + ".tmp");
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(temp), manifest)) {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                out.putNextEntry(new JarEntry(entry.getKey().replace('.', '/') + ".class"));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+        Files.move(temp, jar, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Class files by binary name. */
+    static Map<String, byte[]> compile(String source) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IOException("No Java compiler available; run on a JDK to build a JAR");
+        }
+
+        Map<String, byte[]> classes = new TreeMap<>();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        JavaFileObject unit = new SimpleJavaFileObject(
+                URI.create("string:///" + JavaSourceGenerator.CLASS_NAME + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+
+        try (JavaFileManager files = new ForwardingJavaFileManager<>(compiler.getStandardFileManager(diagnostics, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                       JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("class:///" + className + ".class"), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return new ByteArrayOutputStream() {
+                            @Override
+                            public void close() {
+                                classes.put(className, toByteArray());
+                            }
+                        };
+                    }
+                };
+            }
+        }) {
+            boolean ok = compiler.getTask(null, files, diagnostics, List.of("-g:source,lines", "-nowarn"), null, List.of(unit)).call();
+            if (!ok) {
+                StringBuilder message = new StringBuilder("Generated Java does not compile:");
+                for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+                    message.append('\n').append(d.getLineNumber()).append(": ").append(d.getMessage(null));
+                }
+                throw new IllegalStateException(message.toString());
+            }
+        }
+        return classes;
+    }
+}
@@ -0,0 +1,691 @@
+package cz.university.codegen;
+
+import cz.university.SymbolTable;
+import cz.university.TypeException;
+import cz.university.runtime.FileHandle;
+import cz.university.runtime.FilePool;
+import cz.university.runtime.Input;
+import cz.university.runtime.Output;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Second execution engine: compiles the type-checked tree into a tree of
+ * small Java objects, one per statement and expression, and runs that instead
+ * of stack code. Every node is already specialized for the types the
+ * {@code TypeCheckerVisitor} proved - an int addition is an {@link IntCode}
+ * adding two ints, never a generic value - and common shapes such as
+ * {@code i + 1} or {@code i < n} get their own node reading the variable
+ * directly. HotSpot inlines through these small lambdas much better than
+ * through the interpreter's dispatch loop.
+ *
+ * <p>Behavior is the same as the stack code produced by
+ * {@link CodeGeneratorVisitor} running on {@code StackMachine}, following the
+ * rules shared with {@link JavaSourceGenerator} in {@link TreeLowering}, with
+ * the VM's runtime error messages.</p>
+ */
+public class ClosureCompiler extends TreeLowering<ClosureCompiler.Node> {
+
+    interface Stmt {
+        void run(Frame frame);
+    }
+
+    interface IntCode {
+        int eval(Frame frame);
+    }
+
+    interface FloatCode {
+        float eval(Frame frame);
+    }
+
+    interface BoolCode {
+        boolean eval(Frame frame);
+    }
+
+    /** Strings, and the file name held by a file variable. */
+    interface RefCode {
+        String eval(Frame frame);
+    }
+
+    /** Appends a value to a line the way {@code print} formats it. */
+    interface Text {
+        void append(Frame frame, StringBuilder line);
+    }
+
+    /** Compiled code ({@link Stmt} for statements) and the type of its value. */
+    record Node(Object code, SymbolTable.Type type) {
+    }
+
+    record IntConst(int value) implements IntCode {
+        public int eval(Frame frame) {
+            return value;
+        }
+    }
+
+    record IntVar(int slot) implements IntCode {
+        public int eval(Frame frame) {
+            return frame.ints[slot];
+        }
+    }
+
+    record FloatConst(float value) implements FloatCode {
+        public float eval(Frame frame) {
+            return value;
+        }
+    }
+
+    /** Variables of one run, in the slots of the symbol table. */
+    static final class Frame {
+        final int[] ints;
+        final float[] floats;
+        final boolean[] bools;
+        final String[] refs;
+        final boolean[] assigned;
+        final FileHandle[] handles;
+        final FilePool files = new FilePool();
+        final Output output;
+        final Input input;
+        /** Reused for the line of every {@code write} and {@code <<}. */
+        final StringBuilder line = new StringBuilder();
+
+        Frame(int slots, Output output, Input input) {
+            this.output = output;
+            this.input = input;
+            ints = new int[slots];
+            floats = new float[slots];
+            bools = new boolean[slots];
+            refs = new String[slots];
+            assigned = new boolean[slots];
+            handles = new FileHandle[slots];
+        }
+    }
+
+    private static final Stmt NOTHING = frame -> {
+    };
+
+    private Output output;
+    private Input input;
+
+    public ClosureCompiler(SymbolTable symbolTable) {
+        super(symbolTable);
+    }
+
+    /** Where {@code write} statements go; by default the {@code System.out} of each run. */
+    public void setOutput(Output output) {
+        this.output = output;
+    }
+
+    /** Where {@code read} statements read from; by default the {@code System.in} of each run. */
+    public void setInput(Input input) {
+        this.input = input;
+    }
+
+    /**
+     * Compiles the program; each {@code run()} of the result executes it with
+     * fresh variables. Output is buffered like on the VM: flushed before every
+     * {@code read} and when the run ends, also with an error. Files written with
+     * {@code <<} stay open in a {@link FilePool} until the run ends.
+     */
+    public Runnable compile(ParseTree program) {
+        Stmt body = (Stmt) visit(program).code;
+        int slots = symbolTable.getSlotCount();
+        return () -> {
+            Output out = output != null ? output : Output.of(System.out);
+            Frame frame = new Frame(slots, out, input != null ? input : Input.of(System.in));
+            try {
+                body.run(frame);
+            } finally {
+                try {
+                    out.flush();
+                } finally {
+                    frame.files.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    Node program(cz.university.LanguageParser.ProgramContext ctx) {
+        return statement(block(ctx.statement()));
+    }
+
+    // === Statements ===
+
+    @Override
+    public Node visitEmptyStatement(cz.university.LanguageParser.EmptyStatementContext ctx) {
+        return statement(NOTHING);
+    }
+
+    @Override
+    public Node visitDeclaration(cz.university.LanguageParser.DeclarationContext ctx) {
+        List<Stmt> stores = new ArrayList<>();
+        int line = ctx.getStart().getLine();
+        for (TerminalNode id : ctx.variableList().IDENTIFIER()) {
+            String name = id.getText();
+            switch (typeOf(name, line)) {
+                case INT -> stores.add(store(name, new Node(new IntConst(0), SymbolTable.Type.INT)));
+                case FLOAT -> stores.add(store(name, new Node(new FloatConst(0.0f), SymbolTable.Type.FLOAT)));
+                case BOOL -> stores.add(store(name, new Node((BoolCode) frame -> false, SymbolTable.Type.BOOL)));
+                case STRING -> stores.add(store(name, new Node((RefCode) frame -> "", SymbolTable.Type.STRING)));
+                case FILE -> {
+                }
+            }
+        }
+        return statement(sequence(stores));
+    }
+
+    @Override
+    Node assignFile(String variable, String name, int line) {
+        String mode = writeMode ? "w" : "a";
+        int slot = slotOf(variable, line);
+        Stmt store = store(variable, new Node((RefCode) frame -> name, SymbolTable.Type.FILE));
+        return statement(frame -> {
+            store.run(frame);
+            frame.handles[slot] = new FileHandle(name, mode);
+        });
+    }
+
+    @Override
+    Node assignChain(List<String> targets, Node value, int line) {
+        List<Stmt> stores = new ArrayList<>();
+        for (int i = targets.size() - 1; i >= 0; i--) {
+            SymbolTable.Type type = typeOf(targets.get(i), line);
+            Node source = i == targets.size() - 1 ? value : variable(targets.get(i + 1), line, false);
+            stores.add(store(targets.get(i), convert(source, type)));
+        }
+        return statement(sequence(stores));
+    }
+
+    @Override
+    Node discard(Node value) {
+        return statement(switch (value.type) {
+            case INT -> ((IntCode) value.code)::eval;
+            case FLOAT -> ((FloatCode) value.code)::eval;
+            case BOOL -> ((BoolCode) value.code)::eval;
+            default -> ((RefCode) value.code)::eval;
+        });
+    }
+
+    @Override
+    public Node visitReadStatement(cz.university.LanguageParser.ReadStatementContext ctx) {
+        List<Stmt> reads = new ArrayList<>();
+        for (TerminalNode id : ctx.identifierList().IDENTIFIER()) {
+            String name = id.getText();
+            switch (typeOf(name, id.getSymbol().getLine())) {
+                case INT -> reads.add(store(name, new Node((IntCode) frame -> frame.input.readInt(), SymbolTable.Type.INT)));
+                case FLOAT -> reads.add(store(name, new Node((FloatCode) frame -> frame.input.readFloat(), SymbolTable.Type.FLOAT)));
+                case BOOL -> reads.add(store(name, new Node((BoolCode) frame -> frame.input.readBool(), SymbolTable.Type.BOOL)));
+                case STRING -> reads.add(store(name, new Node((RefCode) frame -> frame.input.readLine(), SymbolTable.Type.STRING)));
+                case FILE -> {
+                }
+            }
+        }
+        Stmt read = sequence(reads);
+        return statement(frame -> {
+            frame.output.flush(); // prompts appear before the program waits for input
+            try {
+                read.run(frame);
+            } catch (RuntimeException e) {
+                throw new RuntimeException("Invalid input during READ");
+            }
+        });
+    }
+
+    @Override
+    public Node visitWriteStatement(cz.university.LanguageParser.WriteStatementContext ctx) {
+        Text[] values = texts(ctx.exprList().expr());
+        return statement(frame -> frame.output.println(line(frame, values)));
+    }
+
+    @Override
+    public Node visitBlockStatement(cz.university.LanguageParser.BlockStatementContext ctx) {
+        return statement(block(ctx.statement()));
+    }
+
+    @Override
+    public Node visitIfStatement(cz.university.LanguageParser.IfStatementContext ctx) {
+        BoolCode condition = (BoolCode) visit(ctx.expr()).code;
+        Stmt then = (Stmt) visit(ctx.statement(0)).code;
+        if (ctx.statement().size() == 1) {
+            return statement(frame -> {
+                if (condition.eval(frame)) then.run(frame);
+            });
+        }
+        Stmt otherwise = (Stmt) visit(ctx.statement(1)).code;
+        return statement(frame -> {
+            if (condition.eval(frame)) then.run(frame);
+            else otherwise.run(frame);
+        });
+    }
+
+    @Override
+    public Node visitWhileStatement(cz.university.LanguageParser.WhileStatementContext ctx) {
+        BoolCode condition = (BoolCode) visit(ctx.expr()).code;
+        Stmt body = (Stmt) visit(ctx.statement()).code;
+        return statement(frame -> {
+            while (condition.eval(frame)) body.run(frame);
+        });
+    }
+
+    @Override
+    public Node visitForStatement(cz.university.LanguageParser.ForStatementContext ctx) {
+        int line = ctx.getStart().getLine();
+        Stmt init = NOTHING;
+        if (ctx.forInit() != null && ctx.forInit().getChildCount() > 0) {
+            String var = ctx.forInit().IDENTIFIER().getText();
+            init = store(var, convert(visit(ctx.forInit().expr()), typeOf(var, line)));
+        }
+        BoolCode condition = ctx.forCond() != null && ctx.forCond().expr() != null
+                ? (BoolCode) visit(ctx.forCond().expr()).code
+                : frame -> true;
+        Stmt body = (Stmt) visit(ctx.statement()).code;
+        Stmt update = NOTHING;
+        if (ctx.forUpdate() != null && ctx.forUpdate().getChildCount() > 0) {
+            String var = ctx.forUpdate().IDENTIFIER().getText();
+            update = store(var, convert(visit(ctx.forUpdate().expr()), typeOf(var, line)));
+        }
+
+        Stmt start = init;
+        Stmt step = update;
+        return statement(frame -> {
+            start.run(frame);
+            while (condition.eval(frame)) {
+                body.run(frame);
+                step.run(frame);
+            }
+        });
+    }
+
+    // === Expressions ===
+
+    @Override
+    public Node visitIdExpr(cz.university.LanguageParser.IdExprContext ctx) {
+        return variable(ctx.IDENTIFIER().getText(), ctx.getStart().getLine(), true);
+    }
+
+    @Override
+    Node intConstant(int value) {
+        return new Node(new IntConst(value), SymbolTable.Type.INT);
+    }
+
+    @Override
+    Node invalidInt(String message) {
+        return new Node((IntCode) frame -> {
+            throw new RuntimeException(message);
+        }, SymbolTable.Type.INT);
+    }
+
+    @Override
+    public Node visitFloatExpr(cz.university.LanguageParser.FloatExprContext ctx) {
+        return new Node(new FloatConst(Float.parseFloat(ctx.getText())), SymbolTable.Type.FLOAT);
+    }
+
+    @Override
+    public Node visitBoolExpr(cz.university.LanguageParser.BoolExprContext ctx) {
+        boolean value = Boolean.parseBoolean(ctx.getText());
+        return new Node((BoolCode) frame -> value, SymbolTable.Type.BOOL);
+    }
+
+    @Override
+    public Node visitStringExpr(cz.university.LanguageParser.StringExprContext ctx) {
+        String text = ctx.getText();
+        String value = text.substring(1, text.length() - 1);
+        return new Node((RefCode) frame -> value, SymbolTable.Type.STRING);
+    }
+
+    @Override
+    public Node visitParenExpr(cz.university.LanguageParser.ParenExprContext ctx) {
+        return visit(ctx.expr());
+    }
+
+    @Override
+    public Node visitAdditiveExpr(cz.university.LanguageParser.AdditiveExprContext ctx) {
+        Node left = visit(ctx.left);
+        Node right = visit(ctx.right);
+        if (ctx.op.getText().equals(".")) {
+            RefCode a = (RefCode) left.code;
+            RefCode b = (RefCode) right.code;
+            return new Node((RefCode) frame -> a.eval(frame) + b.eval(frame), SymbolTable.Type.STRING);
+        }
+        return arithmetic(left, right, ctx.op.getText());
+    }
+
+    @Override
+    public Node visitMultiplicativeExpr(cz.university.LanguageParser.MultiplicativeExprContext ctx) {
+        return arithmetic(visit(ctx.left), visit(ctx.right), ctx.op.getText());
+    }
+
+    @Override
+    Node compare(Node left, Node right, boolean less) {
+        if (left.type == SymbolTable.Type.FLOAT) {
+            FloatCode a = (FloatCode) left.code;
+            FloatCode b = (FloatCode) right.code;
+            return bool(less ? frame -> a.eval(frame) < b.eval(frame) : frame -> a.eval(frame) > b.eval(frame));
+        }
+        IntCode a = (IntCode) left.code;
+        IntCode b = (IntCode) right.code;
+        if (a instanceof IntVar v && b instanceof IntConst c) {
+            int slot = v.slot();
+            int k = c.value();
+            return bool(less ? frame -> frame.ints[slot] < k : frame -> frame.ints[slot] > k);
+        }
+        if (a instanceof IntVar v && b instanceof IntVar w) {
+            int x = v.slot();
+            int y = w.slot();
+            return bool(less ? frame -> frame.ints[x] < frame.ints[y] : frame -> frame.ints[x] > frame.ints[y]);
+        }
+        return bool(less ? frame -> a.eval(frame) < b.eval(frame) : frame -> a.eval(frame) > b.eval(frame));
+    }
+
+    @Override
+    Node equal(Node left, Node right) {
+        if (left.type == SymbolTable.Type.FLOAT) {
+            FloatCode a = (FloatCode) left.code;
+            FloatCode b = (FloatCode) right.code;
+            return bool(frame -> a.eval(frame) == b.eval(frame));
+        }
+        if (left.type == SymbolTable.Type.INT) {
+            IntCode a = (IntCode) left.code;
+            IntCode b = (IntCode) right.code;
+            return bool(frame -> a.eval(frame) == b.eval(frame));
+        }
+        if (left.type == SymbolTable.Type.BOOL) {
+            BoolCode a = (BoolCode) left.code;
+            BoolCode b = (BoolCode) right.code;
+            return bool(frame -> a.eval(frame) == b.eval(frame));
+        }
+        RefCode a = (RefCode) left.code;
+        RefCode b = (RefCode) right.code;
+        return bool(frame -> a.eval(frame).equals(b.eval(frame)));
+    }
+
+    @Override
+    Node logical(Node left, Node right, boolean and) {
+        BoolCode a = (BoolCode) left.code;
+        BoolCode b = (BoolCode) right.code;
+        return bool(and ? frame -> a.eval(frame) & b.eval(frame) : frame -> a.eval(frame) | b.eval(frame));
+    }
+
+    @Override
+    Node not(Node value) {
+        BoolCode a = (BoolCode) value.code;
+        return bool(frame -> !a.eval(frame));
+    }
+
+    @Override
+    public Node visitUnaryMinusExpr(cz.university.LanguageParser.UnaryMinusExprContext ctx) {
+        Node value = visit(ctx.expr());
+        if (value.type == SymbolTable.Type.FLOAT) {
+            FloatCode a = (FloatCode) value.code;
+            return new Node((FloatCode) frame -> -a.eval(frame), SymbolTable.Type.FLOAT);
+        }
+        IntCode a = (IntCode) value.code;
+        return new Node((IntCode) frame -> -a.eval(frame), SymbolTable.Type.INT);
+    }
+
+    // === Helpers ===
+
+    private Node arithmetic(Node left, Node right, String op) {
+        if (left.type == SymbolTable.Type.FLOAT || right.type == SymbolTable.Type.FLOAT) {
+            FloatCode a = (FloatCode) convert(left, SymbolTable.Type.FLOAT).code;
+            FloatCode b = (FloatCode) convert(right, SymbolTable.Type.FLOAT).code;
+            FloatCode result = switch (op) {
+                case "+" -> frame -> a.eval(frame) + b.eval(frame);
+                case "-" -> frame -> a.eval(frame) - b.eval(frame);
+                case "*" -> frame -> a.eval(frame) * b.eval(frame);
+                default -> frame -> {
+                    float x = a.eval(frame);
+                    float y = b.eval(frame);
+                    if (y == 0.0f) throw divisionByZero();
+                    return x / y;
+                };
+            };
+            return new Node(result, SymbolTable.Type.FLOAT);
+        }
+
+        IntCode a = (IntCode) left.code;
+        IntCode b = (IntCode) right.code;
+        IntCode result = null;
+        if (a instanceof IntVar v && b instanceof IntConst c) {
+            int slot = v.slot();
+            int k = c.value();
+            result = switch (op) {
+                case "+" -> frame -> frame.ints[slot] + k;
+                case "-" -> frame -> frame.ints[slot] - k;
+                case "*" -> frame -> frame.ints[slot] * k;
+                case "/" -> k != 0 ? frame -> frame.ints[slot] / k : null;
+                default -> k != 0 ? frame -> frame.ints[slot] % k : null;
+            };
+        } else if (a instanceof IntVar v && b instanceof IntVar w) {
+            int x = v.slot();
+            int y = w.slot();
+            result = switch (op) {
+                case "+" -> frame -> frame.ints[x] + frame.ints[y];
+                case "-" -> frame -> frame.ints[x] - frame.ints[y];
+                case "*" -> frame -> frame.ints[x] * frame.ints[y];
+                default -> null;
+            };
+        }
+        if (result == null) {
+            result = switch (op) {
+                case "+" -> frame -> a.eval(frame) + b.eval(frame);
+                case "-" -> frame -> a.eval(frame) - b.eval(frame);
+                case "*" -> frame -> a.eval(frame) * b.eval(frame);
+                case "/" -> frame -> {
+                    int x = a.eval(frame);
+                    int y = b.eval(frame);
+                    if (y == 0) throw divisionByZero();
+                    return x / y;
+                };
+                default -> frame -> {
+                    int x = a.eval(frame);
+                    int y = b.eval(frame);
+                    if (y == 0) throw divisionByZero();
+                    return x % y;
+                };
+            };
+        }
+        return new Node(result, SymbolTable.Type.INT);
+    }
+
+    @Override
+    SymbolTable.Type typeOf(Node value) {
+        return value.type;
+    }
+
+    @Override
+    Node convert(Node value, SymbolTable.Type target) {
+        if (target != SymbolTable.Type.FLOAT || value.type != SymbolTable.Type.INT) {
+            return value;
+        }
+        if (value.code instanceof IntConst c) {
+            return new Node(new FloatConst(c.value()), SymbolTable.Type.FLOAT);
+        }
+        IntCode a = (IntCode) value.code;
+        return new Node((FloatCode) frame -> a.eval(frame), SymbolTable.Type.FLOAT);
+    }
+
+    /** Reads a variable; {@code checked} reads of files and conditionally declared variables fail when unassigned. */
+    private Node variable(String name, int line, boolean checked) {
+        SymbolTable.Type type = typeOf(name, line);
+        int slot = slotOf(name, line);
+        if (type == SymbolTable.Type.FILE) {
+            return new Node((RefCode) frame -> {
+                String file = frame.refs[slot];
+                if (file == null) throw undefined(name);
+                return file;
+            }, type);
+        }
+        if (checked && guarded.contains(name)) {
+            return switch (type) {
+                case INT -> new Node((IntCode) frame -> {
+                    if (!frame.assigned[slot]) throw undefined(name);
+                    return frame.ints[slot];
+                }, type);
+                case FLOAT -> new Node((FloatCode) frame -> {
+                    if (!frame.assigned[slot]) throw undefined(name);
+                    return frame.floats[slot];
+                }, type);
+                case BOOL -> new Node((BoolCode) frame -> {
+                    if (!frame.assigned[slot]) throw undefined(name);
+                    return frame.bools[slot];
+                }, type);
+                default -> new Node((RefCode) frame -> {
+                    if (!frame.assigned[slot]) throw undefined(name);
+                    return frame.refs[slot];
+                }, type);
+            };
+        }
+        return switch (type) {
+            case INT -> new Node(new IntVar(slot), type);
+            case FLOAT -> new Node((FloatCode) frame -> frame.floats[slot], type);
+            case BOOL -> new Node((BoolCode) frame -> frame.bools[slot], type);
+            default -> new Node((RefCode) frame -> frame.refs[slot], type);
+        };
+    }
+
+    private Stmt store(String name, Node value) {
+        int slot = slotOf(name, 0);
+        Stmt store = switch (value.type) {
+            case INT -> {
+                IntCode code = (IntCode) value.code;
+                yield frame -> frame.ints[slot] = code.eval(frame);
+            }
+            case FLOAT -> {
+                FloatCode code = (FloatCode) value.code;
+                yield frame -> frame.floats[slot] = code.eval(frame);
+            }
+            case BOOL -> {
+                BoolCode code = (BoolCode) value.code;
+                yield frame -> frame.bools[slot] = code.eval(frame);
+            }
+            default -> {
+                RefCode code = (RefCode) value.code;
+                yield frame -> frame.refs[slot] = code.eval(frame);
+            }
+        };
+        if (!guarded.contains(name)) {
+            return store;
+        }
+        return frame -> {
+            store.run(frame);
+            frame.assigned[slot] = true;
+        };
+    }
+
+    @Override
+    Node fileAppend(Node file, String variable, List<cz.university.LanguageParser.ExprContext> values, int line) {
+        RefCode name = (RefCode) file.code;
+        int slot = slotOf(variable, line);
+        Text[] texts = texts(values);
+        if (writeMode) {
+            // only the first write through the handle of an open() empties the file
+            return statement(frame -> {
+                name.eval(frame);
+                frame.handles[slot].write(frame.files, line(frame, texts));
+            });
+        }
+        return statement(frame -> {
+            name.eval(frame);
+            frame.handles[slot].append(frame.files, line(frame, texts));
+        });
+    }
+
+    private Text[] texts(List<cz.university.LanguageParser.ExprContext> values) {
+        Text[] texts = new Text[values.size()];
+        for (int i = 0; i < texts.length; i++) {
+            Node value = visit(values.get(i));
+            texts[i] = switch (value.type) {
+                case INT -> {
+                    IntCode code = (IntCode) value.code;
+                    yield (frame, line) -> line.append(code.eval(frame));
+                }
+                case FLOAT -> {
+                    FloatCode code = (FloatCode) value.code;
+                    yield (frame, line) -> line.append(code.eval(frame));
+                }
+                case BOOL -> {
+                    BoolCode code = (BoolCode) value.code;
+                    yield (frame, line) -> line.append(code.eval(frame));
+                }
+                case STRING -> {
+                    RefCode code = (RefCode) value.code;
+                    yield (frame, line) -> line.append(code.eval(frame));
+                }
+                case FILE -> {
+                    RefCode code = (RefCode) value.code;
+                    yield (frame, line) -> line.append("file(").append(code.eval(frame)).append(')');
+                }
+            };
+        }
+        return texts;
+    }
+
+    private static StringBuilder line(Frame frame, Text[] values) {
+        StringBuilder line = frame.line;
+        line.setLength(0);
+        for (Text value : values) {
+            value.append(frame, line);
+        }
+        return line;
+    }
+
+    private Stmt block(List<? extends ParseTree> statements) {
+        List<Stmt> compiled = new ArrayList<>(statements.size());
+        for (ParseTree statement : statements) {
+            compiled.add((Stmt) visit(statement).code);
+        }
+        return sequence(compiled);
+    }
+
+    private static Stmt sequence(List<Stmt> statements) {
+        statements.removeIf(s -> s == NOTHING);
+        return switch (statements.size()) {
+            case 0 -> NOTHING;
+            case 1 -> statements.get(0);
+            case 2 -> {
+                Stmt first = statements.get(0);
+                Stmt second = statements.get(1);
+                yield frame -> {
+                    first.run(frame);
+                    second.run(frame);
+                };
+            }
+            default -> {
+                Stmt[] all = statements.toArray(new Stmt[0]);
+                yield frame -> {
+                    for (Stmt s : all) {
+                        s.run(frame);
+                    }
+                };
+            }
+        };
+    }
+
+    private static Node statement(Stmt stmt) {
+        return new Node(stmt, null);
+    }
+
+    private static Node bool(BoolCode code) {
+        return new Node(code, SymbolTable.Type.BOOL);
+    }
+
+    private static RuntimeException divisionByZero() {
+        return new RuntimeException("Division by zero");
+    }
+
+    private static RuntimeException undefined(String name) {
+        return new RuntimeException("Variable '" + name + "' not defined");
+    }
+
+    private int slotOf(String name, int line) {
+        try {
+            return symbolTable.getSlot(name, line);
+        } catch (TypeException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
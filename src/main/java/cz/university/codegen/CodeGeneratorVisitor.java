@@ -2,33 +2,132 @@ package cz.university.codegen;
 
 import cz.university.SymbolTable;
 import cz.university.TypeException;
+import cz.university.runtime.Program;
+import cz.university.runtime.ProgramFile;
 import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
+import org.antlr.v4.runtime.tree.RuleNode;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 
 public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<SymbolTable.Type> {
 
     private final SymbolTable symbolTable;
+    private final ParseTreeProperty<SymbolTable.Type> types;
     private final List<Instruction> instructions = new ArrayList<>();
     private boolean insideExpressionStatement = false;
     private boolean writeInstruction = false;
     private int labelCounter = 0;
-
+    private int lined = 0; // instructions below this index already carry a source line
 
     public CodeGeneratorVisitor(SymbolTable symbolTable) {
+        this(symbolTable, new ParseTreeProperty<>());
+    }
+
+    /** Reads operand types from {@code types} (see {@code TypeCheckerVisitor#getTypes}) instead of re-deriving them. */
+    public CodeGeneratorVisitor(SymbolTable symbolTable, ParseTreeProperty<SymbolTable.Type> types) {
         this.symbolTable = symbolTable;
+        this.types = types;
     }
 
     public List<Instruction> getInstructions() {
         return instructions;
     }
 
+    /** Replaces the generated code with the output of {@code pass}; call after visiting. */
+    public void optimize(InstructionPass pass) {
+        List<Instruction> optimized = pass.optimize(instructions);
+        instructions.clear();
+        instructions.addAll(optimized);
+        lined = instructions.size();
+    }
+
+    /**
+     * Every node is visited through here, so instructions emitted while visiting
+     * a node are stamped with the line of the innermost rule that produced them.
+     */
+    @Override
+    public SymbolTable.Type visit(ParseTree tree) {
+        SymbolTable.Type type = super.visit(tree);
+        if (tree instanceof ParserRuleContext ctx) {
+            stampLine(ctx);
+        }
+        return type;
+    }
+
+    private void stampLine(ParserRuleContext ctx) {
+        if (ctx.getStart() != null) {
+            int line = ctx.getStart().getLine();
+            for (; lined < instructions.size(); lined++) {
+                instructions.set(lined, instructions.get(lined).withLine(line));
+            }
+        }
+    }
+
+    /**
+     * Chains such as {@code a + b - c < d} nest to the left, one level per
+     * operator, and the parser builds them without recursion however long they
+     * are. They are compiled the same way: the left spine of binary operators
+     * goes on an explicit stack, its innermost operand is compiled, and each
+     * operator is then completed bottom-up, so the Java stack depth does not
+     * grow with the length of the chain.
+     */
+    private SymbolTable.Type visitLeftSpine(cz.university.LanguageParser.ExprContext ctx) {
+        Deque<cz.university.LanguageParser.ExprContext> spine = new ArrayDeque<>();
+        cz.university.LanguageParser.ExprContext current = ctx;
+        while (isBinary(current)) {
+            spine.push(current);
+            current = current.getRuleContext(cz.university.LanguageParser.ExprContext.class, 0);
+        }
+        SymbolTable.Type type = visit(current);
+        while (!spine.isEmpty()) {
+            cz.university.LanguageParser.ExprContext node = spine.pop();
+            if (node instanceof cz.university.LanguageParser.AdditiveExprContext additive) {
+                type = additiveAfterLeft(additive);
+            } else if (node instanceof cz.university.LanguageParser.MultiplicativeExprContext multiplicative) {
+                type = multiplicativeAfterLeft(multiplicative);
+            } else if (node instanceof cz.university.LanguageParser.EqualityExprContext equality) {
+                type = equalityAfterLeft(equality);
+            } else if (node instanceof cz.university.LanguageParser.RelationalExprContext relational) {
+                type = relationalAfterLeft(relational);
+            } else if (node instanceof cz.university.LanguageParser.AndExprContext and) {
+                type = andAfterLeft(and, type);
+            } else {
+                type = orAfterLeft((cz.university.LanguageParser.OrExprContext) node, type);
+            }
+            stampLine(node);
+        }
+        return type;
+    }
+
+    private static boolean isBinary(cz.university.LanguageParser.ExprContext expr) {
+        return expr instanceof cz.university.LanguageParser.AdditiveExprContext
+                || expr instanceof cz.university.LanguageParser.MultiplicativeExprContext
+                || expr instanceof cz.university.LanguageParser.EqualityExprContext
+                || expr instanceof cz.university.LanguageParser.RelationalExprContext
+                || expr instanceof cz.university.LanguageParser.AndExprContext
+                || expr instanceof cz.university.LanguageParser.OrExprContext;
+    }
+
+    @Override
+    public SymbolTable.Type visitChildren(RuleNode node) {
+        SymbolTable.Type result = defaultResult();
+        for (int i = 0; i < node.getChildCount(); i++) {
+            result = aggregateResult(result, visit(node.getChild(i)));
+        }
+        return result;
+    }
+
     @Override
     public SymbolTable.Type visitDeclaration(cz.university.LanguageParser.DeclarationContext ctx) {
         String typeText = ctx.primitiveType().getText();
@@ -49,19 +148,19 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
             switch (type) {
                 case INT -> {
                     instructions.add(new Instruction(Instruction.OpCode.PUSH_I, "0"));
-                    instructions.add(new Instruction(Instruction.OpCode.SAVE_I, name));
+                    instructions.add(new Instruction(Instruction.OpCode.SAVE_I, name, slotOf(name)));
                 }
                 case FLOAT -> {
                     instructions.add(new Instruction(Instruction.OpCode.PUSH_F, "0.0"));
-                    instructions.add(new Instruction(Instruction.OpCode.SAVE_F, name));
+                    instructions.add(new Instruction(Instruction.OpCode.SAVE_F, name, slotOf(name)));
                 }
                 case BOOL -> {
                     instructions.add(new Instruction(Instruction.OpCode.PUSH_B, "false"));
-                    instructions.add(new Instruction(Instruction.OpCode.SAVE_B, name));
+                    instructions.add(new Instruction(Instruction.OpCode.SAVE_B, name, slotOf(name)));
                 }
                 case STRING -> {
                     instructions.add(new Instruction(Instruction.OpCode.PUSH_S, "\"\""));
-                    instructions.add(new Instruction(Instruction.OpCode.SAVE_S, name));
+                    instructions.add(new Instruction(Instruction.OpCode.SAVE_S, name, slotOf(name)));
                 }
                 case FILE -> {
                 }
@@ -97,7 +196,7 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
                 }
 
                 if (i != vars.size() - 1) {
-                    instructions.add(new Instruction(Instruction.OpCode.LOAD, vars.get(i + 1)));
+                    instructions.add(new Instruction(Instruction.OpCode.LOAD, vars.get(i + 1), slotOf(vars.get(i + 1))));
                     //instructions.add(new Instruction(Instruction.OpCode.POP));
                 }
 
@@ -115,7 +214,7 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
                 throw new RuntimeException(e);
             }
             if (firstVarType != SymbolTable.Type.FILE) {
-                instructions.add(new Instruction(Instruction.OpCode.LOAD, vars.get(0)));
+                instructions.add(new Instruction(Instruction.OpCode.LOAD, vars.get(0), slotOf(vars.get(0))));
                 instructions.add(new Instruction(Instruction.OpCode.POP));
             }
 
@@ -141,7 +240,7 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
         } catch (TypeException e) {
             throw new RuntimeException(e);
         }
-        instructions.add(new Instruction(Instruction.OpCode.LOAD, name));
+        instructions.add(new Instruction(Instruction.OpCode.LOAD, name, slotOf(name)));
         return type;
     }
 
@@ -176,11 +275,16 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
 
     @Override
     public SymbolTable.Type visitAdditiveExpr(cz.university.LanguageParser.AdditiveExprContext ctx) {
+        return visitLeftSpine(ctx);
+    }
+
+    /** The rest of {@link #visitAdditiveExpr} once the code of the left operand has been emitted. */
+    private SymbolTable.Type additiveAfterLeft(cz.university.LanguageParser.AdditiveExprContext ctx) {
         var leftExpr = ctx.expr(0);
         var rightExpr = ctx.expr(1);
 
-        SymbolTable.Type leftType = symbolTable.getExprType(leftExpr, ctx.getStart().getLine());
-        SymbolTable.Type rightType = symbolTable.getExprType(rightExpr, ctx.getStart().getLine());
+        SymbolTable.Type leftType = typeOf(leftExpr, ctx.getStart().getLine());
+        SymbolTable.Type rightType = typeOf(rightExpr, ctx.getStart().getLine());
 
         String op = ctx.op.getText();
         if (op.equals(".")) {
@@ -188,7 +292,6 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
                 throw new RuntimeException("Both operands must be strings for '.' operator.");
             }
 
-            visit(leftExpr);
             visit(rightExpr);
             instructions.add(new Instruction(Instruction.OpCode.CONCAT));
             return SymbolTable.Type.STRING;
@@ -198,7 +301,6 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
                 ? SymbolTable.Type.FLOAT
                 : SymbolTable.Type.INT;
 
-        SymbolTable.Type left = visit(leftExpr);
         if (resultType == SymbolTable.Type.FLOAT && leftType == SymbolTable.Type.INT) {
             instructions.add(new Instruction(Instruction.OpCode.ITOF));
         }
@@ -222,17 +324,21 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
 
     @Override
     public SymbolTable.Type visitMultiplicativeExpr(cz.university.LanguageParser.MultiplicativeExprContext ctx) {
+        return visitLeftSpine(ctx);
+    }
+
+    /** The rest of {@link #visitMultiplicativeExpr} once the code of the left operand has been emitted. */
+    private SymbolTable.Type multiplicativeAfterLeft(cz.university.LanguageParser.MultiplicativeExprContext ctx) {
         var leftExpr = ctx.expr(0);
         var rightExpr = ctx.expr(1);
 
-        SymbolTable.Type leftType = symbolTable.getExprType(leftExpr, ctx.getStart().getLine());
-        SymbolTable.Type rightType = symbolTable.getExprType(rightExpr, ctx.getStart().getLine());
+        SymbolTable.Type leftType = typeOf(leftExpr, ctx.getStart().getLine());
+        SymbolTable.Type rightType = typeOf(rightExpr, ctx.getStart().getLine());
 
         SymbolTable.Type resultType = (leftType == SymbolTable.Type.FLOAT || rightType == SymbolTable.Type.FLOAT)
                 ? SymbolTable.Type.FLOAT
                 : SymbolTable.Type.INT;
 
-        SymbolTable.Type left = visit(leftExpr);
         if (resultType == SymbolTable.Type.FLOAT && leftType == SymbolTable.Type.INT) {
             instructions.add(new Instruction(Instruction.OpCode.ITOF));
         }
@@ -257,17 +363,21 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
 
     @Override
     public SymbolTable.Type visitEqualityExpr(cz.university.LanguageParser.EqualityExprContext ctx) {
+        return visitLeftSpine(ctx);
+    }
+
+    /** The rest of {@link #visitEqualityExpr} once the code of the left operand has been emitted. */
+    private SymbolTable.Type equalityAfterLeft(cz.university.LanguageParser.EqualityExprContext ctx) {
         var leftExpr = ctx.expr(0);
         var rightExpr = ctx.expr(1);
         String op = ctx.op.getText();
 
         int line = ctx.getStart().getLine();
-        SymbolTable.Type leftType = symbolTable.getExprType(leftExpr, line);
-        SymbolTable.Type rightType = symbolTable.getExprType(rightExpr, line);
+        SymbolTable.Type leftType = typeOf(leftExpr, line);
+        SymbolTable.Type rightType = typeOf(rightExpr, line);
 
         boolean floatComparison = (leftType == SymbolTable.Type.FLOAT || rightType == SymbolTable.Type.FLOAT);
 
-        SymbolTable.Type left = visit(leftExpr);
         if (floatComparison && leftType == SymbolTable.Type.INT) {
             instructions.add(new Instruction(Instruction.OpCode.ITOF));
         }
@@ -279,7 +389,6 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
 
         if (floatComparison) {
             instructions.add(new Instruction(Instruction.OpCode.EQ_F));
-            return SymbolTable.Type.BOOL;
         } else if (leftType == rightType) {
             switch (leftType) {
                 case INT -> instructions.add(new Instruction(Instruction.OpCode.EQ_I));
@@ -301,16 +410,20 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
 
     @Override
     public SymbolTable.Type visitRelationalExpr(cz.university.LanguageParser.RelationalExprContext ctx) {
+        return visitLeftSpine(ctx);
+    }
+
+    /** The rest of {@link #visitRelationalExpr} once the code of the left operand has been emitted. */
+    private SymbolTable.Type relationalAfterLeft(cz.university.LanguageParser.RelationalExprContext ctx) {
         var leftExpr = ctx.expr(0);
         var rightExpr = ctx.expr(1);
         int line = ctx.getStart().getLine();
         String op = ctx.getChild(1).getText();
 
-        SymbolTable.Type leftType = symbolTable.getExprType(leftExpr, line);
-        SymbolTable.Type rightType = symbolTable.getExprType(rightExpr, line);
+        SymbolTable.Type leftType = typeOf(leftExpr, line);
+        SymbolTable.Type rightType = typeOf(rightExpr, line);
         boolean floatComparison = (leftType == SymbolTable.Type.FLOAT || rightType == SymbolTable.Type.FLOAT);
 
-        SymbolTable.Type left = visit(leftExpr);
         if (floatComparison && leftType == SymbolTable.Type.INT) {
             instructions.add(new Instruction(Instruction.OpCode.ITOF));
         }
@@ -345,7 +458,10 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
 
     @Override
     public SymbolTable.Type visitAndExpr(cz.university.LanguageParser.AndExprContext ctx) {
-        SymbolTable.Type left = visit(ctx.expr(0));
+        return visitLeftSpine(ctx);
+    }
+
+    private SymbolTable.Type andAfterLeft(cz.university.LanguageParser.AndExprContext ctx, SymbolTable.Type left) {
         SymbolTable.Type right = visit(ctx.expr(1));
 
         if (left == SymbolTable.Type.BOOL && right == SymbolTable.Type.BOOL) {
@@ -357,7 +473,10 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
 
     @Override
     public SymbolTable.Type visitOrExpr(cz.university.LanguageParser.OrExprContext ctx) {
-        SymbolTable.Type left = visit(ctx.expr(0));
+        return visitLeftSpine(ctx);
+    }
+
+    private SymbolTable.Type orAfterLeft(cz.university.LanguageParser.OrExprContext ctx, SymbolTable.Type left) {
         SymbolTable.Type right = visit(ctx.expr(1));
 
         if (left == SymbolTable.Type.BOOL && right == SymbolTable.Type.BOOL) {
@@ -395,10 +514,10 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
                 }
 
                 switch (varType) {
-                    case INT -> instructions.add(new Instruction(Instruction.OpCode.SAVE_I, name));
-                    case FLOAT -> instructions.add(new Instruction(Instruction.OpCode.SAVE_F, name));
-                    case BOOL -> instructions.add(new Instruction(Instruction.OpCode.SAVE_B, name));
-                    case STRING -> instructions.add(new Instruction(Instruction.OpCode.SAVE_S, name));
+                    case INT -> instructions.add(new Instruction(Instruction.OpCode.SAVE_I, name, slotOf(name)));
+                    case FLOAT -> instructions.add(new Instruction(Instruction.OpCode.SAVE_F, name, slotOf(name)));
+                    case BOOL -> instructions.add(new Instruction(Instruction.OpCode.SAVE_B, name, slotOf(name)));
+                    case STRING -> instructions.add(new Instruction(Instruction.OpCode.SAVE_S, name, slotOf(name)));
                 }
             } catch (TypeException e) {
             }
@@ -464,7 +583,10 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
             } catch (TypeException e) {
                 throw new RuntimeException(e);
             }
-            visit(ctx.forInit().expr());
+            SymbolTable.Type valueType = visit(ctx.forInit().expr());
+            if (type == SymbolTable.Type.FLOAT && valueType == SymbolTable.Type.INT) {
+                instructions.add(new Instruction(Instruction.OpCode.ITOF));
+            }
             addSaveInstruction(type, var);
         }
 
@@ -485,7 +607,10 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
             } catch (TypeException e) {
                 throw new RuntimeException(e);
             }
-            visit(ctx.forUpdate().expr());
+            SymbolTable.Type valueType = visit(ctx.forUpdate().expr());
+            if (type == SymbolTable.Type.FLOAT && valueType == SymbolTable.Type.INT) {
+                instructions.add(new Instruction(Instruction.OpCode.ITOF));
+            }
             addSaveInstruction(type, var);
         }
 
@@ -526,7 +651,7 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
 
         if (varType == SymbolTable.Type.FILE) {
             //instructions.add(new Instruction(Instruction.OpCode.FOPEN));
-            instructions.add(new Instruction(Instruction.OpCode.SAVE_FILE, varName));
+            instructions.add(new Instruction(Instruction.OpCode.SAVE_FILE, varName, slotOf(varName)));
             return varType;
         }
 
@@ -590,34 +715,47 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
 
 
     private cz.university.LanguageParser.ExprContext collectFileAndValues(cz.university.LanguageParser.ExprContext expr, List<cz.university.LanguageParser.ExprContext> values) {
-        if (expr instanceof cz.university.LanguageParser.FileAppendExprContext fae) {
+        while (expr instanceof cz.university.LanguageParser.FileAppendExprContext fae) {
             values.add(fae.right);
-            return collectFileAndValues(fae.left, values);
-        } else {
-            //it is expr which already contains file
-            return expr;
+            expr = fae.left;
         }
+        //it is expr which already contains file
+        return expr;
     }
 
 
     private void addSaveInstruction(SymbolTable.Type type, String name) {
         switch (type) {
-            case INT -> instructions.add(new Instruction(Instruction.OpCode.SAVE_I, name));
-            case FLOAT -> instructions.add(new Instruction(Instruction.OpCode.SAVE_F, name));
-            case BOOL -> instructions.add(new Instruction(Instruction.OpCode.SAVE_B, name));
-            case STRING -> instructions.add(new Instruction(Instruction.OpCode.SAVE_S, name));
+            case INT -> instructions.add(new Instruction(Instruction.OpCode.SAVE_I, name, slotOf(name)));
+            case FLOAT -> instructions.add(new Instruction(Instruction.OpCode.SAVE_F, name, slotOf(name)));
+            case BOOL -> instructions.add(new Instruction(Instruction.OpCode.SAVE_B, name, slotOf(name)));
+            case STRING -> instructions.add(new Instruction(Instruction.OpCode.SAVE_S, name, slotOf(name)));
             case FILE -> {
                 instructions.add(new Instruction(Instruction.OpCode.FOPEN));
-                instructions.add(new Instruction(Instruction.OpCode.SAVE_FILE, name));
+                instructions.add(new Instruction(Instruction.OpCode.SAVE_FILE, name, slotOf(name)));
             }
         }
     }
 
+    private int slotOf(String name) {
+        try {
+            return symbolTable.getSlot(name, 0);
+        } catch (TypeException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private String nextLabel() {
         return String.valueOf(labelCounter++);
     }
 
 
+    /** The type the checker recorded for {@code expr}; derived from the subtree only if it was not annotated. */
+    private SymbolTable.Type typeOf(cz.university.LanguageParser.ExprContext expr, int line) {
+        SymbolTable.Type type = types.get(expr);
+        return type != null ? type : symbolTable.getExprType(expr, line);
+    }
+
     public void saveToFile(String filename) {
         try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
             for (Instruction instr : instructions) {
@@ -627,4 +765,12 @@ public class CodeGeneratorVisitor extends cz.university.LanguageBaseVisitor<Symb
             System.err.println("Failed to write output file: " + e.getMessage());
         }
     }
+
+    public void saveToBinary(String filename) {
+        try {
+            ProgramFile.write(Program.assemble(instructions), Paths.get(filename));
+        } catch (IOException e) {
+            System.err.println("Failed to write output file: " + e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,282 @@
+package cz.university.codegen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates operations on constants at compile time and replaces loads of
+ * variables whose value is known with the constant itself.
+ *
+ * <p>An operation is folded when the instructions producing its operands are
+ * {@code push}es right in front of it, so {@code push I 3; push I 4; mul I}
+ * becomes {@code push I 12} and folds cascade through nested expressions. The
+ * result is computed exactly like {@code StackMachine} would (32-bit int and
+ * float arithmetic, {@code Float.toString} for concatenation); divisions by a
+ * constant zero are left alone so they still fail at runtime.</p>
+ *
+ * <p>Propagation tracks {@code push c; save x} within a block. A variable that
+ * is only ever saved before the first label or jump keeps its final constant
+ * value for the rest of the program, so its loads are replaced everywhere.</p>
+ */
+public class ConstantFolder implements InstructionPass {
+
+    private int folded = 0;
+    private int propagated = 0;
+    private int removed = 0;
+
+    @Override
+    public List<Instruction> optimize(List<Instruction> input) {
+        Set<String> entryOnly = entryOnlyVariables(input);
+        Map<String, Instruction> known = new HashMap<>();
+        Map<String, Instruction> global = null;
+        List<Instruction> out = new ArrayList<>(input.size());
+
+        for (Instruction instr : input) {
+            Instruction.OpCode op = instr.getOpCode();
+            switch (op) {
+                case LABEL, JMP, FJMP -> {
+                    if (global == null) {
+                        global = new HashMap<>(known);
+                        global.keySet().retainAll(entryOnly);
+                    }
+                    out.add(instr);
+                    // falling through a fjmp keeps what is known; a label can be reached from elsewhere
+                    if (op != Instruction.OpCode.FJMP) {
+                        known.clear();
+                        known.putAll(global);
+                    }
+                }
+                case LOAD -> {
+                    Instruction value = known.get(instr.getOperand());
+                    if (value != null) {
+                        out.add(new Instruction(value.getOpCode(), value.getOperand(), -1, instr.getLine()));
+                        propagated++;
+                    } else {
+                        out.add(instr);
+                    }
+                }
+                case SAVE_I, SAVE_F, SAVE_S, SAVE_B, SAVE_FILE -> {
+                    Instruction value = out.isEmpty() ? null : out.get(out.size() - 1);
+                    if (value != null && isPush(value)) {
+                        known.put(instr.getOperand(), value);
+                    } else {
+                        known.remove(instr.getOperand());
+                    }
+                    out.add(instr);
+                }
+                default -> {
+                    if (!fold(out, instr)) {
+                        out.add(instr);
+                    }
+                }
+            }
+        }
+        removed += input.size() - out.size();
+        return out;
+    }
+
+    @Override
+    public String report() {
+        return "Constant folding: removed " + removed + " instructions (folded operations: " + folded
+                + ", propagated loads: " + propagated + ")";
+    }
+
+    public int getFolded() {
+        return folded;
+    }
+
+    public int getPropagated() {
+        return propagated;
+    }
+
+    private static Set<String> entryOnlyVariables(List<Instruction> code) {
+        Set<String> entry = new HashSet<>();
+        Set<String> later = new HashSet<>();
+        boolean inEntry = true;
+        for (Instruction instr : code) {
+            switch (instr.getOpCode()) {
+                case LABEL, JMP, FJMP -> inEntry = false;
+                case SAVE_I, SAVE_F, SAVE_S, SAVE_B, SAVE_FILE -> (inEntry ? entry : later).add(instr.getOperand());
+                default -> {
+                }
+            }
+        }
+        entry.removeAll(later);
+        return entry;
+    }
+
+    /** Folds {@code instr} into the constant pushes at the end of {@code out}; false if it cannot. */
+    private boolean fold(List<Instruction> out, Instruction instr) {
+        int size = out.size();
+        Instruction b = size >= 1 ? out.get(size - 1) : null;
+        Instruction a = size >= 2 ? out.get(size - 2) : null;
+        Instruction result;
+        int operands;
+
+        try {
+            switch (instr.getOpCode()) {
+                case UMINUS_I, UMINUS_F, NOT, ITOF -> {
+                    if (b == null || !isPush(b)) return false;
+                    result = unary(instr.getOpCode(), b);
+                    operands = 1;
+                }
+                case POP, PRINT, READ_I, READ_F, READ_S, READ_B, FOPEN, FWRITE, FAPPEND_N,
+                     PUSH_I, PUSH_F, PUSH_S, PUSH_B -> {
+                    return false;
+                }
+                default -> {
+                    if (a == null || !isPush(a) || !isPush(b)) return false;
+                    result = binary(instr.getOpCode(), a, b);
+                    operands = 2;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return false; // a malformed literal is reported by the VM when it runs
+        }
+        if (result == null) {
+            return false;
+        }
+
+        out.subList(size - operands, size).clear();
+        out.add(new Instruction(result.getOpCode(), result.getOperand(), -1, instr.getLine()));
+        folded++;
+        return true;
+    }
+
+    private static Instruction unary(Instruction.OpCode op, Instruction value) {
+        return switch (op) {
+            case UMINUS_I -> value.getOpCode() == Instruction.OpCode.PUSH_I ? pushInt(-intValue(value)) : null;
+            case UMINUS_F -> value.getOpCode() == Instruction.OpCode.PUSH_F ? pushFloat(-floatValue(value)) : null;
+            case NOT -> value.getOpCode() == Instruction.OpCode.PUSH_B ? pushBool(!boolValue(value)) : null;
+            case ITOF -> switch (value.getOpCode()) {
+                case PUSH_I -> pushFloat((float) intValue(value));
+                case PUSH_F -> value;
+                default -> null;
+            };
+            default -> null;
+        };
+    }
+
+    private static Instruction binary(Instruction.OpCode op, Instruction a, Instruction b) {
+        Instruction.OpCode ta = a.getOpCode();
+        Instruction.OpCode tb = b.getOpCode();
+        boolean ints = ta == Instruction.OpCode.PUSH_I && tb == Instruction.OpCode.PUSH_I;
+        boolean floats = ta == Instruction.OpCode.PUSH_F && tb == Instruction.OpCode.PUSH_F;
+
+        switch (op) {
+            case ADD_I, SUB_I, MUL_I, DIV_I, MOD, GT_I, LT_I, EQ_I -> {
+                if (!ints) return null;
+                int x = intValue(a);
+                int y = intValue(b);
+                return switch (op) {
+                    case ADD_I -> pushInt(x + y);
+                    case SUB_I -> pushInt(x - y);
+                    case MUL_I -> pushInt(x * y);
+                    case DIV_I -> y == 0 ? null : pushInt(x / y);
+                    case MOD -> y == 0 ? null : pushInt(x % y);
+                    case GT_I -> pushBool(x > y);
+                    case LT_I -> pushBool(x < y);
+                    default -> pushBool(x == y);
+                };
+            }
+            case ADD_F, SUB_F, MUL_F, DIV_F, GT_F, LT_F, EQ_F -> {
+                if (!floats) return null;
+                float x = floatValue(a);
+                float y = floatValue(b);
+                return switch (op) {
+                    case ADD_F -> pushFloat(x + y);
+                    case SUB_F -> pushFloat(x - y);
+                    case MUL_F -> pushFloat(x * y);
+                    case DIV_F -> y == 0.0f ? null : pushFloat(x / y);
+                    case GT_F -> pushBool(x > y);
+                    case LT_F -> pushBool(x < y);
+                    default -> pushBool(x == y);
+                };
+            }
+            case EQ_S -> {
+                return ta == Instruction.OpCode.PUSH_S && tb == Instruction.OpCode.PUSH_S
+                        ? pushBool(stringValue(a).equals(stringValue(b))) : null;
+            }
+            case EQ_B -> {
+                return ta == Instruction.OpCode.PUSH_B && tb == Instruction.OpCode.PUSH_B
+                        ? pushBool(boolValue(a) == boolValue(b)) : null;
+            }
+            case AND, OR -> {
+                if (!isCondition(a) || !isCondition(b)) return null;
+                return op == Instruction.OpCode.AND
+                        ? pushBool(conditionValue(a) && conditionValue(b))
+                        : pushBool(conditionValue(a) || conditionValue(b));
+            }
+            case CONCAT -> {
+                return pushString(text(a) + text(b));
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    private static boolean isPush(Instruction instr) {
+        return switch (instr.getOpCode()) {
+            case PUSH_I, PUSH_F, PUSH_S, PUSH_B -> true;
+            default -> false;
+        };
+    }
+
+    private static boolean isCondition(Instruction instr) {
+        return instr.getOpCode() == Instruction.OpCode.PUSH_B || instr.getOpCode() == Instruction.OpCode.PUSH_I;
+    }
+
+    private static boolean conditionValue(Instruction instr) {
+        return instr.getOpCode() == Instruction.OpCode.PUSH_B ? boolValue(instr) : intValue(instr) != 0;
+    }
+
+    private static int intValue(Instruction instr) {
+        return Integer.parseInt(instr.getOperand());
+    }
+
+    private static float floatValue(Instruction instr) {
+        return Float.parseFloat(instr.getOperand());
+    }
+
+    private static boolean boolValue(Instruction instr) {
+        return Boolean.parseBoolean(instr.getOperand());
+    }
+
+    private static String stringValue(Instruction instr) {
+        String value = instr.getOperand();
+        if (value.startsWith("\"") && value.endsWith("\"") && value.length() >= 2) {
+            value = value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static String text(Instruction instr) {
+        return switch (instr.getOpCode()) {
+            case PUSH_I -> Integer.toString(intValue(instr));
+            case PUSH_F -> Float.toString(floatValue(instr));
+            case PUSH_B -> Boolean.toString(boolValue(instr));
+            default -> stringValue(instr);
+        };
+    }
+
+    private static Instruction pushInt(int value) {
+        return new Instruction(Instruction.OpCode.PUSH_I, Integer.toString(value));
+    }
+
+    private static Instruction pushFloat(float value) {
+        return new Instruction(Instruction.OpCode.PUSH_F, Float.toString(value));
+    }
+
+    private static Instruction pushBool(boolean value) {
+        return new Instruction(Instruction.OpCode.PUSH_B, Boolean.toString(value));
+    }
+
+    private static Instruction pushString(String value) {
+        return new Instruction(Instruction.OpCode.PUSH_S, "\"" + value + "\"");
+    }
+}
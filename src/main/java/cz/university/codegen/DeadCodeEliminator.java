@@ -0,0 +1,175 @@
+package cz.university.codegen;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Removes code that can never run. Branches on a constant condition are
+ * resolved first ({@code push B false; fjmp L} becomes {@code jmp L}, a true
+ * condition drops the test), then everything not reachable from the first
+ * instruction along jumps and fall-through is deleted, along with jumps to the
+ * label that directly follows and labels no jump refers to. The steps repeat
+ * until nothing changes.
+ *
+ * <p>Run it after {@link ConstantFolder} so conditions like {@code 1 > 2} are
+ * already a single push.</p>
+ */
+public class DeadCodeEliminator implements InstructionPass {
+
+    private int branches = 0;
+    private int unreachable = 0;
+    private int labels = 0;
+    private int removed = 0;
+
+    @Override
+    public List<Instruction> optimize(List<Instruction> input) {
+        List<Instruction> code = new ArrayList<>(input);
+        boolean changed = true;
+        while (changed) {
+            changed = resolveConstantBranches(code);
+            changed |= removeUnreachable(code);
+            changed |= removeUnusedLabels(code);
+        }
+        removed += input.size() - code.size();
+        return code;
+    }
+
+    @Override
+    public String report() {
+        return "Dead code: removed " + removed + " instructions (branches: " + branches
+                + ", unreachable: " + unreachable + ", unused labels: " + labels + ")";
+    }
+
+    private boolean resolveConstantBranches(List<Instruction> code) {
+        List<Instruction> out = new ArrayList<>(code.size());
+        boolean changed = false;
+        for (Instruction instr : code) {
+            int last = out.size() - 1;
+            if (instr.getOpCode() == Instruction.OpCode.FJMP && last >= 0) {
+                Boolean condition = constantCondition(out.get(last));
+                if (condition != null) {
+                    out.remove(last);
+                    if (!condition) {
+                        out.add(new Instruction(Instruction.OpCode.JMP, instr.getOperand(), -1, instr.getLine()));
+                    }
+                    branches++;
+                    changed = true;
+                    continue;
+                }
+            }
+            out.add(instr);
+        }
+        if (changed) {
+            code.clear();
+            code.addAll(out);
+        }
+        return changed;
+    }
+
+    /** The truth value {@code fjmp} would see for a pushed constant, or null if it is not one. */
+    private static Boolean constantCondition(Instruction instr) {
+        try {
+            return switch (instr.getOpCode()) {
+                case PUSH_B -> Boolean.parseBoolean(instr.getOperand());
+                case PUSH_I -> Integer.parseInt(instr.getOperand()) != 0;
+                case PUSH_F -> (int) Float.parseFloat(instr.getOperand()) != 0;
+                default -> null;
+            };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private boolean removeUnreachable(List<Instruction> code) {
+        Map<String, Integer> targets = new HashMap<>();
+        for (int i = 0; i < code.size(); i++) {
+            if (code.get(i).getOpCode() == Instruction.OpCode.LABEL) {
+                targets.putIfAbsent(code.get(i).getOperand(), i);
+            }
+        }
+
+        boolean[] reachable = new boolean[code.size()];
+        Deque<Integer> worklist = new ArrayDeque<>();
+        worklist.add(0);
+        while (!worklist.isEmpty()) {
+            int pc = worklist.poll();
+            if (pc >= code.size() || reachable[pc]) {
+                continue;
+            }
+            reachable[pc] = true;
+            Instruction instr = code.get(pc);
+            Instruction.OpCode op = instr.getOpCode();
+            if (op == Instruction.OpCode.JMP || op == Instruction.OpCode.FJMP) {
+                Integer target = targets.get(instr.getOperand());
+                if (target != null) {
+                    worklist.add(target);
+                }
+            }
+            if (op != Instruction.OpCode.JMP) {
+                worklist.add(pc + 1);
+            }
+        }
+
+        List<Instruction> out = new ArrayList<>(code.size());
+        for (int i = 0; i < code.size(); i++) {
+            if (reachable[i]) {
+                out.add(code.get(i));
+            } else {
+                unreachable++;
+            }
+        }
+        if (out.size() == code.size()) {
+            return false;
+        }
+        code.clear();
+        code.addAll(out);
+        return true;
+    }
+
+    private boolean removeUnusedLabels(List<Instruction> code) {
+        List<Instruction> out = new ArrayList<>(code.size());
+        boolean changed = false;
+        for (int i = 0; i < code.size(); i++) {
+            Instruction instr = code.get(i);
+            if (instr.getOpCode() == Instruction.OpCode.JMP && jumpsToNext(code, i)) {
+                changed = true;
+                branches++;
+                continue;
+            }
+            out.add(instr);
+        }
+
+        Set<String> used = new HashSet<>();
+        for (Instruction instr : out) {
+            if (instr.getOpCode() == Instruction.OpCode.JMP || instr.getOpCode() == Instruction.OpCode.FJMP) {
+                used.add(instr.getOperand());
+            }
+        }
+        int before = out.size();
+        out.removeIf(instr -> instr.getOpCode() == Instruction.OpCode.LABEL && !used.contains(instr.getOperand()));
+        labels += before - out.size();
+        changed |= out.size() != before;
+
+        if (changed) {
+            code.clear();
+            code.addAll(out);
+        }
+        return changed;
+    }
+
+    private static boolean jumpsToNext(List<Instruction> code, int jump) {
+        String label = code.get(jump).getOperand();
+        for (int i = jump + 1; i < code.size() && code.get(i).getOpCode() == Instruction.OpCode.LABEL; i++) {
+            if (label.equals(code.get(i).getOperand())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
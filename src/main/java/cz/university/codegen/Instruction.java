@@ -35,10 +35,27 @@ public class Instruction {
 
     private final OpCode opCode;
     private final String operand;
+    private final int slot;
+    private final int line;
 
     public Instruction(OpCode opCode, String operand) {
+        this(opCode, operand, -1);
+    }
+
+    /**
+     * Variable access ({@code LOAD}, {@code SAVE_*}) keeps the variable name as
+     * its operand and additionally carries the variable's slot from the
+     * {@link cz.university.SymbolTable}, so the VM can index a flat array.
+     */
+    public Instruction(OpCode opCode, String operand, int slot) {
+        this(opCode, operand, slot, -1);
+    }
+
+    public Instruction(OpCode opCode, String operand, int slot, int line) {
         this.opCode = opCode;
         this.operand = operand;
+        this.slot = slot;
+        this.line = line;
     }
 
     public Instruction(OpCode opCode) {
@@ -53,6 +70,19 @@ public class Instruction {
         return operand;
     }
 
+    public int getSlot() {
+        return slot;
+    }
+
+    /** Source line of the statement this instruction was generated for, or -1. */
+    public int getLine() {
+        return line;
+    }
+
+    public Instruction withLine(int line) {
+        return new Instruction(opCode, operand, slot, line);
+    }
+
     @Override
     public String toString() {
         switch (opCode) {
@@ -0,0 +1,15 @@
+package cz.university.codegen;
+
+import java.util.List;
+
+/**
+ * A transformation over the generated instruction list. Passes never modify
+ * their input; the returned list must run with the same observable behaviour.
+ */
+public interface InstructionPass {
+
+    List<Instruction> optimize(List<Instruction> instructions);
+
+    /** One-line summary of what the pass changed so far. */
+    String report();
+}
@@ -0,0 +1,541 @@
+package cz.university.codegen;
+
+import cz.university.SymbolTable;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Lowers a type-checked program to the source of a single Java class whose
+ * {@code main} behaves like running the stack code on {@code StackMachine}:
+ * same output, same input handling, same runtime error messages.
+ *
+ * <p>The translation follows {@link CodeGeneratorVisitor} construct by
+ * construct, including its less obvious rules, which {@link TreeLowering}
+ * shares with {@link ClosureCompiler}; a {@code <<} in write mode truncates
+ * only on the first write after the {@code open}. Code the stack generator
+ * cannot produce a runnable program for is rejected with a
+ * {@link RuntimeException}.</p>
+ *
+ * <p>Variables become locals of {@code main}. Only variables that can be read
+ * before being assigned - files, and variables declared inside a branch or
+ * loop body - carry a flag, so reading them unassigned fails like in the VM.</p>
+ */
+public class JavaSourceGenerator extends TreeLowering<JavaSourceGenerator.Code> {
+
+    public static final String CLASS_NAME = "Main";
+
+    /** A Java expression and the language type of its value. */
+    record Code(String text, SymbolTable.Type type) {
+    }
+
+    private final StringBuilder body = new StringBuilder();
+    private int indent = 3;
+
+    public JavaSourceGenerator(SymbolTable symbolTable) {
+        super(symbolTable);
+    }
+
+    /** The complete source of class {@link #CLASS_NAME}; call after visiting the program. */
+    public String getSource() {
+        StringBuilder source = new StringBuilder();
+        source.append("import java.io.BufferedWriter;\n")
+                .append("import java.io.FileOutputStream;\n")
+                .append("import java.io.IOException;\n")
+                .append("import java.io.OutputStreamWriter;\n")
+                .append("import java.nio.charset.StandardCharsets;\n")
+                .append("import java.nio.file.InvalidPathException;\n")
+                .append("import java.nio.file.Path;\n")
+                .append("import java.util.LinkedHashMap;\n")
+                .append("import java.util.Map;\n")
+                .append("import java.util.Scanner;\n\n")
+                .append("public final class ").append(CLASS_NAME).append(" {\n")
+                .append("    private static final Scanner IN = new Scanner(System.in);\n")
+                .append("    private static final Map<Path, OpenFile> FILES = new LinkedHashMap<>();\n\n")
+                .append("    public static void main(String[] args) {\n");
+        Map<String, SymbolTable.VariableInfo> variables = new TreeMap<>(symbolTable.getTable());
+        for (Map.Entry<String, SymbolTable.VariableInfo> variable : variables.entrySet()) {
+            String name = variable.getKey();
+            source.append("        ").append(switch (variable.getValue().type) {
+                case INT -> "int " + local(name) + " = 0;";
+                case FLOAT -> "float " + local(name) + " = 0.0f;";
+                case BOOL -> "boolean " + local(name) + " = false;";
+                case STRING -> "String " + local(name) + " = \"\";";
+                case FILE -> "String " + local(name) + " = null; boolean " + truncated(name) + " = false;";
+            }).append('\n');
+            if (isFlagged(name)) {
+                source.append("        boolean ").append(flag(name)).append(" = false;\n");
+            }
+        }
+        return source.append("        try {\n")
+                .append(body)
+                .append("        } finally {\n")
+                .append("            closeFiles();\n")
+                .append("        }\n")
+                .append("    }\n\n")
+                .append(RUNTIME).append("}\n").toString();
+    }
+
+    @Override
+    Code program(cz.university.LanguageParser.ProgramContext ctx) {
+        return visitChildren(ctx);
+    }
+
+    // === Statements ===
+
+    @Override
+    public Code visitEmptyStatement(cz.university.LanguageParser.EmptyStatementContext ctx) {
+        return null;
+    }
+
+    @Override
+    public Code visitDeclaration(cz.university.LanguageParser.DeclarationContext ctx) {
+        for (TerminalNode id : ctx.variableList().IDENTIFIER()) {
+            String name = id.getText();
+            switch (typeOf(name, ctx.getStart().getLine())) {
+                case INT -> store(name, "0");
+                case FLOAT -> store(name, "0.0f");
+                case BOOL -> store(name, "false");
+                case STRING -> store(name, "\"\"");
+                case FILE -> {
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    Code assignFile(String variable, String name, int line) {
+        store(variable, literal(name));
+        line(truncated(variable) + " = false;");
+        return null;
+    }
+
+    @Override
+    Code assignChain(List<String> targets, Code value, int line) {
+        for (int i = targets.size() - 1; i >= 0; i--) {
+            SymbolTable.Type type = typeOf(targets.get(i), line);
+            Code source = i == targets.size() - 1 ? value : new Code(local(targets.get(i + 1)), typeOf(targets.get(i + 1), line));
+            store(targets.get(i), convert(source, type).text);
+        }
+        return null;
+    }
+
+    @Override
+    Code fileAppend(Code file, String variable, List<cz.university.LanguageParser.ExprContext> values, int line) {
+        if (!writeMode) {
+            line("append(" + file.text + ", " + concat(values) + ");");
+        } else {
+            line(truncated(variable) + " = write(" + file.text + ", " + truncated(variable) + ", " + concat(values) + ");");
+        }
+        return null;
+    }
+
+    @Override
+    Code discard(Code value) {
+        line("{ var ignored = " + value.text + "; }");
+        return null;
+    }
+
+    @Override
+    public Code visitReadStatement(cz.university.LanguageParser.ReadStatementContext ctx) {
+        for (TerminalNode id : ctx.identifierList().IDENTIFIER()) {
+            String name = id.getText();
+            switch (typeOf(name, id.getSymbol().getLine())) {
+                case INT -> store(name, "readInt()");
+                case FLOAT -> store(name, "readFloat()");
+                case BOOL -> store(name, "readBool()");
+                case STRING -> store(name, "readString()");
+                case FILE -> {
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Code visitWriteStatement(cz.university.LanguageParser.WriteStatementContext ctx) {
+        line("System.out.println(" + concat(ctx.exprList().expr()) + ");");
+        return null;
+    }
+
+    @Override
+    public Code visitBlockStatement(cz.university.LanguageParser.BlockStatementContext ctx) {
+        line("{");
+        indent++;
+        visitChildren(ctx);
+        indent--;
+        line("}");
+        return null;
+    }
+
+    @Override
+    public Code visitIfStatement(cz.university.LanguageParser.IfStatementContext ctx) {
+        line("if (" + condition(ctx.expr()) + ") {");
+        nested(ctx.statement(0));
+        if (ctx.statement().size() > 1) {
+            line("} else {");
+            nested(ctx.statement(1));
+        }
+        line("}");
+        return null;
+    }
+
+    @Override
+    public Code visitWhileStatement(cz.university.LanguageParser.WhileStatementContext ctx) {
+        line("while (" + condition(ctx.expr()) + ") {");
+        nested(ctx.statement());
+        line("}");
+        return null;
+    }
+
+    @Override
+    public Code visitForStatement(cz.university.LanguageParser.ForStatementContext ctx) {
+        int line = ctx.getStart().getLine();
+        if (ctx.forInit() != null && ctx.forInit().getChildCount() > 0) {
+            String var = ctx.forInit().IDENTIFIER().getText();
+            store(var, convert(visit(ctx.forInit().expr()), typeOf(var, line)).text);
+        }
+
+        boolean hasCondition = ctx.forCond() != null && ctx.forCond().expr() != null;
+        line("while (" + (hasCondition ? condition(ctx.forCond().expr()) : "true") + ") {");
+        indent++;
+        visit(ctx.statement());
+        if (ctx.forUpdate() != null && ctx.forUpdate().getChildCount() > 0) {
+            String var = ctx.forUpdate().IDENTIFIER().getText();
+            store(var, convert(visit(ctx.forUpdate().expr()), typeOf(var, line)).text);
+        }
+        indent--;
+        line("}");
+        return null;
+    }
+
+    // === Expressions ===
+
+    @Override
+    public Code visitIdExpr(cz.university.LanguageParser.IdExprContext ctx) {
+        String name = ctx.IDENTIFIER().getText();
+        SymbolTable.Type type = typeOf(name, ctx.getStart().getLine());
+        if (type == SymbolTable.Type.FILE) {
+            return new Code("file(" + local(name) + ", \"" + name + "\")", type);
+        }
+        if (!isFlagged(name)) {
+            return new Code(local(name), type);
+        }
+        String undefined = switch (type) {
+            case INT -> "undefinedInt";
+            case FLOAT -> "undefinedFloat";
+            case BOOL -> "undefinedBool";
+            default -> "undefinedString";
+        };
+        return new Code("(" + flag(name) + " ? " + local(name) + " : " + undefined + "(\"" + name + "\"))", type);
+    }
+
+    @Override
+    Code intConstant(int value) {
+        return new Code(Integer.toString(value), SymbolTable.Type.INT);
+    }
+
+    @Override
+    Code invalidInt(String message) {
+        return new Code("invalid(" + literal(message) + ")", SymbolTable.Type.INT);
+    }
+
+    @Override
+    public Code visitFloatExpr(cz.university.LanguageParser.FloatExprContext ctx) {
+        float value = Float.parseFloat(ctx.getText());
+        String text = Float.isInfinite(value) ? "Float.POSITIVE_INFINITY" : Float.toString(value) + "f";
+        return new Code(text, SymbolTable.Type.FLOAT);
+    }
+
+    @Override
+    public Code visitBoolExpr(cz.university.LanguageParser.BoolExprContext ctx) {
+        return new Code(ctx.getText(), SymbolTable.Type.BOOL);
+    }
+
+    @Override
+    public Code visitStringExpr(cz.university.LanguageParser.StringExprContext ctx) {
+        String text = ctx.getText();
+        return new Code(literal(text.substring(1, text.length() - 1)), SymbolTable.Type.STRING);
+    }
+
+    @Override
+    public Code visitParenExpr(cz.university.LanguageParser.ParenExprContext ctx) {
+        return visit(ctx.expr());
+    }
+
+    @Override
+    public Code visitAdditiveExpr(cz.university.LanguageParser.AdditiveExprContext ctx) {
+        Code left = visit(ctx.left);
+        Code right = visit(ctx.right);
+        String op = ctx.op.getText();
+        if (op.equals(".")) {
+            return new Code("(" + left.text + " + " + right.text + ")", SymbolTable.Type.STRING);
+        }
+        return arithmetic(left, right, op);
+    }
+
+    @Override
+    public Code visitMultiplicativeExpr(cz.university.LanguageParser.MultiplicativeExprContext ctx) {
+        return arithmetic(visit(ctx.left), visit(ctx.right), ctx.op.getText());
+    }
+
+    @Override
+    Code compare(Code left, Code right, boolean less) {
+        return new Code("(" + left.text + (less ? " < " : " > ") + right.text + ")", SymbolTable.Type.BOOL);
+    }
+
+    @Override
+    Code equal(Code left, Code right) {
+        if (left.type == SymbolTable.Type.STRING) {
+            return new Code("(" + left.text + ".equals(" + right.text + "))", SymbolTable.Type.BOOL);
+        }
+        return new Code("(" + left.text + " == " + right.text + ")", SymbolTable.Type.BOOL);
+    }
+
+    @Override
+    Code logical(Code left, Code right, boolean and) {
+        return new Code("(" + left.text + (and ? " & " : " | ") + right.text + ")", SymbolTable.Type.BOOL);
+    }
+
+    @Override
+    Code not(Code value) {
+        return new Code("!" + value.text, SymbolTable.Type.BOOL);
+    }
+
+    @Override
+    public Code visitUnaryMinusExpr(cz.university.LanguageParser.UnaryMinusExprContext ctx) {
+        Code value = visit(ctx.expr());
+        return new Code("(-" + value.text + ")", value.type);
+    }
+
+    // === Helpers ===
+
+    /** Concatenation of the values as {@code print} and {@code fappend} format them. */
+    private String concat(List<cz.university.LanguageParser.ExprContext> values) {
+        StringBuilder text = new StringBuilder("\"\"");
+        for (cz.university.LanguageParser.ExprContext value : values) {
+            Code code = visit(value);
+            text.append(" + ").append(code.type == SymbolTable.Type.FILE ? "fileText(" + code.text + ")" : code.text);
+        }
+        return text.toString();
+    }
+
+    private String condition(cz.university.LanguageParser.ExprContext expr) {
+        return visit(expr).text;
+    }
+
+    private Code arithmetic(Code left, Code right, String op) {
+        SymbolTable.Type type = left.type == SymbolTable.Type.FLOAT || right.type == SymbolTable.Type.FLOAT
+                ? SymbolTable.Type.FLOAT : SymbolTable.Type.INT;
+        String a = convert(left, type).text;
+        String b = convert(right, type).text;
+        return switch (op) {
+            case "/" -> new Code("div(" + a + ", " + b + ")", type);
+            case "%" -> new Code("mod(" + a + ", " + b + ")", type);
+            default -> new Code("(" + a + " " + op + " " + b + ")", type);
+        };
+    }
+
+    @Override
+    SymbolTable.Type typeOf(Code value) {
+        return value.type;
+    }
+
+    @Override
+    Code convert(Code value, SymbolTable.Type target) {
+        if (target == SymbolTable.Type.FLOAT && value.type == SymbolTable.Type.INT) {
+            return new Code("((float) " + value.text + ")", SymbolTable.Type.FLOAT);
+        }
+        return value;
+    }
+
+    private void nested(ParseTree statement) {
+        indent++;
+        visit(statement);
+        indent--;
+    }
+
+    private void store(String name, String value) {
+        line(local(name) + " = " + value + ";");
+        if (isFlagged(name)) {
+            line(flag(name) + " = true;");
+        }
+    }
+
+    private void line(String text) {
+        body.append("    ".repeat(indent)).append(text).append('\n');
+    }
+
+    private boolean isFlagged(String name) {
+        SymbolTable.VariableInfo info = symbolTable.getTable().get(name);
+        return guarded.contains(name) && (info == null || info.type != SymbolTable.Type.FILE);
+    }
+
+    private static String local(String name) {
+        return "v_" + name;
+    }
+
+    private static String flag(String name) {
+        return "set_" + name;
+    }
+
+    private static String truncated(String name) {
+        return "t_" + name;
+    }
+
+    static String literal(String value) {
+        StringBuilder out = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+
+    /** Helpers of the generated class; messages match StackMachine. */
+    private static final String RUNTIME = """
+                private static int div(int a, int b) {
+                    if (b == 0) throw new RuntimeException("Division by zero");
+                    return a / b;
+                }
+
+                private static float div(float a, float b) {
+                    if (b == 0.0f) throw new RuntimeException("Division by zero");
+                    return a / b;
+                }
+
+                private static int mod(int a, int b) {
+                    if (b == 0) throw new RuntimeException("Division by zero");
+                    return a % b;
+                }
+
+                private static int readInt() {
+                    try {
+                        return Integer.parseInt(IN.nextLine());
+                    } catch (Exception e) {
+                        throw new RuntimeException("Invalid input during READ");
+                    }
+                }
+
+                private static float readFloat() {
+                    try {
+                        return Float.parseFloat(IN.nextLine());
+                    } catch (Exception e) {
+                        throw new RuntimeException("Invalid input during READ");
+                    }
+                }
+
+                private static boolean readBool() {
+                    try {
+                        return Boolean.parseBoolean(IN.nextLine());
+                    } catch (Exception e) {
+                        throw new RuntimeException("Invalid input during READ");
+                    }
+                }
+
+                private static String readString() {
+                    try {
+                        return IN.nextLine();
+                    } catch (Exception e) {
+                        throw new RuntimeException("Invalid input during READ");
+                    }
+                }
+
+                // every file stays open with a buffered writer until main ends, like the VM's FilePool
+                private record OpenFile(FileOutputStream stream, BufferedWriter writer) {
+                }
+
+                private static OpenFile open(String file) throws IOException {
+                    Path path = Path.of(file).toAbsolutePath().normalize();
+                    OpenFile open = FILES.get(path);
+                    if (open == null) {
+                        FileOutputStream stream = new FileOutputStream(path.toFile(), true);
+                        open = new OpenFile(stream, new BufferedWriter(
+                                new OutputStreamWriter(stream, StandardCharsets.UTF_8), 64 * 1024));
+                        FILES.put(path, open);
+                    }
+                    return open;
+                }
+
+                private static void append(String file, String line) {
+                    try {
+                        BufferedWriter writer = open(file).writer();
+                        writer.write(line);
+                        writer.newLine();
+                    } catch (IOException | InvalidPathException e) {
+                        throw new RuntimeException("Failed to append to file: " + file);
+                    }
+                }
+
+                // only the first write after open() empties the file
+                private static boolean write(String file, boolean truncated, String line) {
+                    try {
+                        OpenFile open = open(file);
+                        if (!truncated) {
+                            open.writer().flush();
+                            open.stream().getChannel().truncate(0);
+                        }
+                        open.writer().write(line);
+                        open.writer().newLine();
+                    } catch (IOException | InvalidPathException e) {
+                        throw new RuntimeException("Failed to write to file: " + file);
+                    }
+                    return true;
+                }
+
+                private static void closeFiles() {
+                    RuntimeException failure = null;
+                    for (Map.Entry<Path, OpenFile> entry : FILES.entrySet()) {
+                        try (BufferedWriter writer = entry.getValue().writer()) {
+                            writer.flush();
+                        } catch (IOException e) {
+                            if (failure == null) {
+                                failure = new RuntimeException("Failed to write to file: " + entry.getKey());
+                            }
+                        }
+                    }
+                    FILES.clear();
+                    if (failure != null) {
+                        throw failure;
+                    }
+                }
+
+                private static String file(String name, String variable) {
+                    if (name == null) throw new RuntimeException("Variable '" + variable + "' not defined");
+                    return name;
+                }
+
+                private static String fileText(String name) {
+                    return "file(" + name + ")";
+                }
+
+                private static int undefinedInt(String variable) {
+                    throw new RuntimeException("Variable '" + variable + "' not defined");
+                }
+
+                private static float undefinedFloat(String variable) {
+                    throw new RuntimeException("Variable '" + variable + "' not defined");
+                }
+
+                private static boolean undefinedBool(String variable) {
+                    throw new RuntimeException("Variable '" + variable + "' not defined");
+                }
+
+                private static String undefinedString(String variable) {
+                    throw new RuntimeException("Variable '" + variable + "' not defined");
+                }
+
+                private static int invalid(String message) {
+                    throw new RuntimeException(message);
+                }
+            """;
+}
@@ -0,0 +1,224 @@
+package cz.university.codegen;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Local clean-up of the instruction list produced by {@link CodeGeneratorVisitor}.
+ * Each {@link Rule} looks at a short window of instructions; the rules are
+ * applied repeatedly until none of them changes anything, since one removal
+ * often exposes the next (e.g. dropping a jump leaves two adjacent labels).
+ */
+public class PeepholeOptimizer implements InstructionPass {
+
+    public enum Rule {
+        /** {@code save x; load x; pop} and {@code push c; pop} - the value is dropped right away. */
+        LOAD_POP("load/pop pairs"),
+        /** {@code jmp L} / {@code fjmp L} where only labels separate the jump from {@code label L}. */
+        JUMP_TO_NEXT("jumps to next instruction"),
+        /** Adjacent labels are merged into the first one and every jump is retargeted. */
+        DUPLICATE_LABELS("duplicate labels"),
+        /** {@code push c; save x} overwritten by another {@code save x} before any {@code load x}. */
+        DEAD_STORE("dead default stores");
+
+        private final String description;
+
+        Rule(String description) {
+            this.description = description;
+        }
+    }
+
+    private final Set<Rule> rules;
+    private final Map<Rule, Integer> removed = new EnumMap<>(Rule.class);
+
+    public PeepholeOptimizer() {
+        this(EnumSet.allOf(Rule.class));
+    }
+
+    public PeepholeOptimizer(Set<Rule> rules) {
+        this.rules = rules.isEmpty() ? EnumSet.noneOf(Rule.class) : EnumSet.copyOf(rules);
+    }
+
+    @Override
+    public List<Instruction> optimize(List<Instruction> input) {
+        List<Instruction> code = new ArrayList<>(input);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            if (rules.contains(Rule.LOAD_POP)) changed |= removeLoadPop(code);
+            if (rules.contains(Rule.JUMP_TO_NEXT)) changed |= removeJumpsToNext(code);
+            if (rules.contains(Rule.DUPLICATE_LABELS)) changed |= mergeLabels(code);
+            if (rules.contains(Rule.DEAD_STORE)) changed |= removeDeadStores(code);
+        }
+        return code;
+    }
+
+    /** Number of instructions removed per rule by all {@link #optimize} calls so far. */
+    public Map<Rule, Integer> getRemoved() {
+        return removed;
+    }
+
+    public int getRemovedTotal() {
+        int total = 0;
+        for (int count : removed.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public String report() {
+        StringBuilder sb = new StringBuilder("Peephole: removed " + getRemovedTotal() + " instructions");
+        String separator = " (";
+        for (Rule rule : rules) {
+            sb.append(separator).append(rule.description).append(": ").append(removed.getOrDefault(rule, 0));
+            separator = ", ";
+        }
+        return rules.isEmpty() ? sb.toString() : sb.append(')').toString();
+    }
+
+    private void count(Rule rule, int instructions) {
+        removed.merge(rule, instructions, Integer::sum);
+    }
+
+    private boolean removeLoadPop(List<Instruction> code) {
+        List<Instruction> out = new ArrayList<>(code.size());
+        for (Instruction instr : code) {
+            int last = out.size() - 1;
+            if (instr.getOpCode() == Instruction.OpCode.POP && last >= 0) {
+                Instruction value = out.get(last);
+                boolean reload = value.getOpCode() == Instruction.OpCode.LOAD && last >= 1
+                        && isSave(out.get(last - 1)) && out.get(last - 1).getOperand().equals(value.getOperand());
+                if (reload || isPush(value)) {
+                    out.remove(last);
+                    count(Rule.LOAD_POP, 2);
+                    continue;
+                }
+            }
+            out.add(instr);
+        }
+        return replace(code, out);
+    }
+
+    private boolean removeJumpsToNext(List<Instruction> code) {
+        List<Instruction> out = new ArrayList<>(code.size());
+        for (int i = 0; i < code.size(); i++) {
+            Instruction instr = code.get(i);
+            Instruction.OpCode op = instr.getOpCode();
+            if ((op == Instruction.OpCode.JMP || op == Instruction.OpCode.FJMP) && fallsInto(code, i + 1, instr.getOperand())) {
+                if (op == Instruction.OpCode.FJMP) {
+                    // the condition is still consumed
+                    out.add(new Instruction(Instruction.OpCode.POP, null, -1, instr.getLine()));
+                } else {
+                    count(Rule.JUMP_TO_NEXT, 1);
+                }
+                continue;
+            }
+            out.add(instr);
+        }
+        return replace(code, out);
+    }
+
+    private static boolean fallsInto(List<Instruction> code, int from, String label) {
+        for (int i = from; i < code.size() && code.get(i).getOpCode() == Instruction.OpCode.LABEL; i++) {
+            if (code.get(i).getOperand().equals(label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean mergeLabels(List<Instruction> code) {
+        Map<String, String> alias = new HashMap<>();
+        List<Instruction> out = new ArrayList<>(code.size());
+        for (Instruction instr : code) {
+            int last = out.size() - 1;
+            if (instr.getOpCode() == Instruction.OpCode.LABEL && last >= 0
+                    && out.get(last).getOpCode() == Instruction.OpCode.LABEL) {
+                alias.put(instr.getOperand(), out.get(last).getOperand());
+                count(Rule.DUPLICATE_LABELS, 1);
+                continue;
+            }
+            out.add(instr);
+        }
+        if (alias.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < out.size(); i++) {
+            Instruction instr = out.get(i);
+            boolean jump = instr.getOpCode() == Instruction.OpCode.JMP || instr.getOpCode() == Instruction.OpCode.FJMP;
+            if (jump && alias.containsKey(instr.getOperand())) {
+                out.set(i, new Instruction(instr.getOpCode(), alias.get(instr.getOperand()), -1, instr.getLine()));
+            }
+        }
+        return replace(code, out);
+    }
+
+    /**
+     * Only straight-line code is searched: the window ends at the first label or
+     * jump, so a store is dropped only if no path can observe it.
+     */
+    private boolean removeDeadStores(List<Instruction> code) {
+        boolean[] dead = new boolean[code.size()];
+        boolean any = false;
+        for (int i = 0; i + 1 < code.size(); i++) {
+            if (!isPush(code.get(i)) || !isSave(code.get(i + 1))) {
+                continue;
+            }
+            String name = code.get(i + 1).getOperand();
+            for (int j = i + 2; j < code.size(); j++) {
+                Instruction next = code.get(j);
+                Instruction.OpCode op = next.getOpCode();
+                if (op == Instruction.OpCode.LABEL || op == Instruction.OpCode.JMP
+                        || op == Instruction.OpCode.FJMP || op == Instruction.OpCode.LOAD && name.equals(next.getOperand())) {
+                    break;
+                }
+                if (isSave(next) && name.equals(next.getOperand())) {
+                    dead[i] = dead[i + 1] = true;
+                    any = true;
+                    break;
+                }
+            }
+        }
+        if (!any) {
+            return false;
+        }
+        List<Instruction> out = new ArrayList<>(code.size());
+        for (int i = 0; i < code.size(); i++) {
+            if (dead[i]) {
+                count(Rule.DEAD_STORE, 1);
+            } else {
+                out.add(code.get(i));
+            }
+        }
+        return replace(code, out);
+    }
+
+    private static boolean isPush(Instruction instr) {
+        return switch (instr.getOpCode()) {
+            case PUSH_I, PUSH_F, PUSH_S, PUSH_B -> true;
+            default -> false;
+        };
+    }
+
+    private static boolean isSave(Instruction instr) {
+        return switch (instr.getOpCode()) {
+            case SAVE_I, SAVE_F, SAVE_S, SAVE_B -> true;
+            default -> false;
+        };
+    }
+
+    private static boolean replace(List<Instruction> code, List<Instruction> out) {
+        if (out.size() == code.size() && out.equals(code)) {
+            return false;
+        }
+        code.clear();
+        code.addAll(out);
+        return true;
+    }
+}
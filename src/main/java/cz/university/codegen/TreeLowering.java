@@ -0,0 +1,261 @@
+package cz.university.codegen;
+
+import cz.university.SymbolTable;
+import cz.university.TypeException;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The rules shared by the backends that translate the checked tree directly
+ * instead of running the stack code - {@link ClosureCompiler} and
+ * {@link JavaSourceGenerator}. Each rule reproduces what
+ * {@link CodeGeneratorVisitor} emits and {@code StackMachine} then does, so it
+ * is written once here and both backends only say how to build the result
+ * ({@code T}) for it.
+ *
+ * <ul>
+ *   <li>{@code a = b = e} stores {@code e} into {@code b}, then {@code b} into
+ *   {@code a}; an assignment nested in an expression only yields its value</li>
+ *   <li>a file variable can only be assigned an {@code open(...)}, whose mode
+ *   decides whether the {@code <<} statements after it in the source write or
+ *   append</li>
+ *   <li>{@code ==}, {@code !=}, {@code <} and {@code >} compare as floats when
+ *   either side is a float; {@code &&} and {@code ||} evaluate both operands</li>
+ *   <li>an int literal out of range fails when it runs, like the instruction
+ *   the VM decodes it to</li>
+ *   <li>{@code <<} and {@code open(...)} are statements, not values</li>
+ * </ul>
+ */
+abstract class TreeLowering<T> extends cz.university.LanguageBaseVisitor<T> {
+
+    final SymbolTable symbolTable;
+    /** Variables declared inside a branch or loop body, which may be read before they are assigned. */
+    final Set<String> guarded = new HashSet<>();
+    /** Whether the {@code open(...)} last seen in the source has mode {@code "w"}. */
+    boolean writeMode = false;
+    private boolean insideExpressionStatement = false;
+
+    TreeLowering(SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
+    }
+
+    // === What each backend builds ===
+
+    abstract SymbolTable.Type typeOf(T value);
+
+    abstract T convert(T value, SymbolTable.Type target);
+
+    abstract T program(cz.university.LanguageParser.ProgramContext ctx);
+
+    /** {@code variable = open(name, ...)}. */
+    abstract T assignFile(String variable, String name, int line);
+
+    /** {@code targets[0] = targets[1] = ... = value}, stored right to left. */
+    abstract T assignChain(List<String> targets, T value, int line);
+
+    /** {@code file << values...} where {@code file} is the file variable {@code variable}. */
+    abstract T fileAppend(T file, String variable, List<cz.university.LanguageParser.ExprContext> values, int line);
+
+    /** An expression statement whose value is dropped. */
+    abstract T discard(T value);
+
+    abstract T intConstant(int value);
+
+    /** An int literal that fails with {@code message} when evaluated. */
+    abstract T invalidInt(String message);
+
+    /** {@code left == right}; both have the same type, floats already converted. */
+    abstract T equal(T left, T right);
+
+    /** {@code left < right} or {@code left > right} on two ints or two floats. */
+    abstract T compare(T left, T right, boolean less);
+
+    /** {@code left & right} or {@code left | right}, both operands always evaluated. */
+    abstract T logical(T left, T right, boolean and);
+
+    abstract T not(T value);
+
+    // === Shared rules ===
+
+    @Override
+    public T visitProgram(cz.university.LanguageParser.ProgramContext ctx) {
+        guarded.addAll(conditionallyDeclared(ctx));
+        return program(ctx);
+    }
+
+    @Override
+    public T visitExpressionStatement(cz.university.LanguageParser.ExpressionStatementContext ctx) {
+        insideExpressionStatement = true;
+        try {
+            int line = ctx.getStart().getLine();
+            if (ctx.expr() instanceof cz.university.LanguageParser.AssignExprContext assign) {
+                List<String> targets = new ArrayList<>();
+                cz.university.LanguageParser.ExprContext current = assign;
+                while (current instanceof cz.university.LanguageParser.AssignExprContext a) {
+                    targets.add(a.left.getText());
+                    current = a.right;
+                }
+                if (typeOf(targets.get(0), line) == SymbolTable.Type.FILE) {
+                    if (targets.size() != 1 || !(current instanceof cz.university.LanguageParser.FileOpenExprContext open)) {
+                        throw new RuntimeException(line + ": a file variable can only be assigned open(...)");
+                    }
+                    return assignFile(targets.get(0), fileName(open), line);
+                }
+                return assignChain(targets, visit(current), line);
+            }
+            if (ctx.expr() instanceof cz.university.LanguageParser.FileAppendExprContext append) {
+                return fileAppendStatement(append);
+            }
+            return discard(visit(ctx.expr()));
+        } finally {
+            insideExpressionStatement = false;
+        }
+    }
+
+    @Override
+    public T visitIntExpr(cz.university.LanguageParser.IntExprContext ctx) {
+        try {
+            return intConstant(Integer.parseInt(ctx.getText()));
+        } catch (NumberFormatException e) {
+            // the VM decodes this to an instruction that fails when it runs
+            return invalidInt("Invalid instruction 'push I " + ctx.getText() + "': " + e.getMessage());
+        }
+    }
+
+    @Override
+    public T visitEqualityExpr(cz.university.LanguageParser.EqualityExprContext ctx) {
+        T left = visit(ctx.left);
+        T right = visit(ctx.right);
+        if (typeOf(left) == SymbolTable.Type.FLOAT || typeOf(right) == SymbolTable.Type.FLOAT) {
+            left = convert(left, SymbolTable.Type.FLOAT);
+            right = convert(right, SymbolTable.Type.FLOAT);
+        }
+        T equal = equal(left, right);
+        return ctx.op.getText().equals("!=") ? not(equal) : equal;
+    }
+
+    @Override
+    public T visitRelationalExpr(cz.university.LanguageParser.RelationalExprContext ctx) {
+        T left = visit(ctx.left);
+        T right = visit(ctx.right);
+        if (typeOf(left) == SymbolTable.Type.FLOAT || typeOf(right) == SymbolTable.Type.FLOAT) {
+            left = convert(left, SymbolTable.Type.FLOAT);
+            right = convert(right, SymbolTable.Type.FLOAT);
+        }
+        return compare(left, right, ctx.op.getText().equals("<"));
+    }
+
+    @Override
+    public T visitAndExpr(cz.university.LanguageParser.AndExprContext ctx) {
+        // the stack code evaluates both operands, so no short-circuit here either
+        return logical(visit(ctx.left), visit(ctx.right), true);
+    }
+
+    @Override
+    public T visitOrExpr(cz.university.LanguageParser.OrExprContext ctx) {
+        return logical(visit(ctx.left), visit(ctx.right), false);
+    }
+
+    @Override
+    public T visitNotExpr(cz.university.LanguageParser.NotExprContext ctx) {
+        return not(visit(ctx.expr()));
+    }
+
+    @Override
+    public T visitAssignExpr(cz.university.LanguageParser.AssignExprContext ctx) {
+        if (!insideExpressionStatement) {
+            throw new RuntimeException(ctx.getStart().getLine() + ": an assignment cannot be used as a value here");
+        }
+        // like the stack code, a nested assignment only produces the value
+        return convert(visit(ctx.right), typeOf(ctx.left.getText(), ctx.getStart().getLine()));
+    }
+
+    @Override
+    public T visitFileAppendExpr(cz.university.LanguageParser.FileAppendExprContext ctx) {
+        throw new RuntimeException(ctx.getStart().getLine() + ": '<<' can only be used as a statement");
+    }
+
+    @Override
+    public T visitFileOpenExpr(cz.university.LanguageParser.FileOpenExprContext ctx) {
+        throw new RuntimeException(ctx.getStart().getLine() + ": open(...) can only be assigned to a file variable");
+    }
+
+    // === Helpers ===
+
+    private T fileAppendStatement(cz.university.LanguageParser.FileAppendExprContext ctx) {
+        List<cz.university.LanguageParser.ExprContext> values = new ArrayList<>();
+        cz.university.LanguageParser.ExprContext current = ctx;
+        while (current instanceof cz.university.LanguageParser.FileAppendExprContext append) {
+            values.add(0, append.right);
+            current = append.left;
+        }
+        T file = visit(current);
+        String variable = fileVariable(current);
+        if (typeOf(file) != SymbolTable.Type.FILE || variable == null) {
+            throw new RuntimeException(ctx.getStart().getLine() + ": left side of << must be a file variable");
+        }
+        return fileAppend(file, variable, values, ctx.getStart().getLine());
+    }
+
+    /** The variable named by the left side of {@code <<}, or null when it is not a plain variable. */
+    private static String fileVariable(cz.university.LanguageParser.ExprContext expr) {
+        while (expr instanceof cz.university.LanguageParser.ParenExprContext paren) {
+            expr = paren.expr();
+        }
+        return expr instanceof cz.university.LanguageParser.IdExprContext id ? id.IDENTIFIER().getText() : null;
+    }
+
+    /** The file name of an {@code open(...)}; its mode applies to the {@code <<} statements that follow. */
+    private String fileName(cz.university.LanguageParser.FileOpenExprContext ctx) {
+        String name = ctx.STRING(0).getText();
+        String mode = ctx.STRING(1).getText();
+        mode = mode.substring(1, mode.length() - 1);
+        switch (mode) {
+            case "w" -> writeMode = true;
+            case "a" -> writeMode = false;
+            default -> throw new RuntimeException("Invalid mode in open(): " + mode);
+        }
+        return name.substring(1, name.length() - 1);
+    }
+
+    /**
+     * Variables declared inside an if, while or for body, where the declaration
+     * may not have run before a later read.
+     */
+    private static Set<String> conditionallyDeclared(ParseTree tree) {
+        Set<String> names = new HashSet<>();
+        collectDeclarations(tree, false, names);
+        return names;
+    }
+
+    private static void collectDeclarations(ParseTree tree, boolean conditional, Set<String> names) {
+        if (tree instanceof cz.university.LanguageParser.DeclarationContext declaration) {
+            if (conditional) {
+                for (TerminalNode id : declaration.variableList().IDENTIFIER()) {
+                    names.add(id.getText());
+                }
+            }
+            return;
+        }
+        boolean body = conditional
+                || tree instanceof cz.university.LanguageParser.IfStatementContext
+                || tree instanceof cz.university.LanguageParser.WhileStatementContext
+                || tree instanceof cz.university.LanguageParser.ForStatementContext;
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            collectDeclarations(tree.getChild(i), body, names);
+        }
+    }
+
+    SymbolTable.Type typeOf(String name, int line) {
+        try {
+            return symbolTable.getType(name, line);
+        } catch (TypeException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
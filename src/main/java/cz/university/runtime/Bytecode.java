@@ -0,0 +1,136 @@
+package cz.university.runtime;
+
+/**
+ * Numeric opcodes of the decoded program executed by {@link StackMachine}.
+ * Every textual instruction is mapped to exactly one of these at load time,
+ * so the dispatch loop never looks at strings.
+ */
+public final class Bytecode {
+
+    public static final int PUSH_I = 0;
+    public static final int PUSH_F = 1;
+    public static final int PUSH_S = 2;
+    public static final int PUSH_B = 3;
+    public static final int POP = 4;
+    public static final int LOAD = 5;
+    public static final int SAVE = 6;
+    public static final int PRINT = 7;
+    public static final int READ_I = 8;
+    public static final int READ_F = 9;
+    public static final int READ_S = 10;
+    public static final int READ_B = 11;
+
+    public static final int ADD_I = 12;
+    public static final int SUB_I = 13;
+    public static final int MUL_I = 14;
+    public static final int DIV_I = 15;
+    public static final int MOD_I = 16;
+    public static final int ADD_F = 17;
+    public static final int SUB_F = 18;
+    public static final int MUL_F = 19;
+    public static final int DIV_F = 20;
+
+    public static final int GT_I = 21;
+    public static final int LT_I = 22;
+    public static final int GE_I = 23;
+    public static final int LE_I = 24;
+    public static final int EQ_I = 25;
+    public static final int GT_F = 26;
+    public static final int LT_F = 27;
+    public static final int GE_F = 28;
+    public static final int LE_F = 29;
+    public static final int EQ_F = 30;
+    public static final int EQ_S = 31;
+    public static final int EQ_B = 32;
+
+    public static final int UMINUS_I = 33;
+    public static final int UMINUS_F = 34;
+    public static final int CONCAT = 35;
+    public static final int AND = 36;
+    public static final int OR = 37;
+    public static final int NOT = 38;
+    public static final int ITOF = 39;
+
+    public static final int LABEL = 40;
+    public static final int JMP = 41;
+    public static final int FJMP = 42;
+
+    public static final int FOPEN = 43;
+    public static final int FAPPEND = 44;
+    public static final int FWRITE = 45;
+
+    // decoded from a malformed line; throws its message when executed
+    public static final int INVALID = 46;
+
+    // Superinstructions, chosen by Superinstructions after linking. Each one
+    // replaces the first opcode of the sequence it stands for; the rest of the
+    // sequence stays in place, supplies the remaining operands and is skipped.
+    public static final int IF_LT_VC = 47;       // load v; push I c; lt I; fjmp L
+    public static final int IF_GT_VC = 48;       // load v; push I c; gt I; fjmp L
+    public static final int IF_EQ_VC = 49;       // load v; push I c; eq I; fjmp L
+    public static final int IF_LT_VV = 50;       // load a; load b; lt I; fjmp L
+    public static final int IF_GT_VV = 51;       // load a; load b; gt I; fjmp L
+    public static final int IF_EQ_VV = 52;       // load a; load b; eq I; fjmp L
+    public static final int ADD_VV_I = 53;       // load a; load b; add I
+    public static final int SUB_VV_I = 54;       // load a; load b; sub I
+    public static final int MUL_VV_I = 55;       // load a; load b; mul I
+    public static final int ADD_VC_I = 56;       // load v; push I c; add I
+    public static final int SUB_VC_I = 57;       // load v; push I c; sub I
+    public static final int MUL_VC_I = 58;       // load v; push I c; mul I
+    public static final int DIV_VC_I = 59;       // load v; push I c; div I   (c != 0)
+    public static final int MOD_VC_I = 60;       // load v; push I c; mod     (c != 0)
+    public static final int INC_I = 61;          // load v; push I c; add I; save v
+    public static final int DEC_I = 62;          // load v; push I c; sub I; save v
+    public static final int INC_F = 63;          // load v; push F c; add F; save v
+    public static final int SAVE_LOAD_POP = 64;  // save v; load v; pop
+
+    // value types proven by the Linker
+    public static final byte T_INT = 1;
+    public static final byte T_FLOAT = 2;
+    public static final byte T_BOOL = 3;
+    public static final byte T_STRING = 4;
+    public static final byte T_FILE = 5;
+
+    private static final String[] NAMES = {
+            "push I", "push F", "push S", "push B", "pop", "load", "save", "print",
+            "read I", "read F", "read S", "read B",
+            "add I", "sub I", "mul I", "div I", "mod", "add F", "sub F", "mul F", "div F",
+            "gt I", "lt I", "ge I", "le I", "eq I",
+            "gt F", "lt F", "ge F", "le F", "eq F", "eq S", "eq B",
+            "uminus I", "uminus F", "concat", "and", "or", "not", "itof",
+            "label", "jmp", "fjmp",
+            "fopen", "fappend", "fwrite",
+            "invalid",
+            "if_lt_vc", "if_gt_vc", "if_eq_vc", "if_lt_vv", "if_gt_vv", "if_eq_vv",
+            "add_vv I", "sub_vv I", "mul_vv I",
+            "add_vc I", "sub_vc I", "mul_vc I", "div_vc I", "mod_vc",
+            "inc I", "dec I", "inc F", "save_load_pop",
+    };
+
+    private Bytecode() {
+    }
+
+    public static String name(int opcode) {
+        return opcode >= 0 && opcode < NAMES.length ? NAMES[opcode] : "op#" + opcode;
+    }
+
+    /** Number of plain instructions a superinstruction covers; 1 for everything else. */
+    public static int length(int opcode) {
+        return switch (opcode) {
+            case IF_LT_VC, IF_GT_VC, IF_EQ_VC, IF_LT_VV, IF_GT_VV, IF_EQ_VV, INC_I, DEC_I, INC_F -> 4;
+            case ADD_VV_I, SUB_VV_I, MUL_VV_I, ADD_VC_I, SUB_VC_I, MUL_VC_I, DIV_VC_I, MOD_VC_I, SAVE_LOAD_POP -> 3;
+            default -> 1;
+        };
+    }
+
+    public static String typeName(byte type) {
+        return switch (type) {
+            case T_INT -> "int";
+            case T_FLOAT -> "float";
+            case T_BOOL -> "bool";
+            case T_STRING -> "string";
+            case T_FILE -> "file";
+            default -> "undefined";
+        };
+    }
+}
@@ -0,0 +1,16 @@
+package cz.university.runtime;
+
+/**
+ * A loop of the stack code translated to JVM bytecode by {@link LoopCompiler}.
+ * It runs on the interpreter's own variable array (unboxed, floats as raw
+ * bits), so nothing has to be copied when control moves between the tiers.
+ */
+public interface CompiledLoop {
+
+    /**
+     * Runs the loop from its header until control leaves it.
+     *
+     * @return the program counter the interpreter continues at
+     */
+    int run(int[] variables);
+}
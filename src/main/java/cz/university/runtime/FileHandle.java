@@ -1,8 +1,14 @@
 package cz.university.runtime;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.InvalidPathException;
+
 public class FileHandle {
     private final String name;
     private final String mode;
+    private FilePool.OpenFile file;
+    private boolean truncated = false;
 
     public FileHandle(String name, String mode) {
         this.name = name;
@@ -13,9 +19,38 @@ public class FileHandle {
         return name;
     }
 
+    /** {@code fappend}: adds a line at the end of the file. */
+    public void append(FilePool files, CharSequence line) {
+        try {
+            open(files).println(line);
+        } catch (IOException | UncheckedIOException | InvalidPathException e) {
+            throw new RuntimeException("Failed to append to file: " + name);
+        }
+    }
+
+    /** {@code fwrite}: like {@link #append}, but the first write through this handle empties the file. */
+    public void write(FilePool files, CharSequence line) {
+        try {
+            FilePool.OpenFile open = open(files);
+            if (!truncated) {
+                open.truncate();
+                truncated = true;
+            }
+            open.println(line);
+        } catch (IOException | UncheckedIOException | InvalidPathException e) {
+            throw new RuntimeException("Failed to write to file: " + name);
+        }
+    }
+
+    private FilePool.OpenFile open(FilePool files) throws IOException {
+        if (file == null) {
+            file = files.open(name);
+        }
+        return file;
+    }
+
     @Override
     public String toString() {
         return "file(" + name + ")";
     }
 }
-
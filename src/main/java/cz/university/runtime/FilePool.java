@@ -0,0 +1,75 @@
+package cz.university.runtime;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Files written by one program run. Each file is opened once, on its first
+ * write, and stays open with a buffered writer until {@link #close()} at the
+ * end of the run, instead of being reopened for every {@code <<} statement.
+ * All handles of the same file share one entry, so their lines stay in order.
+ * The stack VM and the closure engine each use one pool per run.
+ */
+public final class FilePool {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** An open file: its channel and the buffered writer in front of it. */
+    static final class OpenFile {
+        private final FileChannel channel;
+        private final Output output;
+
+        private OpenFile(FileChannel channel) {
+            this.channel = channel;
+            this.output = new Output(channel, BUFFER_SIZE);
+        }
+
+        void println(CharSequence line) {
+            output.println(line);
+        }
+
+        /** Drops the file's content, including lines still in the buffer. */
+        void truncate() throws IOException {
+            output.flush();
+            channel.truncate(0);
+        }
+    }
+
+    private final Map<Path, OpenFile> files = new LinkedHashMap<>();
+
+    OpenFile open(String name) throws IOException {
+        Path path = Path.of(name).toAbsolutePath().normalize();
+        OpenFile file = files.get(path);
+        if (file == null) {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            file = new OpenFile(channel);
+            files.put(path, file);
+        }
+        return file;
+    }
+
+    /** Flushes and closes every file, even when one of them fails; then reports the first failure. */
+    public void close() {
+        RuntimeException failure = null;
+        for (Map.Entry<Path, OpenFile> entry : files.entrySet()) {
+            OpenFile file = entry.getValue();
+            try (FileChannel channel = file.channel) {
+                file.output.flush();
+            } catch (IOException | UncheckedIOException e) {
+                if (failure == null) {
+                    failure = new RuntimeException("Failed to write to file: " + entry.getKey());
+                }
+            }
+        }
+        files.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package cz.university.runtime;
+
+/**
+ * Second execution tier of {@link StackMachine}. Every backward {@code jmp}
+ * counts how often it is taken; once a count reaches the threshold the loop it
+ * closes is handed to {@link LoopCompiler}, and from then on the jump runs the
+ * compiled loop instead of going back to the header.
+ *
+ * <p>A compiled loop is only entered when every variable it touches has been
+ * assigned, so the interpreter still reports "not defined" for the others. A
+ * loop the compiler rejects is never tried again.</p>
+ */
+final class HotLoops {
+
+    private final Program program;
+    private final int threshold;
+    private final int[] counters;
+    private final CompiledLoop[] loops;
+    private final int[][] slots;
+    private final boolean[] rejected;
+    private int compiled = 0;
+
+    HotLoops(Program program, int threshold) {
+        this.program = program;
+        this.threshold = threshold;
+        int size = program.code.length;
+        this.counters = new int[size];
+        this.loops = new CompiledLoop[size];
+        this.slots = new int[size][];
+        this.rejected = new boolean[size];
+    }
+
+    /**
+     * Called when the backward jump at {@code pc} is taken with an empty
+     * operand stack.
+     *
+     * @return where the interpreter continues after the compiled loop, or -1
+     *         to take the jump in the interpreter
+     */
+    int backEdge(int pc, int[] variables, byte[] variableTags) {
+        CompiledLoop loop = loops[pc];
+        if (loop == null) {
+            if (rejected[pc] || ++counters[pc] < threshold) {
+                return -1;
+            }
+            int header = program.operands[pc];
+            int[] used = LoopCompiler.variables(program, header, pc);
+            if (!assigned(used, variableTags)) {
+                counters[pc] = 0;
+                return -1;
+            }
+            loop = LoopCompiler.compile(program, header, pc, variableTags);
+            if (loop == null) {
+                rejected[pc] = true;
+                return -1;
+            }
+            loops[pc] = loop;
+            slots[pc] = used;
+            compiled++;
+        }
+        if (!assigned(slots[pc], variableTags)) {
+            return -1;
+        }
+        return loop.run(variables);
+    }
+
+    int compiled() {
+        return compiled;
+    }
+
+    private static boolean assigned(int[] slots, byte[] variableTags) {
+        for (int slot : slots) {
+            if (variableTags[slot] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,263 @@
+package cz.university.runtime;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Buffered input of {@code read} statements. Every value is one line, as with
+ * {@code Scanner.nextLine()}; lines end where {@code Scanner}'s lines end: at
+ * {@code \n}, {@code \r\n}, {@code \r}, U+0085, U+2028 or U+2029 (the last
+ * three in their UTF-8 form). The channel is read in large chunks into one
+ * byte array, and ints, floats and bools are parsed straight from its bytes
+ * without building a {@code String}; only string values are decoded.
+ *
+ * <p>Input is always UTF-8. {@code Scanner(System.in)} decoded with the
+ * platform charset instead, so on platforms whose default charset is not
+ * UTF-8 non-ASCII text now reads differently.</p>
+ *
+ * <p>Failures are those of the code this replaces: {@link NoSuchElementException}
+ * when the input has no more lines, {@link NumberFormatException} when a line
+ * is not what {@link Integer#parseInt} or {@link Float#parseFloat} accepts, and
+ * any line that is not {@code true} (ignoring case) reads as {@code false}.
+ * Lines outside the plain decimal fast paths - whitespace, exponents,
+ * {@code NaN}, non-ASCII digits, more digits than a float holds exactly - are
+ * handed to those methods, so they accept exactly the same input.</p>
+ *
+ * <p>Nothing is read before the first value is asked for.</p>
+ */
+public final class Input {
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    private static final int FLOAT_EXACT = 1 << 24;
+    private static final float[] POWERS_OF_TEN = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+    private final ReadableByteChannel channel;
+    private byte[] bytes;
+    private ByteBuffer buffer;
+    private int position;
+    private int limit;
+    private boolean skipLinefeed;
+    /** Byte length of the terminator of the line {@link #nextLine} found, 0 at the end of input. */
+    private int terminator;
+
+    public Input(ReadableByteChannel channel, int capacity) {
+        this.channel = channel;
+        this.bytes = new byte[capacity];
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    /** Reads from {@code stream} (typically the current {@code System.in}). */
+    public static Input of(InputStream stream) {
+        return new Input(Channels.newChannel(stream), DEFAULT_CAPACITY);
+    }
+
+    /** Reads the process's standard input through a {@link java.nio.channels.FileChannel}, bypassing {@code System.in}. */
+    public static Input stdin() {
+        return new Input(new FileInputStream(FileDescriptor.in).getChannel(), DEFAULT_CAPACITY);
+    }
+
+    public int readInt() {
+        int end = nextLine();
+        int start = position;
+        consume(end);
+        return parseInt(start, end);
+    }
+
+    public float readFloat() {
+        int end = nextLine();
+        int start = position;
+        consume(end);
+        return parseFloat(start, end);
+    }
+
+    public boolean readBool() {
+        int end = nextLine();
+        int start = position;
+        consume(end);
+        return end - start == 4
+                && (bytes[start] | 0x20) == 't'
+                && (bytes[start + 1] | 0x20) == 'r'
+                && (bytes[start + 2] | 0x20) == 'u'
+                && (bytes[start + 3] | 0x20) == 'e';
+    }
+
+    public String readLine() {
+        int end = nextLine();
+        int start = position;
+        consume(end);
+        return text(start, end);
+    }
+
+    private int parseInt(int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i++] == '-';
+        }
+        if (i == end) {
+            throw invalid(start, end);
+        }
+        // accumulated negatively, like Integer.parseInt, so that MIN_VALUE fits
+        int min = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        int result = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                if (bytes[i] < 0) {
+                    return Integer.parseInt(text(start, end));
+                }
+                throw invalid(start, end);
+            }
+            if (result < min / 10 || result * 10 < min + digit) {
+                throw invalid(start, end);
+            }
+            result = result * 10 - digit;
+        }
+        return negative ? result : -result;
+    }
+
+    /**
+     * Plain decimals whose digits fit a float exactly and that have at most ten
+     * fraction digits are one correctly rounded division of two exact floats;
+     * everything else goes through {@link Float#parseFloat}.
+     */
+    private float parseFloat(int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i++] == '-';
+        }
+        int mantissa = 0;
+        int digits = 0;
+        int scale = -1;
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (b == '.' && scale < 0) {
+                scale = 0;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9) {
+                return Float.parseFloat(text(start, end));
+            }
+            mantissa = mantissa * 10 + digit;
+            digits++;
+            if (scale >= 0) {
+                scale++;
+            }
+            if (mantissa > FLOAT_EXACT || scale >= POWERS_OF_TEN.length) {
+                return Float.parseFloat(text(start, end));
+            }
+        }
+        if (digits == 0) {
+            throw invalid(start, end);
+        }
+        float value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+        return negative ? -value : value;
+    }
+
+    private NumberFormatException invalid(int start, int end) {
+        return new NumberFormatException("For input string: \"" + text(start, end) + "\"");
+    }
+
+    private String text(int start, int end) {
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /** Buffers the next whole line starting at {@link #position} and returns where it ends. */
+    private int nextLine() {
+        if (skipLinefeed) {
+            skipLinefeed = false;
+            if ((position < limit || fill()) && bytes[position] == '\n') {
+                position++;
+            }
+        }
+        int scanned = 0;
+        boolean more = true;
+        while (true) {
+            int i = position + scanned;
+            for (; i < limit; i++) {
+                byte b = bytes[i];
+                if (b == '\n' || b == '\r') {
+                    terminator = 1;
+                    return i;
+                }
+                if (b == (byte) 0xC2 || b == (byte) 0xE2) {
+                    int length = b == (byte) 0xC2 ? 2 : 3;
+                    if (i + length > limit) {
+                        if (more) {
+                            break; // read the rest of the sequence first
+                        }
+                        continue;
+                    }
+                    if (isUnicodeTerminator(i)) {
+                        terminator = length;
+                        return i;
+                    }
+                }
+            }
+            scanned = i - position;
+            if (!more) {
+                if (limit == position) {
+                    throw new NoSuchElementException("No line found");
+                }
+                terminator = 0;
+                return limit;
+            }
+            more = fill();
+        }
+    }
+
+    /** U+0085 ({@code C2 85}), U+2028 ({@code E2 80 A8}) or U+2029 ({@code E2 80 A9}) starting at {@code i}. */
+    private boolean isUnicodeTerminator(int i) {
+        if (bytes[i] == (byte) 0xC2) {
+            return bytes[i + 1] == (byte) 0x85;
+        }
+        return bytes[i + 1] == (byte) 0x80 && (bytes[i + 2] == (byte) 0xA8 || bytes[i + 2] == (byte) 0xA9);
+    }
+
+    private void consume(int end) {
+        if (end < limit) {
+            skipLinefeed = bytes[end] == '\r';
+            position = end + terminator;
+        } else {
+            position = end;
+        }
+    }
+
+    /** Reads more input behind the unread bytes, growing the buffer for very long lines; false at end of input. */
+    private boolean fill() {
+        if (position > 0) {
+            System.arraycopy(bytes, position, bytes, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == bytes.length) {
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            buffer = ByteBuffer.wrap(bytes);
+        }
+        try {
+            int read;
+            do {
+                buffer.limit(bytes.length).position(limit);
+                read = channel.read(buffer);
+            } while (read == 0);
+            if (read < 0) {
+                return false;
+            }
+            limit += read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
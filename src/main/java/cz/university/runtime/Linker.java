@@ -0,0 +1,319 @@
+package cz.university.runtime;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns a decoded {@link Program} into the form executed by {@link StackMachine}.
+ *
+ * <p>The verifier walks every reachable instruction and proves the stack depth
+ * and the type of every stack slot, so the machine can run without underflow or
+ * type checks on a stack allocated once with {@link Program#maxStack()} slots.
+ * The linker then drops {@code label} pseudo-ops (and conversions the verifier
+ * found to be no-ops), rewrites jump operands to the compacted offsets and picks
+ * superinstructions for the dispatch table.</p>
+ */
+public final class Linker {
+
+    private final Program program;
+    private final byte[][] states;
+    private final byte[] variableTypes;
+    private final Map<Integer, List<Integer>> pendingLoads = new HashMap<>();
+    private final Deque<Integer> worklist = new ArrayDeque<>();
+    private final boolean[] removable;
+    private final int[] operands;
+    private int maxStack = 0;
+
+    private Linker(Program program) {
+        this.program = program;
+        this.states = new byte[program.size() + 1][];
+        this.variableTypes = new byte[program.variables.length];
+        this.removable = new boolean[program.size()];
+        this.operands = program.operands.clone();
+    }
+
+    public static Program link(Program program) {
+        if (program.isLinked()) {
+            return program;
+        }
+        Linker linker = new Linker(program);
+        linker.verify();
+        return linker.compact();
+    }
+
+    /** Result of verification: the operand stack types before each instruction and the type of each variable. */
+    record Types(byte[][] stacks, byte[] variables) {
+    }
+
+    /**
+     * Verifies {@code program} (linked or not) and returns the proven types.
+     * {@code stacks[pc]} is null for unreachable instructions;
+     * {@code stacks[program.size()]} is the state on falling off the end.
+     */
+    static Types types(Program program) {
+        Linker linker = new Linker(program);
+        linker.verify();
+        return new Types(linker.states, linker.variableTypes);
+    }
+
+    // === Verification ===
+
+    private void verify() {
+        merge(0, new byte[0], -1);
+        while (!worklist.isEmpty()) {
+            int pc = worklist.poll();
+            step(pc, states[pc]);
+        }
+    }
+
+    private void step(int pc, byte[] in) {
+        int size = program.size();
+        if (pc == size) {
+            return; // falling off the end terminates the program
+        }
+
+        int opcode = program.code[pc];
+        int operand = program.operands[pc];
+        Frame f = new Frame(pc, in);
+
+        switch (opcode) {
+            case Bytecode.PUSH_I, Bytecode.READ_I -> f.push(Bytecode.T_INT);
+            case Bytecode.PUSH_F, Bytecode.READ_F -> f.push(Bytecode.T_FLOAT);
+            case Bytecode.PUSH_S, Bytecode.READ_S -> f.push(Bytecode.T_STRING);
+            case Bytecode.PUSH_B, Bytecode.READ_B -> f.push(Bytecode.T_BOOL);
+            case Bytecode.POP -> f.pop();
+            case Bytecode.LOAD -> {
+                byte type = variableTypes[operand];
+                if (type == 0) {
+                    // nothing is ever saved into it yet: the load fails at runtime,
+                    // unless a later save gives the variable a type
+                    pendingLoads.computeIfAbsent(operand, k -> new ArrayList<>()).add(pc);
+                    return;
+                }
+                f.push(type);
+            }
+            case Bytecode.SAVE -> defineVariable(pc, operand, f.pop());
+            case Bytecode.PRINT -> f.popValues(operand);
+            case Bytecode.ADD_I, Bytecode.SUB_I, Bytecode.MUL_I, Bytecode.DIV_I, Bytecode.MOD_I -> {
+                f.pop(Bytecode.T_INT);
+                f.pop(Bytecode.T_INT);
+                f.push(Bytecode.T_INT);
+            }
+            case Bytecode.ADD_F, Bytecode.SUB_F, Bytecode.MUL_F, Bytecode.DIV_F -> {
+                f.pop(Bytecode.T_FLOAT);
+                f.pop(Bytecode.T_FLOAT);
+                f.push(Bytecode.T_FLOAT);
+            }
+            case Bytecode.GT_I, Bytecode.LT_I, Bytecode.GE_I, Bytecode.LE_I, Bytecode.EQ_I -> compare(f, Bytecode.T_INT);
+            case Bytecode.GT_F, Bytecode.LT_F, Bytecode.GE_F, Bytecode.LE_F, Bytecode.EQ_F -> compare(f, Bytecode.T_FLOAT);
+            case Bytecode.EQ_S -> compare(f, Bytecode.T_STRING);
+            case Bytecode.EQ_B -> compare(f, Bytecode.T_BOOL);
+            case Bytecode.UMINUS_I -> f.push(f.pop(Bytecode.T_INT));
+            case Bytecode.UMINUS_F -> f.push(f.pop(Bytecode.T_FLOAT));
+            case Bytecode.CONCAT -> {
+                f.pop();
+                f.pop();
+                f.push(Bytecode.T_STRING);
+            }
+            case Bytecode.AND, Bytecode.OR -> {
+                f.popCondition(false);
+                f.popCondition(false);
+                f.push(Bytecode.T_BOOL);
+            }
+            case Bytecode.NOT -> f.push(f.pop(Bytecode.T_BOOL));
+            case Bytecode.ITOF -> {
+                byte type = f.pop();
+                if (type == Bytecode.T_FLOAT) {
+                    removable[pc] = true;
+                } else if (type != Bytecode.T_INT) {
+                    throw f.error("ITOF expects int, got " + Bytecode.typeName(type));
+                }
+                f.push(Bytecode.T_FLOAT);
+            }
+            case Bytecode.LABEL -> removable[pc] = true;
+            case Bytecode.JMP -> {
+                merge(operand, f.state(), pc);
+                return;
+            }
+            case Bytecode.FJMP -> {
+                f.popCondition(true);
+                merge(operand, f.state(), pc);
+            }
+            case Bytecode.FOPEN -> {
+                // with a single value on the stack it is a bare filename opened for append
+                if (f.depth() == 1) {
+                    f.pop(Bytecode.T_STRING);
+                    operands[pc] = 1;
+                } else {
+                    f.pop(Bytecode.T_STRING);
+                    f.pop(Bytecode.T_STRING);
+                    operands[pc] = 2;
+                }
+                f.push(Bytecode.T_FILE);
+            }
+            case Bytecode.FAPPEND, Bytecode.FWRITE -> {
+                f.popValues(operand);
+                f.pop(Bytecode.T_FILE);
+            }
+            case Bytecode.INVALID -> {
+                return; // always throws when reached
+            }
+            default -> throw f.error("unknown opcode " + opcode);
+        }
+
+        merge(pc + 1, f.state(), pc);
+    }
+
+    private void compare(Frame f, byte type) {
+        f.pop(type);
+        f.pop(type);
+        f.push(Bytecode.T_BOOL);
+    }
+
+    private void defineVariable(int pc, int variable, byte type) {
+        byte known = variableTypes[variable];
+        if (known == type) {
+            return;
+        }
+        if (known != 0) {
+            throw new RuntimeException(errorPrefix(pc) + "variable '" + program.variables[variable]
+                    + "' holds " + Bytecode.typeName(known) + " but is assigned " + Bytecode.typeName(type));
+        }
+        variableTypes[variable] = type;
+        List<Integer> loads = pendingLoads.remove(variable);
+        if (loads != null) {
+            worklist.addAll(loads);
+        }
+    }
+
+    private void merge(int target, byte[] state, int from) {
+        if (target < 0 || target > program.size()) {
+            throw new RuntimeException(errorPrefix(from) + "jump target " + target + " out of range");
+        }
+        byte[] known = states[target];
+        if (known == null) {
+            states[target] = state;
+            maxStack = Math.max(maxStack, state.length);
+            worklist.add(target);
+        } else if (!Arrays.equals(known, state)) {
+            throw new RuntimeException(errorPrefix(from) + "inconsistent stack at instruction " + target
+                    + ": " + describe(known) + " vs " + describe(state));
+        }
+    }
+
+    private String errorPrefix(int pc) {
+        if (pc < 0 || pc >= program.size()) {
+            return "Verification failed: ";
+        }
+        return "Verification failed at instruction " + pc + " (" + Bytecode.name(program.code[pc]) + "): ";
+    }
+
+    private static String describe(byte[] state) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < state.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(Bytecode.typeName(state[i]));
+        }
+        return sb.append(']').toString();
+    }
+
+    private final class Frame {
+        private final int pc;
+        private byte[] slots;
+        private int depth;
+
+        Frame(int pc, byte[] in) {
+            this.pc = pc;
+            this.slots = Arrays.copyOf(in, in.length + 1);
+            this.depth = in.length;
+        }
+
+        int depth() {
+            return depth;
+        }
+
+        void push(byte type) {
+            if (depth == slots.length) {
+                slots = Arrays.copyOf(slots, depth * 2 + 1);
+            }
+            slots[depth++] = type;
+        }
+
+        byte pop() {
+            if (depth == 0) {
+                throw error("Stack underflow");
+            }
+            return slots[--depth];
+        }
+
+        byte pop(byte expected) {
+            byte type = pop();
+            if (type != expected) {
+                throw error("expected " + Bytecode.typeName(expected) + ", got " + Bytecode.typeName(type));
+            }
+            return type;
+        }
+
+        void popCondition(boolean allowFloat) {
+            byte type = pop();
+            if (type != Bytecode.T_BOOL && type != Bytecode.T_INT && !(allowFloat && type == Bytecode.T_FLOAT)) {
+                throw error("expected bool, got " + Bytecode.typeName(type));
+            }
+        }
+
+        void popValues(int count) {
+            if (count < 0) {
+                throw error("negative value count " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                pop();
+            }
+        }
+
+        byte[] state() {
+            return Arrays.copyOf(slots, depth);
+        }
+
+        RuntimeException error(String message) {
+            return new RuntimeException(errorPrefix(pc) + message);
+        }
+    }
+
+    // === Linking ===
+
+    private Program compact() {
+        int size = program.size();
+        int[] newIndex = new int[size + 1];
+        int kept = 0;
+        for (int pc = 0; pc < size; pc++) {
+            newIndex[pc] = kept;
+            if (!removable[pc]) kept++;
+        }
+        newIndex[size] = kept;
+
+        int[] code = new int[kept];
+        int[] linkedOperands = new int[kept];
+        int[] lines = program.lines != null ? new int[kept] : null;
+        int at = 0;
+        for (int pc = 0; pc < size; pc++) {
+            if (removable[pc]) continue;
+            int opcode = program.code[pc];
+            code[at] = opcode;
+            linkedOperands[at] = (opcode == Bytecode.JMP || opcode == Bytecode.FJMP)
+                    ? newIndex[operands[pc]]
+                    : operands[pc];
+            if (lines != null) {
+                lines[at] = program.lines[pc];
+            }
+            at++;
+        }
+
+        return new Program(code, linkedOperands, program.floats, program.strings, program.variables,
+                lines, Superinstructions.select(code, linkedOperands), true, maxStack);
+    }
+}
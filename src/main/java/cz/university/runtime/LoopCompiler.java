@@ -0,0 +1,528 @@
+package cz.university.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Translates one loop of a linked program - the code from a backward
+ * {@code jmp}'s target up to the jump itself - into a hidden JVM class
+ * implementing {@link CompiledLoop}, so HotSpot compiles it like ordinary Java.
+ *
+ * <p>Only numeric code is supported: int, float and bool values, variables,
+ * arithmetic, comparisons and jumps. Each variable the loop touches becomes a
+ * JVM local, loaded from the interpreter's array on entry and stored back on
+ * every exit. The operand stack must be empty at the header and at every jump
+ * out of the loop, which is what the code generator produces for statements.
+ * Anything else (strings, I/O, a non-empty stack) makes {@link #compile} return
+ * null and the loop keeps running in the interpreter.</p>
+ *
+ * <p>The class file is written by hand with version 49, which the JVM still
+ * verifies by type inference, so no stack map frames are needed.</p>
+ */
+final class LoopCompiler {
+
+    private static final String CLASS_NAME = "cz/university/runtime/LoopCompiler$Loop";
+    private static final String INTERFACE_NAME = "cz/university/runtime/CompiledLoop";
+
+    // JVM opcodes used below
+    private static final int ICONST_0 = 0x03, ICONST_1 = 0x04, FCONST_0 = 0x0b;
+    private static final int BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12, LDC_W = 0x13;
+    private static final int ILOAD = 0x15, FLOAD = 0x17, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, IALOAD = 0x2e;
+    private static final int ISTORE = 0x36, FSTORE = 0x38, IASTORE = 0x4f;
+    private static final int POP = 0x57, DUP = 0x59;
+    private static final int IADD = 0x60, FADD = 0x62, ISUB = 0x64, FSUB = 0x66, IMUL = 0x68, FMUL = 0x6a;
+    private static final int IDIV = 0x6c, FDIV = 0x6e, IREM = 0x70, INEG = 0x74, FNEG = 0x76;
+    private static final int IAND = 0x7e, IOR = 0x80, IXOR = 0x82, I2F = 0x86, F2I = 0x8b;
+    private static final int FCMPL = 0x95, FCMPG = 0x96;
+    private static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e;
+    private static final int IF_ICMPEQ = 0x9f, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2, IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4;
+    private static final int GOTO = 0xa7, IRETURN = 0xac, RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8, NEW = 0xbb, ATHROW = 0xbf;
+
+    private final Program program;
+    private final int header;
+    private final int end;
+    private final byte[] types;
+
+    private final byte[][] states;
+    private int maxDepth = 0;
+    private final Map<Integer, Integer> exits = new LinkedHashMap<>();
+    private final int[] locals;
+    private final boolean[] saved;
+
+    private final ConstantPool pool = new ConstantPool();
+    private final Code body = new Code();
+    private final int[] offsets;
+    private final List<int[]> branches = new ArrayList<>();
+
+    private LoopCompiler(Program program, int header, int end, byte[] variableTags) {
+        this.program = program;
+        this.header = header;
+        this.end = end;
+        this.types = variableTags;
+        this.states = new byte[end - header + 1][];
+        this.offsets = new int[end - header + 1];
+        this.locals = new int[variableTags.length];
+        this.saved = new boolean[variableTags.length];
+    }
+
+    /**
+     * Compiles the loop whose header is {@code header} and whose back edge is
+     * the {@code jmp} at {@code end}. Every variable in {@link #variables} must
+     * be assigned; their tags give the types the loop is compiled for.
+     *
+     * @return the compiled loop, or null if the region cannot be compiled
+     */
+    static CompiledLoop compile(Program program, int header, int end, byte[] variableTags) {
+        LoopCompiler compiler = new LoopCompiler(program, header, end, variableTags);
+        if (!compiler.analyze()) {
+            return null;
+        }
+        byte[] bytes = compiler.emitClass();
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            MethodHandles.Lookup loop = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (CompiledLoop) loop.findConstructor(loop.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            // rejected by the JVM (e.g. the verifier); the interpreter still runs the loop
+            return null;
+        }
+    }
+
+    /** Slots of the variables the loop reads or writes. */
+    static int[] variables(Program program, int header, int end) {
+        Set<Integer> slots = new LinkedHashSet<>();
+        for (int pc = header; pc <= end; pc++) {
+            if (program.code[pc] == Bytecode.LOAD || program.code[pc] == Bytecode.SAVE) {
+                slots.add(program.operands[pc]);
+            }
+        }
+        return slots.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // ---- analysis: value types on the operand stack at every instruction ----
+
+    private boolean analyze() {
+        Deque<Integer> worklist = new ArrayDeque<>();
+        states[0] = new byte[0];
+        worklist.add(header);
+        while (!worklist.isEmpty()) {
+            int pc = worklist.poll();
+            byte[] in = states[pc - header];
+            byte[] out = transfer(pc, in);
+            if (out == null) {
+                return false;
+            }
+            maxDepth = Math.max(maxDepth, Math.max(in.length, out.length));
+            int op = program.code[pc];
+            if ((op == Bytecode.JMP || op == Bytecode.FJMP) && !flow(program.operands[pc], out, worklist)) {
+                return false;
+            }
+            if (op != Bytecode.JMP && !flow(pc + 1, out, worklist)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean flow(int target, byte[] state, Deque<Integer> worklist) {
+        if (target < header || target > end) {
+            exits.put(target, -1);
+            return state.length == 0;
+        }
+        byte[] known = states[target - header];
+        if (known == null) {
+            states[target - header] = state;
+            worklist.add(target);
+            return true;
+        }
+        return Arrays.equals(known, state);
+    }
+
+    /** The stack after the instruction at {@code pc}, or null if it is not supported. */
+    private byte[] transfer(int pc, byte[] in) {
+        int operand = program.operands[pc];
+        return switch (program.code[pc]) {
+            case Bytecode.PUSH_I -> push(in, Bytecode.T_INT);
+            case Bytecode.PUSH_F -> push(in, Bytecode.T_FLOAT);
+            case Bytecode.PUSH_B -> push(in, Bytecode.T_BOOL);
+            case Bytecode.LOAD -> numeric(types[operand]) ? push(in, types[operand]) : null;
+            case Bytecode.SAVE -> top(in) == types[operand] && numeric(types[operand]) ? pop(in) : null;
+            case Bytecode.POP -> in.length > 0 ? pop(in) : null;
+            case Bytecode.ADD_I, Bytecode.SUB_I, Bytecode.MUL_I, Bytecode.DIV_I, Bytecode.MOD_I ->
+                    binary(in, Bytecode.T_INT, Bytecode.T_INT);
+            case Bytecode.ADD_F, Bytecode.SUB_F, Bytecode.MUL_F, Bytecode.DIV_F ->
+                    binary(in, Bytecode.T_FLOAT, Bytecode.T_FLOAT);
+            case Bytecode.GT_I, Bytecode.LT_I, Bytecode.GE_I, Bytecode.LE_I, Bytecode.EQ_I ->
+                    binary(in, Bytecode.T_INT, Bytecode.T_BOOL);
+            case Bytecode.GT_F, Bytecode.LT_F, Bytecode.GE_F, Bytecode.LE_F, Bytecode.EQ_F ->
+                    binary(in, Bytecode.T_FLOAT, Bytecode.T_BOOL);
+            case Bytecode.EQ_B, Bytecode.AND, Bytecode.OR -> binary(in, Bytecode.T_BOOL, Bytecode.T_BOOL);
+            case Bytecode.NOT -> unary(in, Bytecode.T_BOOL, Bytecode.T_BOOL);
+            case Bytecode.UMINUS_I -> unary(in, Bytecode.T_INT, Bytecode.T_INT);
+            case Bytecode.UMINUS_F -> unary(in, Bytecode.T_FLOAT, Bytecode.T_FLOAT);
+            case Bytecode.ITOF -> unary(in, Bytecode.T_INT, Bytecode.T_FLOAT);
+            case Bytecode.JMP -> in;
+            case Bytecode.FJMP -> numeric(top(in)) ? pop(in) : null;
+            default -> null;
+        };
+    }
+
+    private static boolean numeric(byte type) {
+        return type == Bytecode.T_INT || type == Bytecode.T_FLOAT || type == Bytecode.T_BOOL;
+    }
+
+    private static byte top(byte[] state) {
+        return state.length > 0 ? state[state.length - 1] : 0;
+    }
+
+    private static byte[] push(byte[] state, byte type) {
+        byte[] out = Arrays.copyOf(state, state.length + 1);
+        out[state.length] = type;
+        return out;
+    }
+
+    private static byte[] pop(byte[] state) {
+        return Arrays.copyOf(state, state.length - 1);
+    }
+
+    private static byte[] unary(byte[] state, byte operand, byte result) {
+        return top(state) == operand ? push(pop(state), result) : null;
+    }
+
+    private static byte[] binary(byte[] state, byte operand, byte result) {
+        if (state.length < 2 || state[state.length - 1] != operand || state[state.length - 2] != operand) {
+            return null;
+        }
+        return push(Arrays.copyOf(state, state.length - 2), result);
+    }
+
+    // ---- code generation ----
+
+    private byte[] emitClass() {
+        int[] slots = variables(program, header, end);
+        int next = 2; // 0 = this, 1 = the variable array
+        for (int slot : slots) {
+            locals[slot] = next++;
+        }
+        if (next > 256) {
+            return null;
+        }
+
+        for (int slot : slots) {
+            body.op(ALOAD_1);
+            pushInt(slot);
+            body.op(IALOAD);
+            if (types[slot] == Bytecode.T_FLOAT) {
+                body.op(INVOKESTATIC).u2(pool.method("java/lang/Float", "intBitsToFloat", "(I)F"));
+            }
+            body.op(types[slot] == Bytecode.T_FLOAT ? FSTORE : ISTORE).u1(locals[slot]);
+        }
+        for (int pc = header; pc <= end; pc++) {
+            if (states[pc - header] != null) {
+                offsets[pc - header] = body.size();
+                emit(pc);
+            }
+        }
+        for (Map.Entry<Integer, Integer> exit : exits.entrySet()) {
+            exit.setValue(body.size());
+            for (int slot : slots) {
+                if (saved[slot]) {
+                    body.op(ALOAD_1);
+                    pushInt(slot);
+                    body.op(types[slot] == Bytecode.T_FLOAT ? FLOAD : ILOAD).u1(locals[slot]);
+                    if (types[slot] == Bytecode.T_FLOAT) {
+                        body.op(INVOKESTATIC).u2(pool.method("java/lang/Float", "floatToRawIntBits", "(F)I"));
+                    }
+                    body.op(IASTORE);
+                }
+            }
+            pushInt(exit.getKey());
+            body.op(IRETURN);
+        }
+
+        for (int[] branch : branches) {
+            int target = branch[1];
+            int offset = (target >= header && target <= end ? offsets[target - header] : exits.get(target)) - branch[0];
+            if (offset != (short) offset) {
+                return null;
+            }
+            body.patch(branch[0] + 1, offset);
+        }
+        if (body.size() > 65535) {
+            return null;
+        }
+        return classFile(next);
+    }
+
+    private void emit(int pc) {
+        int operand = program.operands[pc];
+        switch (program.code[pc]) {
+            case Bytecode.PUSH_I -> pushInt(operand);
+            case Bytecode.PUSH_F -> {
+                int bits = Float.floatToRawIntBits(program.floats[operand]);
+                if (bits == 0) {
+                    body.op(FCONST_0);
+                } else {
+                    ldc(pool.floatBits(bits));
+                }
+            }
+            case Bytecode.PUSH_B -> body.op(operand != 0 ? ICONST_1 : ICONST_0);
+            case Bytecode.LOAD -> body.op(types[operand] == Bytecode.T_FLOAT ? FLOAD : ILOAD).u1(locals[operand]);
+            case Bytecode.SAVE -> {
+                body.op(types[operand] == Bytecode.T_FLOAT ? FSTORE : ISTORE).u1(locals[operand]);
+                saved[operand] = true;
+            }
+            case Bytecode.POP -> body.op(POP);
+
+            case Bytecode.ADD_I -> body.op(IADD);
+            case Bytecode.SUB_I -> body.op(ISUB);
+            case Bytecode.MUL_I -> body.op(IMUL);
+            case Bytecode.DIV_I -> { checkDivisor(false); body.op(IDIV); }
+            case Bytecode.MOD_I -> { checkDivisor(false); body.op(IREM); }
+            case Bytecode.ADD_F -> body.op(FADD);
+            case Bytecode.SUB_F -> body.op(FSUB);
+            case Bytecode.MUL_F -> body.op(FMUL);
+            case Bytecode.DIV_F -> { checkDivisor(true); body.op(FDIV); }
+
+            case Bytecode.GT_I -> compare(IF_ICMPGT);
+            case Bytecode.LT_I -> compare(IF_ICMPLT);
+            case Bytecode.GE_I -> compare(IF_ICMPGE);
+            case Bytecode.LE_I -> compare(IF_ICMPLE);
+            case Bytecode.EQ_I, Bytecode.EQ_B -> compare(IF_ICMPEQ);
+            // fcmpl/fcmpg are picked so that a NaN operand makes every comparison false
+            case Bytecode.GT_F -> { body.op(FCMPL); compare(IFGT); }
+            case Bytecode.GE_F -> { body.op(FCMPL); compare(IFGE); }
+            case Bytecode.LT_F -> { body.op(FCMPG); compare(IFLT); }
+            case Bytecode.LE_F -> { body.op(FCMPG); compare(IFLE); }
+            case Bytecode.EQ_F -> { body.op(FCMPL); compare(IFEQ); }
+
+            case Bytecode.AND -> body.op(IAND);
+            case Bytecode.OR -> body.op(IOR);
+            case Bytecode.NOT -> body.op(ICONST_1).op(IXOR);
+            case Bytecode.UMINUS_I -> body.op(INEG);
+            case Bytecode.UMINUS_F -> body.op(FNEG);
+            case Bytecode.ITOF -> body.op(I2F);
+
+            case Bytecode.JMP -> branch(GOTO, operand);
+            case Bytecode.FJMP -> {
+                if (top(states[pc - header]) == Bytecode.T_FLOAT) {
+                    body.op(F2I);
+                }
+                branch(IFEQ, operand);
+            }
+            default -> throw new IllegalStateException("Not compilable: " + Bytecode.name(program.code[pc]));
+        }
+    }
+
+    /** Leaves 1 or 0 on the stack depending on {@code jump}'s condition. */
+    private void compare(int jump) {
+        body.op(jump).u2(7).op(ICONST_0).op(GOTO).u2(4).op(ICONST_1);
+    }
+
+    /** Throws the interpreter's "Division by zero" if the divisor on top of the stack is zero. */
+    private void checkDivisor(boolean isFloat) {
+        body.op(DUP);
+        if (isFloat) {
+            body.op(FCONST_0).op(FCMPL);
+        }
+        body.op(IFNE).u2(14)
+                .op(NEW).u2(pool.type("java/lang/RuntimeException"))
+                .op(DUP)
+                .op(LDC_W).u2(pool.string("Division by zero"))
+                .op(INVOKESPECIAL).u2(pool.method("java/lang/RuntimeException", "<init>", "(Ljava/lang/String;)V"))
+                .op(ATHROW);
+    }
+
+    private void branch(int opcode, int target) {
+        branches.add(new int[]{body.size(), target});
+        body.op(opcode).u2(0);
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            body.op(ICONST_0 + value);
+        } else if (value == (byte) value) {
+            body.op(BIPUSH).u1(value & 0xff);
+        } else if (value == (short) value) {
+            body.op(SIPUSH).u2(value);
+        } else {
+            ldc(pool.integer(value));
+        }
+    }
+
+    private void ldc(int index) {
+        if (index < 256) {
+            body.op(LDC).u1(index);
+        } else {
+            body.op(LDC_W).u2(index);
+        }
+    }
+
+    private byte[] classFile(int maxLocals) {
+        int thisClass = pool.type(CLASS_NAME);
+        int superClass = pool.type("java/lang/Object");
+        int loopInterface = pool.type(INTERFACE_NAME);
+        int objectInit = pool.method("java/lang/Object", "<init>", "()V");
+        Code init = new Code().op(ALOAD_0).op(INVOKESPECIAL).u2(objectInit).op(RETURN);
+
+        int codeName = pool.utf8("Code");
+        int initName = pool.utf8("<init>");
+        int initType = pool.utf8("()V");
+        int runName = pool.utf8("run");
+        int runType = pool.utf8("([I)I");
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            pool.writeTo(out);
+            out.writeShort(0x0031); // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(loopInterface);
+            out.writeShort(0); // fields
+            out.writeShort(2);
+            method(out, codeName, initName, initType, 1, 1, init);
+            method(out, codeName, runName, runType, maxDepth + 4, maxLocals, body);
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void method(DataOutputStream out, int codeName, int name, int type,
+                               int maxStack, int maxLocals, Code code) throws IOException {
+        out.writeShort(0x0001); // public
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.size());
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.size());
+        out.write(code.bytes, 0, code.size());
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    /** A growable method body. */
+    private static final class Code {
+        private byte[] bytes = new byte[256];
+        private int size = 0;
+
+        Code op(int opcode) {
+            return u1(opcode);
+        }
+
+        Code u1(int value) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) value;
+            return this;
+        }
+
+        Code u2(int value) {
+            return u1(value >> 8).u1(value);
+        }
+
+        void patch(int at, int value) {
+            bytes[at] = (byte) (value >> 8);
+            bytes[at + 1] = (byte) value;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    /** Class file constant pool; equal constants share one entry. */
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            return lookup("U" + value, 1, () -> out.writeUTF(value));
+        }
+
+        int type(String name) {
+            int utf8 = utf8(name);
+            return lookup("C" + name, 7, () -> out.writeShort(utf8));
+        }
+
+        int string(String value) {
+            int utf8 = utf8(value);
+            return lookup("S" + value, 8, () -> out.writeShort(utf8));
+        }
+
+        int integer(int value) {
+            return lookup("I" + value, 3, () -> out.writeInt(value));
+        }
+
+        int floatBits(int bits) {
+            return lookup("F" + bits, 4, () -> out.writeInt(bits));
+        }
+
+        int method(String owner, String name, String descriptor) {
+            int type = type(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int nameAndType = lookup("N" + name + " " + descriptor, 12, () -> {
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+            return lookup("M" + owner + "." + name + descriptor, 10, () -> {
+                out.writeShort(type);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        private int lookup(String key, int tag, Entry entry) {
+            Integer index = entries.get(key);
+            return index != null ? index : add(key, tag, entry);
+        }
+
+        private int add(String key, int tag, Entry entry) {
+            try {
+                out.writeByte(tag);
+                entry.write();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            entries.put(key, count);
+            return count++;
+        }
+
+        void writeTo(DataOutputStream target) throws IOException {
+            target.writeShort(count);
+            bytes.writeTo(target);
+        }
+
+        private interface Entry {
+            void write() throws IOException;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package cz.university.runtime;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffered UTF-8 output of {@code write} statements. Lines are encoded
+ * straight into one reusable {@link ByteBuffer} (ASCII without going through
+ * the encoder) and handed to the channel in large chunks instead of one
+ * flushing {@code println} per statement.
+ *
+ * <p>The buffer is written out when it is full, at the latest
+ * {@link #MAX_DELAY_NANOS} after the oldest pending line was added, and
+ * whenever the machine calls {@link #flush()}: before every {@code read}, so
+ * prompts appear before the program waits for input, and when the program
+ * ends, normally or with an error. The deadline is kept by a shared daemon
+ * thread, so a line printed before a long computation still appears on time;
+ * it takes the same lock as {@link #println} and {@link #flush}, and a write
+ * error it hits is thrown by the next call of either.</p>
+ */
+public final class Output {
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    static final long MAX_DELAY_NANOS = 100_000_000L;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "output-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final WritableByteChannel channel;
+    private final OutputStream stream;
+    private final ByteBuffer buffer;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private long pendingSince;
+    private boolean scheduled;
+    private UncheckedIOException failure;
+
+    private Output(WritableByteChannel channel, OutputStream stream, int capacity) {
+        this.channel = channel;
+        this.stream = stream;
+        this.buffer = ByteBuffer.allocate(capacity);
+    }
+
+    public Output(WritableByteChannel channel, int capacity) {
+        this(channel, null, capacity);
+    }
+
+    /** Writes to {@code stream} (typically the current {@code System.out}), flushing it with every chunk. */
+    public static Output of(OutputStream stream) {
+        return new Output(Channels.newChannel(stream), stream, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Writes to the process's standard output through a {@link java.nio.channels.FileChannel},
+     * bypassing {@code System.out}, which is flushed first so earlier output stays in front.
+     */
+    public static Output stdout() {
+        System.out.flush();
+        return new Output(new FileOutputStream(FileDescriptor.out).getChannel(), DEFAULT_CAPACITY);
+    }
+
+    public synchronized void println(CharSequence line) {
+        rethrow();
+        if (buffer.position() == 0) {
+            pendingSince = System.nanoTime();
+            schedule(MAX_DELAY_NANOS);
+        }
+        put(line);
+        put(LINE_SEPARATOR);
+    }
+
+    public synchronized void flush() {
+        rethrow();
+        drain();
+        if (stream != null) {
+            try {
+                stream.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void schedule(long delayNanos) {
+        if (!scheduled) {
+            scheduled = true;
+            FLUSHER.schedule(this::flushIfDue, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /** Runs on the flusher thread: writes the buffer out if its oldest line has waited long enough. */
+    private synchronized void flushIfDue() {
+        scheduled = false;
+        if (buffer.position() == 0 || failure != null) {
+            return;
+        }
+        long waited = System.nanoTime() - pendingSince;
+        if (waited < MAX_DELAY_NANOS) {
+            schedule(MAX_DELAY_NANOS - waited); // flushed and refilled since this was scheduled
+            return;
+        }
+        try {
+            flush();
+        } catch (UncheckedIOException e) {
+            failure = e;
+        }
+    }
+
+    private void rethrow() {
+        if (failure != null) {
+            UncheckedIOException e = failure;
+            failure = null;
+            throw e;
+        }
+    }
+
+    private void put(CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                encode(CharBuffer.wrap(text, i, length));
+                return;
+            }
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte) c);
+        }
+    }
+
+    private void encode(CharBuffer chars) {
+        encoder.reset();
+        while (encoder.encode(chars, buffer, true) == CoderResult.OVERFLOW) {
+            drain();
+        }
+        while (encoder.flush(buffer) == CoderResult.OVERFLOW) {
+            drain();
+        }
+    }
+
+    private void drain() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            buffer.clear();
+        }
+    }
+}
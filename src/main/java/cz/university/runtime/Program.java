@@ -0,0 +1,424 @@
+package cz.university.runtime;
+
+import cz.university.codegen.Instruction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decoded form of a stack program: one opcode per instruction plus a single
+ * operand word whose meaning depends on the opcode.
+ *
+ * <ul>
+ *   <li>{@code PUSH_I} - the integer itself</li>
+ *   <li>{@code PUSH_F} - index into {@link #floats}</li>
+ *   <li>{@code PUSH_S}, {@code INVALID} - index into {@link #strings}</li>
+ *   <li>{@code LOAD}, {@code SAVE} - variable slot; {@link #variables} holds the slot names</li>
+ *   <li>{@code PUSH_B} - 1 for true, 0 for false</li>
+ *   <li>{@code JMP}, {@code FJMP} - absolute index of the target instruction</li>
+ *   <li>{@code PRINT}, {@code FAPPEND}, {@code FWRITE} - number of values</li>
+ *   <li>{@code FOPEN} - number of string arguments (1 or 2), filled in by the {@link Linker}</li>
+ * </ul>
+ *
+ * <p>A decoded program still contains {@code label} pseudo-ops and has not been
+ * verified; {@link Linker#link(Program)} produces the linked form.</p>
+ *
+ * <p>{@link #lines}, when present, is the debug line table: the source line of
+ * each instruction, or -1 where it is unknown.</p>
+ *
+ * <p>A linked program also has {@link #dispatch}: {@link #code} with the first
+ * opcode of common sequences replaced by a superinstruction (see
+ * {@link Superinstructions}). {@link #code} itself always keeps the plain
+ * opcodes.</p>
+ */
+public final class Program {
+
+    final int[] code;
+    final int[] operands;
+    final float[] floats;
+    final String[] strings;
+    final String[] variables;
+    final int[] lines;
+    final int[] dispatch;
+    final boolean linked;
+    final int maxStack;
+
+    Program(int[] code, int[] operands, float[] floats, String[] strings, String[] variables) {
+        this(code, operands, floats, strings, variables, null, null, false, 0);
+    }
+
+    Program(int[] code, int[] operands, float[] floats, String[] strings, String[] variables, int[] lines) {
+        this(code, operands, floats, strings, variables, lines, null, false, 0);
+    }
+
+    Program(int[] code, int[] operands, float[] floats, String[] strings, String[] variables,
+            int[] lines, int[] dispatch, boolean linked, int maxStack) {
+        this.code = code;
+        this.lines = lines;
+        this.dispatch = dispatch;
+        this.operands = operands;
+        this.floats = floats;
+        this.strings = strings;
+        this.variables = variables;
+        this.linked = linked;
+        this.maxStack = maxStack;
+    }
+
+    public boolean isLinked() {
+        return linked;
+    }
+
+    public int maxStack() {
+        return maxStack;
+    }
+
+    public int variableCount() {
+        return variables.length;
+    }
+
+    public int size() {
+        return code.length;
+    }
+
+    public int opcode(int index) {
+        return code[index];
+    }
+
+    public int operand(int index) {
+        return operands[index];
+    }
+
+    /** Opcode the machine dispatches on at {@code index}, which may be a superinstruction. */
+    public int dispatch(int index) {
+        return dispatch != null ? dispatch[index] : code[index];
+    }
+
+    public boolean hasLines() {
+        return lines != null;
+    }
+
+    public int line(int index) {
+        return lines != null ? lines[index] : -1;
+    }
+
+    /**
+     * Parses the textual instruction listing produced by
+     * {@code CodeGeneratorVisitor.saveToFile}. Empty lines are dropped and every
+     * label reference is resolved to an instruction index, so nothing has to be
+     * parsed again during execution. Variables get slots in order of first
+     * appearance.
+     */
+    public static Program decode(List<String> lines) {
+        List<String> source = new ArrayList<>(lines.size());
+        Map<String, Integer> labels = new HashMap<>();
+        for (String raw : lines) {
+            String line = raw.trim();
+            if (line.isEmpty()) continue;
+            if (line.startsWith("label")) {
+                String[] parts = line.split("\\s+");
+                if (parts.length >= 2) {
+                    labels.put(parts[1], source.size());
+                }
+            }
+            source.add(line);
+        }
+
+        Decoder decoder = new Decoder(source.size(), labels, Map.of());
+        for (String line : source) {
+            decoder.decode(line);
+        }
+        return decoder.build(null);
+    }
+
+    /**
+     * Builds a program straight from the code generator's instruction list.
+     * Variable accesses use the slots assigned by the symbol table; instructions
+     * built without a slot fall back to first-appearance numbering.
+     */
+    public static Program assemble(List<Instruction> instructions) {
+        Map<String, Integer> labels = new HashMap<>();
+        Map<String, Integer> slots = new HashMap<>();
+        for (int i = 0; i < instructions.size(); i++) {
+            Instruction instr = instructions.get(i);
+            if (instr.getOpCode() == Instruction.OpCode.LABEL) {
+                labels.put(instr.getOperand(), i);
+            } else if (instr.getSlot() >= 0) {
+                slots.put(instr.getOperand(), instr.getSlot());
+            }
+        }
+
+        Decoder decoder = new Decoder(instructions.size(), labels, slots);
+        int[] lines = new int[instructions.size()];
+        boolean anyLine = false;
+        for (int i = 0; i < lines.length; i++) {
+            Instruction instr = instructions.get(i);
+            decoder.decode(instr);
+            lines[i] = instr.getLine();
+            anyLine |= lines[i] >= 0;
+        }
+        return decoder.build(anyLine ? lines : null);
+    }
+
+    private static final class Decoder {
+        private final int[] code;
+        private final int[] operands;
+        private final Map<String, Integer> labels;
+        private final List<Float> floats = new ArrayList<>();
+        private final Map<Float, Integer> floatIndex = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final Map<String, Integer> stringIndex = new HashMap<>();
+        private final Map<String, Integer> slots;
+        private final List<String> variables = new ArrayList<>();
+        private int size = 0;
+
+        Decoder(int capacity, Map<String, Integer> labels, Map<String, Integer> slots) {
+            this.code = new int[capacity];
+            this.operands = new int[capacity];
+            this.labels = labels;
+            this.slots = new HashMap<>(slots);
+            for (Map.Entry<String, Integer> entry : slots.entrySet()) {
+                nameSlot(entry.getValue(), entry.getKey());
+            }
+        }
+
+        void decode(Instruction instr) {
+            String operand = instr.getOperand();
+            try {
+                switch (instr.getOpCode()) {
+                    case PUSH_I -> emit(Bytecode.PUSH_I, Integer.parseInt(operand));
+                    case PUSH_F -> emit(Bytecode.PUSH_F, floatConstant(Float.parseFloat(operand)));
+                    case PUSH_S -> push("S", operand);
+                    case PUSH_B -> emit(Bytecode.PUSH_B, Boolean.parseBoolean(operand) ? 1 : 0);
+                    case POP -> emit(Bytecode.POP, 0);
+                    case LOAD -> emit(Bytecode.LOAD, variable(operand));
+                    case SAVE_I, SAVE_F, SAVE_S, SAVE_B, SAVE_FILE -> emit(Bytecode.SAVE, variable(operand));
+                    case PRINT -> emit(Bytecode.PRINT, Integer.parseInt(operand));
+                    case READ_I -> emit(Bytecode.READ_I, 0);
+                    case READ_F -> emit(Bytecode.READ_F, 0);
+                    case READ_S -> emit(Bytecode.READ_S, 0);
+                    case READ_B -> emit(Bytecode.READ_B, 0);
+                    case ADD_I -> emit(Bytecode.ADD_I, 0);
+                    case SUB_I -> emit(Bytecode.SUB_I, 0);
+                    case MUL_I -> emit(Bytecode.MUL_I, 0);
+                    case DIV_I -> emit(Bytecode.DIV_I, 0);
+                    case MOD -> emit(Bytecode.MOD_I, 0);
+                    case ADD_F -> emit(Bytecode.ADD_F, 0);
+                    case SUB_F -> emit(Bytecode.SUB_F, 0);
+                    case MUL_F -> emit(Bytecode.MUL_F, 0);
+                    case DIV_F -> emit(Bytecode.DIV_F, 0);
+                    case GT_I -> emit(Bytecode.GT_I, 0);
+                    case GT_F -> emit(Bytecode.GT_F, 0);
+                    case LT_I -> emit(Bytecode.LT_I, 0);
+                    case LT_F -> emit(Bytecode.LT_F, 0);
+                    case EQ_I -> emit(Bytecode.EQ_I, 0);
+                    case EQ_F -> emit(Bytecode.EQ_F, 0);
+                    case EQ_S -> emit(Bytecode.EQ_S, 0);
+                    case EQ_B -> emit(Bytecode.EQ_B, 0);
+                    case UMINUS_I -> emit(Bytecode.UMINUS_I, 0);
+                    case UMINUS_F -> emit(Bytecode.UMINUS_F, 0);
+                    case CONCAT -> emit(Bytecode.CONCAT, 0);
+                    case AND -> emit(Bytecode.AND, 0);
+                    case OR -> emit(Bytecode.OR, 0);
+                    case NOT -> emit(Bytecode.NOT, 0);
+                    case ITOF -> emit(Bytecode.ITOF, 0);
+                    case LABEL -> emit(Bytecode.LABEL, 0);
+                    case JMP -> jump(Bytecode.JMP, operand);
+                    case FJMP -> jump(Bytecode.FJMP, operand);
+                    case FOPEN -> emit(Bytecode.FOPEN, 0);
+                    case FAPPEND_N -> emit(Bytecode.FAPPEND, Integer.parseInt(operand));
+                    case FWRITE -> emit(Bytecode.FWRITE, Integer.parseInt(operand));
+                }
+            } catch (RuntimeException e) {
+                invalid("Invalid instruction '" + instr + "': " + e.getMessage());
+            }
+        }
+
+        void decode(String line) {
+            String[] parts = line.split("\\s+", 3);
+            String command = parts[0];
+            String arg = parts.length > 1 ? parts[1] : null;
+
+            try {
+                switch (command) {
+                    case "push" -> push(arg, parts.length > 2 ? parts[2] : null);
+                    case "pop" -> emit(Bytecode.POP, 0);
+                    case "load" -> emit(Bytecode.LOAD, variable(arg));
+                    case "save" -> emit(Bytecode.SAVE, variable(arg));
+                    case "print" -> {
+                        if (arg == null) {
+                            invalid("Invalid PRINT instruction: " + line);
+                        } else {
+                            emit(Bytecode.PRINT, Integer.parseInt(arg));
+                        }
+                    }
+                    case "read" -> read(arg);
+                    case "add", "sub", "mul", "div", "mod", "gt", "lt", "ge", "le", "eq" ->
+                            binary(command, arg == null ? "I" : arg);
+                    case "uminus" -> {
+                        if ("I".equals(arg)) emit(Bytecode.UMINUS_I, 0);
+                        else if ("F".equals(arg)) emit(Bytecode.UMINUS_F, 0);
+                        else invalid("Unknown UMINUS type: " + arg);
+                    }
+                    case "concat" -> emit(Bytecode.CONCAT, 0);
+                    case "and" -> emit(Bytecode.AND, 0);
+                    case "or" -> emit(Bytecode.OR, 0);
+                    case "not" -> emit(Bytecode.NOT, 0);
+                    case "itof" -> emit(Bytecode.ITOF, 0);
+                    case "label" -> emit(Bytecode.LABEL, 0);
+                    case "jmp" -> jump(Bytecode.JMP, arg);
+                    case "fjmp" -> jump(Bytecode.FJMP, arg);
+                    case "fopen" -> emit(Bytecode.FOPEN, 0);
+                    case "fappend" -> emit(Bytecode.FAPPEND, Integer.parseInt(arg));
+                    case "fwrite" -> emit(Bytecode.FWRITE, Integer.parseInt(arg));
+                    default -> invalid("Unknown instruction: " + command);
+                }
+            } catch (RuntimeException e) {
+                invalid("Invalid instruction '" + line + "': " + e.getMessage());
+            }
+        }
+
+        private void push(String type, String value) {
+            if (value == null) {
+                invalid("Invalid PUSH instruction: push " + type);
+                return;
+            }
+            switch (type) {
+                case "I" -> emit(Bytecode.PUSH_I, Integer.parseInt(value));
+                case "F" -> emit(Bytecode.PUSH_F, floatConstant(Float.parseFloat(value)));
+                case "S" -> {
+                    if (value.startsWith("\"") && value.endsWith("\"") && value.length() >= 2) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    emit(Bytecode.PUSH_S, string(value));
+                }
+                case "B" -> emit(Bytecode.PUSH_B, Boolean.parseBoolean(value) ? 1 : 0);
+                default -> invalid("Unknown PUSH type: " + type);
+            }
+        }
+
+        private void read(String type) {
+            switch (type == null ? "" : type) {
+                case "I" -> emit(Bytecode.READ_I, 0);
+                case "F" -> emit(Bytecode.READ_F, 0);
+                case "S" -> emit(Bytecode.READ_S, 0);
+                case "B" -> emit(Bytecode.READ_B, 0);
+                default -> invalid("Invalid input during READ");
+            }
+        }
+
+        private void binary(String op, String type) {
+            int opcode = switch (type) {
+                case "I" -> switch (op) {
+                    case "add" -> Bytecode.ADD_I;
+                    case "sub" -> Bytecode.SUB_I;
+                    case "mul" -> Bytecode.MUL_I;
+                    case "div" -> Bytecode.DIV_I;
+                    case "mod" -> Bytecode.MOD_I;
+                    case "gt" -> Bytecode.GT_I;
+                    case "lt" -> Bytecode.LT_I;
+                    case "ge" -> Bytecode.GE_I;
+                    case "le" -> Bytecode.LE_I;
+                    default -> Bytecode.EQ_I;
+                };
+                case "F" -> switch (op) {
+                    case "add" -> Bytecode.ADD_F;
+                    case "sub" -> Bytecode.SUB_F;
+                    case "mul" -> Bytecode.MUL_F;
+                    case "div" -> Bytecode.DIV_F;
+                    case "gt" -> Bytecode.GT_F;
+                    case "lt" -> Bytecode.LT_F;
+                    case "ge" -> Bytecode.GE_F;
+                    case "le" -> Bytecode.LE_F;
+                    case "eq" -> Bytecode.EQ_F;
+                    default -> -1;
+                };
+                case "S" -> "eq".equals(op) ? Bytecode.EQ_S : -1;
+                case "B" -> "eq".equals(op) ? Bytecode.EQ_B : -1;
+                default -> -2;
+            };
+
+            if (opcode == -2) {
+                invalid("Unknown type for binary operation: " + type);
+            } else if (opcode == -1) {
+                String kind = switch (type) {
+                    case "F" -> "float";
+                    case "S" -> "string";
+                    default -> "boolean";
+                };
+                invalid("Unsupported " + kind + " operation: " + op);
+            } else {
+                emit(opcode, 0);
+            }
+        }
+
+        private void jump(int opcode, String label) {
+            Integer target = labels.get(label);
+            if (target == null) {
+                invalid("Label '" + label + "' not found");
+            } else {
+                emit(opcode, target);
+            }
+        }
+
+        private void invalid(String message) {
+            emit(Bytecode.INVALID, string(message));
+        }
+
+        private void emit(int opcode, int operand) {
+            code[size] = opcode;
+            operands[size] = operand;
+            size++;
+        }
+
+        private int floatConstant(float value) {
+            return floatIndex.computeIfAbsent(value, v -> {
+                floats.add(v);
+                return floats.size() - 1;
+            });
+        }
+
+        private int variable(String name) {
+            if (name == null) {
+                throw new IllegalArgumentException("missing variable name");
+            }
+            Integer slot = slots.get(name);
+            if (slot == null) {
+                slot = variables.size();
+                slots.put(name, slot);
+                nameSlot(slot, name);
+            }
+            return slot;
+        }
+
+        private void nameSlot(int slot, String name) {
+            while (variables.size() <= slot) {
+                variables.add(null);
+            }
+            variables.set(slot, name);
+        }
+
+        private int string(String value) {
+            if (value == null) {
+                throw new IllegalArgumentException("missing operand");
+            }
+            return stringIndex.computeIfAbsent(value, v -> {
+                strings.add(v);
+                return strings.size() - 1;
+            });
+        }
+
+        Program build(int[] lines) {
+            float[] floatPool = new float[floats.size()];
+            for (int i = 0; i < floatPool.length; i++) {
+                floatPool[i] = floats.get(i);
+            }
+            String[] names = new String[variables.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = variables.get(i) != null ? variables.get(i) : "#" + i;
+            }
+            return new Program(code, operands, floatPool, strings.toArray(new String[0]), names, lines);
+        }
+    }
+}
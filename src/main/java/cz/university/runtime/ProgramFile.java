@@ -0,0 +1,182 @@
+package cz.university.runtime;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary on-disk form of a {@link Program}, loaded through a memory-mapped
+ * {@link FileChannel} so nothing is parsed line by line.
+ *
+ * <pre>
+ * header    magic "LANG", u2 version, u2 flags,
+ *           i4 code length, i4 float count, i4 string count, i4 variable count
+ * constants float pool (raw IEEE bits), string pool, variable names
+ *           (strings are i4 byte length + UTF-8)
+ * code      code length x (i4 opcode, i4 operand)
+ * lines     code length x i4, only if {@link #FLAG_LINES} is set
+ * </pre>
+ *
+ * All numbers are big-endian. The file always holds the unlinked program, so a
+ * loaded program goes through the {@link Linker}'s verifier like any other.
+ */
+public final class ProgramFile {
+
+    public static final int MAGIC = 0x4C414E47; // "LANG"
+    public static final short VERSION = 1;
+    public static final short FLAG_LINES = 1;
+
+    private static final int HEADER_SIZE = 4 + 2 + 2 + 4 * 4;
+
+    private ProgramFile() {
+    }
+
+    public static void write(Program program, Path path) throws IOException {
+        byte[][] strings = encode(program.strings);
+        byte[][] variables = encode(program.variables);
+        int size = HEADER_SIZE
+                + 4 * program.floats.length
+                + poolSize(strings) + poolSize(variables)
+                + 8 * program.code.length
+                + (program.lines != null ? 4 * program.code.length : 0);
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC);
+        out.putShort(VERSION);
+        out.putShort(program.lines != null ? FLAG_LINES : 0);
+        out.putInt(program.code.length);
+        out.putInt(program.floats.length);
+        out.putInt(strings.length);
+        out.putInt(variables.length);
+        for (float value : program.floats) {
+            out.putInt(Float.floatToRawIntBits(value));
+        }
+        putPool(out, strings);
+        putPool(out, variables);
+        for (int pc = 0; pc < program.code.length; pc++) {
+            out.putInt(program.code[pc]);
+            out.putInt(program.operands[pc]);
+        }
+        if (program.lines != null) {
+            for (int line : program.lines) {
+                out.putInt(line);
+            }
+        }
+        out.flip();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+    }
+
+    public static Program load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(in, path);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated program file: " + path);
+        }
+    }
+
+    private static Program read(ByteBuffer in, Path path) throws IOException {
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC) {
+            throw new IOException("Not a compiled program: " + path);
+        }
+        short version = in.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported program version " + version + " in " + path);
+        }
+        short flags = in.getShort();
+        int size = count(in, path);
+        int floatCount = count(in, path);
+        int stringCount = count(in, path);
+        int variableCount = count(in, path);
+
+        float[] floats = new float[floatCount];
+        for (int i = 0; i < floatCount; i++) {
+            floats[i] = Float.intBitsToFloat(in.getInt());
+        }
+        String[] strings = getPool(in, stringCount, path);
+        String[] variables = getPool(in, variableCount, path);
+
+        int[] code = new int[size];
+        int[] operands = new int[size];
+        for (int pc = 0; pc < size; pc++) {
+            code[pc] = in.getInt();
+            operands[pc] = in.getInt();
+            int limit = switch (code[pc]) {
+                case Bytecode.PUSH_F -> floatCount;
+                case Bytecode.PUSH_S, Bytecode.INVALID -> stringCount;
+                case Bytecode.LOAD, Bytecode.SAVE -> variableCount;
+                case Bytecode.JMP, Bytecode.FJMP -> size + 1; // a jump may target the end of the code
+                default -> Integer.MAX_VALUE;
+            };
+            if (limit != Integer.MAX_VALUE && (operands[pc] < 0 || operands[pc] >= limit)) {
+                String kind = code[pc] == Bytecode.JMP || code[pc] == Bytecode.FJMP ? "Jump target " : "Constant index ";
+                throw new IOException(kind + operands[pc] + " out of range at instruction "
+                        + pc + " in " + path);
+            }
+        }
+
+        int[] lines = null;
+        if ((flags & FLAG_LINES) != 0) {
+            lines = new int[size];
+            in.asIntBuffer().get(lines);
+        }
+        return new Program(code, operands, floats, strings, variables, lines);
+    }
+
+    private static int count(ByteBuffer in, Path path) throws IOException {
+        int count = in.getInt();
+        // every entry takes at least four bytes, which bounds what a valid file can declare
+        if (count < 0 || count > in.capacity() / 4) {
+            throw new IOException("Corrupt program file: " + path);
+        }
+        return count;
+    }
+
+    private static byte[][] encode(String[] values) {
+        byte[][] encoded = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            encoded[i] = values[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return encoded;
+    }
+
+    private static int poolSize(byte[][] pool) {
+        int size = 0;
+        for (byte[] entry : pool) {
+            size += 4 + entry.length;
+        }
+        return size;
+    }
+
+    private static void putPool(ByteBuffer out, byte[][] pool) {
+        for (byte[] entry : pool) {
+            out.putInt(entry.length);
+            out.put(entry);
+        }
+    }
+
+    private static String[] getPool(ByteBuffer in, int count, Path path) throws IOException {
+        String[] pool = new String[count];
+        for (int i = 0; i < count; i++) {
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                throw new IOException("Corrupt program file: " + path);
+            }
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            pool[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,401 @@
+package cz.university.runtime;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates verified stack code into a {@link RegisterProgram}.
+ *
+ * <p>The operand stack is simulated at translation time. {@code load} and
+ * {@code push} emit nothing: the stack entry simply names the variable's or
+ * the constant's register, so {@code load a; push I 1; add I; save a} becomes
+ * a single {@code add I a, a, #1}. Results go to the temporary of their stack
+ * level, and a {@code save} right after the instruction that produced the
+ * value redirects that instruction to the variable. Entries are copied to
+ * their temporaries only where the stack must have a fixed shape: at jumps and
+ * jump targets, and for the operations that take a run of values
+ * ({@code print}, {@code fappend}, {@code fwrite}).</p>
+ *
+ * <p>A forward analysis finds the loads of variables that may not have been
+ * assigned yet; only those get a {@code check}, and only the variables they
+ * read are marked on assignment.</p>
+ */
+public final class RegisterCompiler {
+
+    private record Constant(byte type, int value, Object ref) {
+    }
+
+    private final Program program;
+    private final Linker.Types types;
+    private final int temps;
+    private final int constantBase;
+    private final BitSet[] assigned;
+    private final boolean[] tracked;
+    private final boolean[] targets;
+
+    private final Map<Constant, Integer> constantIndex = new HashMap<>();
+    private final List<Constant> constants = new ArrayList<>();
+    private final List<Byte> valueTypes = new ArrayList<>();
+    private final List<int[]> fixups = new ArrayList<>();
+    private int[] code = new int[64];
+    private int size = 0;
+
+    // simulated operand stack: register, value type and the instruction (word offset) that wrote it, or -1
+    private final int[] stack;
+    private final byte[] stackTypes;
+    private final int[] producers;
+    private int depth = 0;
+
+    private RegisterCompiler(Program program) {
+        this.program = program;
+        this.types = Linker.types(program);
+        int maxStack = 0;
+        for (byte[] state : types.stacks()) {
+            if (state != null) maxStack = Math.max(maxStack, state.length);
+        }
+        this.temps = program.variables.length;
+        this.constantBase = temps + maxStack;
+        this.stack = new int[maxStack];
+        this.stackTypes = new byte[maxStack];
+        this.producers = new int[maxStack];
+        this.assigned = assignedBefore();
+        this.tracked = new boolean[temps];
+        this.targets = new boolean[program.size() + 1];
+        for (int pc = 0; pc < program.size(); pc++) {
+            int opcode = program.code[pc];
+            if (opcode == Bytecode.JMP || opcode == Bytecode.FJMP) {
+                targets[program.operands[pc]] = true;
+            } else if (opcode == Bytecode.LOAD && assigned[pc] != null && !assigned[pc].get(program.operands[pc])) {
+                tracked[program.operands[pc]] = true;
+            }
+        }
+    }
+
+    public static RegisterProgram compile(Program program) {
+        return new RegisterCompiler(program).translate();
+    }
+
+    private RegisterProgram translate() {
+        int n = program.size();
+        int[] start = new int[n + 1];
+        boolean live = true; // the previous instruction falls through
+        for (int pc = 0; pc < n; pc++) {
+            byte[] state = types.stacks()[pc];
+            if (state == null) {
+                start[pc] = size;
+                live = false;
+                continue;
+            }
+            if (targets[pc] || !live) {
+                if (live) materialize(depth);
+                enter(state);
+            }
+            start[pc] = size;
+            live = instruction(pc);
+        }
+        start[n] = size;
+        for (int[] fixup : fixups) {
+            code[fixup[0]] = start[fixup[1]];
+        }
+
+        int registers = constantBase + constants.size();
+        int[] values = new int[registers];
+        Object[] refs = new Object[registers];
+        for (int i = 0; i < constants.size(); i++) {
+            values[constantBase + i] = constants.get(i).value;
+            refs[constantBase + i] = constants.get(i).ref;
+        }
+        byte[] typeTable = new byte[valueTypes.size()];
+        for (int i = 0; i < typeTable.length; i++) {
+            typeTable[i] = valueTypes.get(i);
+        }
+        return new RegisterProgram(Arrays.copyOf(code, size), temps, constantBase, values, refs, typeTable,
+                program.strings, program.variables);
+    }
+
+    /** Translates one stack instruction; false when control never reaches the next one from here. */
+    private boolean instruction(int pc) {
+        int operand = program.operands[pc];
+        switch (program.code[pc]) {
+            case Bytecode.PUSH_I -> push(constant(Bytecode.T_INT, operand, null), Bytecode.T_INT, -1);
+            case Bytecode.PUSH_F -> push(constant(Bytecode.T_FLOAT,
+                    Float.floatToRawIntBits(program.floats[operand]), null), Bytecode.T_FLOAT, -1);
+            case Bytecode.PUSH_S -> push(constant(Bytecode.T_STRING, 0, program.strings[operand]), Bytecode.T_STRING, -1);
+            case Bytecode.PUSH_B -> push(constant(Bytecode.T_BOOL, operand, null), Bytecode.T_BOOL, -1);
+            case Bytecode.POP -> depth--;
+            case Bytecode.LOAD -> {
+                if (tracked[operand] && !assigned[pc].get(operand)) {
+                    emit(RegisterProgram.CHECK, operand, 0, 0);
+                }
+                byte type = types.variables()[operand];
+                if (type == 0) {
+                    return false; // never assigned anywhere: the check always fails
+                }
+                push(operand, type, -1);
+            }
+            case Bytecode.SAVE -> save(operand);
+            case Bytecode.PRINT -> {
+                int base = materialize(operand);
+                emit(RegisterProgram.PRINT, base, operand, valueTypes(depth - operand, operand));
+                depth -= operand;
+            }
+            case Bytecode.READ_I -> result(RegisterProgram.READ_I, 0, 0, Bytecode.T_INT);
+            case Bytecode.READ_F -> result(RegisterProgram.READ_F, 0, 0, Bytecode.T_FLOAT);
+            case Bytecode.READ_S -> result(RegisterProgram.READ_S, 0, 0, Bytecode.T_STRING);
+            case Bytecode.READ_B -> result(RegisterProgram.READ_B, 0, 0, Bytecode.T_BOOL);
+
+            case Bytecode.ADD_I -> binary(RegisterProgram.ADD_I, Bytecode.T_INT);
+            case Bytecode.SUB_I -> binary(RegisterProgram.SUB_I, Bytecode.T_INT);
+            case Bytecode.MUL_I -> binary(RegisterProgram.MUL_I, Bytecode.T_INT);
+            case Bytecode.DIV_I -> binary(RegisterProgram.DIV_I, Bytecode.T_INT);
+            case Bytecode.MOD_I -> binary(RegisterProgram.MOD_I, Bytecode.T_INT);
+            case Bytecode.ADD_F -> binary(RegisterProgram.ADD_F, Bytecode.T_FLOAT);
+            case Bytecode.SUB_F -> binary(RegisterProgram.SUB_F, Bytecode.T_FLOAT);
+            case Bytecode.MUL_F -> binary(RegisterProgram.MUL_F, Bytecode.T_FLOAT);
+            case Bytecode.DIV_F -> binary(RegisterProgram.DIV_F, Bytecode.T_FLOAT);
+
+            case Bytecode.LT_I -> binary(RegisterProgram.LT_I, Bytecode.T_BOOL);
+            case Bytecode.GT_I -> binary(RegisterProgram.GT_I, Bytecode.T_BOOL);
+            case Bytecode.LE_I -> binary(RegisterProgram.LE_I, Bytecode.T_BOOL);
+            case Bytecode.GE_I -> binary(RegisterProgram.GE_I, Bytecode.T_BOOL);
+            case Bytecode.EQ_I, Bytecode.EQ_B -> binary(RegisterProgram.EQ_I, Bytecode.T_BOOL);
+            case Bytecode.LT_F -> binary(RegisterProgram.LT_F, Bytecode.T_BOOL);
+            case Bytecode.GT_F -> binary(RegisterProgram.GT_F, Bytecode.T_BOOL);
+            case Bytecode.LE_F -> binary(RegisterProgram.LE_F, Bytecode.T_BOOL);
+            case Bytecode.GE_F -> binary(RegisterProgram.GE_F, Bytecode.T_BOOL);
+            case Bytecode.EQ_F -> binary(RegisterProgram.EQ_F, Bytecode.T_BOOL);
+            case Bytecode.EQ_S -> binary(RegisterProgram.EQ_S, Bytecode.T_BOOL);
+
+            case Bytecode.UMINUS_I -> unary(RegisterProgram.NEG_I, Bytecode.T_INT);
+            case Bytecode.UMINUS_F -> unary(RegisterProgram.NEG_F, Bytecode.T_FLOAT);
+            case Bytecode.NOT -> unary(RegisterProgram.NOT, Bytecode.T_BOOL);
+            case Bytecode.AND -> binary(RegisterProgram.AND, Bytecode.T_BOOL);
+            case Bytecode.OR -> binary(RegisterProgram.OR, Bytecode.T_BOOL);
+            case Bytecode.ITOF -> {
+                if (stackTypes[depth - 1] != Bytecode.T_FLOAT) {
+                    unary(RegisterProgram.ITOF, Bytecode.T_FLOAT);
+                }
+            }
+            case Bytecode.CONCAT -> {
+                int right = text(depth - 1);
+                int left = text(depth - 2);
+                depth -= 2;
+                result(RegisterProgram.CONCAT, left, right, Bytecode.T_STRING);
+            }
+
+            case Bytecode.LABEL -> {
+            }
+            case Bytecode.JMP -> {
+                materialize(depth);
+                jump(RegisterProgram.JMP, 0, 0, operand);
+                return false;
+            }
+            case Bytecode.FJMP -> branch(operand);
+            case Bytecode.FOPEN -> {
+                if (depth == 1) {
+                    depth = 0;
+                    result(RegisterProgram.FOPEN, stack[0], -1, Bytecode.T_FILE);
+                } else {
+                    depth -= 2;
+                    result(RegisterProgram.FOPEN, stack[depth], stack[depth + 1], Bytecode.T_FILE);
+                }
+            }
+            case Bytecode.FAPPEND, Bytecode.FWRITE -> {
+                int base = materialize(operand + 1);
+                int opcode = program.code[pc] == Bytecode.FAPPEND ? RegisterProgram.FAPPEND : RegisterProgram.FWRITE;
+                emit(opcode, base, operand, valueTypes(depth - operand, operand));
+                depth -= operand + 1;
+            }
+            case Bytecode.INVALID -> {
+                emit(RegisterProgram.INVALID, operand, 0, 0);
+                return false;
+            }
+            default -> throw new RuntimeException("Cannot translate opcode " + Bytecode.name(program.code[pc]));
+        }
+        return true;
+    }
+
+    private void save(int variable) {
+        depth--;
+        int register = stack[depth];
+        int producer = producers[depth];
+        for (int i = 0; i < depth; i++) {
+            if (stack[i] == variable) {
+                materialize(i, 1); // still needs the old value
+            }
+        }
+        if (producer >= 0 && producer == size - 4 && register == temps + depth) {
+            code[producer + 1] = variable;
+        } else {
+            emit(move(stackTypes[depth]), variable, register, 0);
+        }
+        if (tracked[variable]) {
+            emit(RegisterProgram.MARK, variable, 0, 0);
+        }
+    }
+
+    private void branch(int target) {
+        depth--;
+        int condition = stack[depth];
+        int producer = producers[depth];
+        if (depth == 0 && producer >= 0 && producer == size - 4 && condition == temps) {
+            int negated = switch (code[producer]) {
+                case RegisterProgram.LT_I -> RegisterProgram.JNLT_I;
+                case RegisterProgram.GT_I -> RegisterProgram.JNGT_I;
+                case RegisterProgram.EQ_I -> RegisterProgram.JNEQ_I;
+                default -> -1;
+            };
+            if (negated >= 0) {
+                // compare and branch in one: jump unless the comparison holds
+                size -= 4;
+                jump(negated, code[producer + 2], code[producer + 3], target);
+                return;
+            }
+        }
+        materialize(depth);
+        jump(stackTypes[depth] == Bytecode.T_FLOAT ? RegisterProgram.JF_F : RegisterProgram.JF, condition, 0, target);
+    }
+
+    private void unary(int opcode, byte type) {
+        depth--;
+        result(opcode, stack[depth], 0, type);
+    }
+
+    private void binary(int opcode, byte type) {
+        depth -= 2;
+        result(opcode, stack[depth], stack[depth + 1], type);
+    }
+
+    /** Emits an instruction writing the temporary of the current stack level and pushes its result. */
+    private void result(int opcode, int b, int c, byte type) {
+        int register = temps + depth;
+        emit(opcode, register, b, c);
+        push(register, type, size - 4);
+    }
+
+    /** Register holding stack entry {@code index} as a string, converting it in its temporary if needed. */
+    private int text(int index) {
+        if (stackTypes[index] == Bytecode.T_STRING) {
+            return stack[index];
+        }
+        emit(RegisterProgram.STR, temps + index, stack[index], stackTypes[index]);
+        return temps + index;
+    }
+
+    private void push(int register, byte type, int producer) {
+        stack[depth] = register;
+        stackTypes[depth] = type;
+        producers[depth] = producer;
+        depth++;
+    }
+
+    /** Stack state at a jump target: every entry in its temporary. */
+    private void enter(byte[] state) {
+        depth = state.length;
+        for (int i = 0; i < depth; i++) {
+            stack[i] = temps + i;
+            stackTypes[i] = state[i];
+            producers[i] = -1;
+        }
+    }
+
+    /** Moves the top {@code count} entries into their temporaries; returns the first register. */
+    private int materialize(int count) {
+        materialize(depth - count, count);
+        return temps + depth - count;
+    }
+
+    private void materialize(int from, int count) {
+        for (int i = from; i < from + count; i++) {
+            if (stack[i] != temps + i) {
+                emit(move(stackTypes[i]), temps + i, stack[i], 0);
+                stack[i] = temps + i;
+                producers[i] = size - 4;
+            }
+        }
+    }
+
+    private static int move(byte type) {
+        return type == Bytecode.T_STRING || type == Bytecode.T_FILE ? RegisterProgram.MOVE_REF : RegisterProgram.MOVE;
+    }
+
+    private int valueTypes(int from, int count) {
+        int offset = valueTypes.size();
+        for (int i = from; i < from + count; i++) {
+            valueTypes.add(stackTypes[i]);
+        }
+        return offset;
+    }
+
+    private int constant(byte type, int value, Object ref) {
+        return constantIndex.computeIfAbsent(new Constant(type, value, ref), c -> {
+            constants.add(c);
+            return constantBase + constants.size() - 1;
+        });
+    }
+
+    private void jump(int opcode, int b, int c, int target) {
+        emit(opcode, 0, b, c);
+        fixups.add(new int[]{size - 3, target});
+    }
+
+    private void emit(int opcode, int a, int b, int c) {
+        if (size + 4 > code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+        }
+        code[size++] = opcode;
+        code[size++] = a;
+        code[size++] = b;
+        code[size++] = c;
+    }
+
+    /** Variables assigned on every path to each instruction; null where unreachable. */
+    private BitSet[] assignedBefore() {
+        int n = program.size();
+        BitSet[] in = new BitSet[n + 1];
+        in[0] = new BitSet();
+        Deque<Integer> worklist = new ArrayDeque<>();
+        worklist.add(0);
+        while (!worklist.isEmpty()) {
+            int pc = worklist.poll();
+            if (pc == n) {
+                continue;
+            }
+            BitSet out = (BitSet) in[pc].clone();
+            int opcode = program.code[pc];
+            int operand = program.operands[pc];
+            if (opcode == Bytecode.SAVE) {
+                out.set(operand);
+            }
+            int[] successors = switch (opcode) {
+                case Bytecode.JMP -> new int[]{operand};
+                case Bytecode.FJMP -> new int[]{pc + 1, operand};
+                case Bytecode.INVALID -> new int[0];
+                default -> new int[]{pc + 1};
+            };
+            for (int next : successors) {
+                if (types.stacks()[next] == null) {
+                    continue;
+                }
+                if (in[next] == null) {
+                    in[next] = (BitSet) out.clone();
+                    worklist.add(next);
+                } else {
+                    BitSet merged = (BitSet) in[next].clone();
+                    merged.and(out);
+                    if (!merged.equals(in[next])) {
+                        in[next] = merged;
+                        worklist.add(next);
+                    }
+                }
+            }
+        }
+        return in;
+    }
+}
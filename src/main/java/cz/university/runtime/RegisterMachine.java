@@ -0,0 +1,206 @@
+package cz.university.runtime;
+
+import java.util.List;
+
+/**
+ * Executes {@link RegisterProgram}s. Behaves like {@link StackMachine} on the
+ * same stack program - same output, same runtime errors - but every
+ * instruction reads and writes registers directly, so there is no operand
+ * stack and no type tags: types were fixed by the {@link Linker} when the
+ * program was translated. Input, output and files are buffered the same way.
+ */
+public class RegisterMachine {
+    private Input input;
+    private final StringBuilder line = new StringBuilder();
+    private Output output;
+    private Output out;
+    private FilePool files;
+
+    /** Where {@code print} goes; by default the {@code System.out} of the {@link #execute} call. */
+    public void setOutput(Output output) {
+        this.output = output;
+    }
+
+    /** Where {@code read} comes from; by default the {@code System.in} of the first {@link #execute} call. */
+    public void setInput(Input input) {
+        this.input = input;
+    }
+
+    public void execute(List<String> instructions) {
+        execute(Program.decode(instructions));
+    }
+
+    public void execute(Program program) {
+        execute(RegisterCompiler.compile(program));
+    }
+
+    public void execute(RegisterProgram program) {
+        out = output != null ? output : Output.of(System.out);
+        if (input == null) {
+            input = Input.of(System.in);
+        }
+        files = new FilePool();
+        try {
+            run(program);
+        } finally {
+            try {
+                out.flush();
+            } finally {
+                files.close();
+            }
+        }
+    }
+
+    private void run(RegisterProgram program) {
+        final int[] code = program.code;
+        final int[] values = program.values.clone();
+        final Object[] refs = program.refs.clone();
+        final boolean[] assigned = new boolean[program.variables];
+
+        int pc = 0;
+        while (pc < code.length) {
+            int a = code[pc + 1];
+            int b = code[pc + 2];
+            int c = code[pc + 3];
+            switch (code[pc]) {
+                case RegisterProgram.MOVE -> values[a] = values[b];
+                case RegisterProgram.MOVE_REF -> refs[a] = refs[b];
+                case RegisterProgram.CHECK -> {
+                    if (!assigned[a]) {
+                        throw new RuntimeException("Variable '" + program.names[a] + "' not defined");
+                    }
+                }
+                case RegisterProgram.MARK -> assigned[a] = true;
+                case RegisterProgram.READ_I, RegisterProgram.READ_F, RegisterProgram.READ_S, RegisterProgram.READ_B ->
+                        read(code[pc], a, values, refs);
+                case RegisterProgram.PRINT -> out.println(line(values, refs, a, b, program.types, c));
+
+                case RegisterProgram.ADD_I -> values[a] = values[b] + values[c];
+                case RegisterProgram.SUB_I -> values[a] = values[b] - values[c];
+                case RegisterProgram.MUL_I -> values[a] = values[b] * values[c];
+                case RegisterProgram.DIV_I -> values[a] = values[b] / divisor(values[c]);
+                case RegisterProgram.MOD_I -> values[a] = values[b] % divisor(values[c]);
+                case RegisterProgram.ADD_F -> values[a] = bits(f(values[b]) + f(values[c]));
+                case RegisterProgram.SUB_F -> values[a] = bits(f(values[b]) - f(values[c]));
+                case RegisterProgram.MUL_F -> values[a] = bits(f(values[b]) * f(values[c]));
+                case RegisterProgram.DIV_F -> {
+                    float divisor = f(values[c]);
+                    if (divisor == 0.0f) {
+                        throw new RuntimeException("Division by zero");
+                    }
+                    values[a] = bits(f(values[b]) / divisor);
+                }
+
+                case RegisterProgram.LT_I -> values[a] = values[b] < values[c] ? 1 : 0;
+                case RegisterProgram.GT_I -> values[a] = values[b] > values[c] ? 1 : 0;
+                case RegisterProgram.LE_I -> values[a] = values[b] <= values[c] ? 1 : 0;
+                case RegisterProgram.GE_I -> values[a] = values[b] >= values[c] ? 1 : 0;
+                case RegisterProgram.EQ_I -> values[a] = values[b] == values[c] ? 1 : 0;
+                case RegisterProgram.LT_F -> values[a] = f(values[b]) < f(values[c]) ? 1 : 0;
+                case RegisterProgram.GT_F -> values[a] = f(values[b]) > f(values[c]) ? 1 : 0;
+                case RegisterProgram.LE_F -> values[a] = f(values[b]) <= f(values[c]) ? 1 : 0;
+                case RegisterProgram.GE_F -> values[a] = f(values[b]) >= f(values[c]) ? 1 : 0;
+                case RegisterProgram.EQ_F -> values[a] = f(values[b]) == f(values[c]) ? 1 : 0;
+                case RegisterProgram.EQ_S -> values[a] = refs[b].equals(refs[c]) ? 1 : 0;
+
+                case RegisterProgram.NEG_I -> values[a] = -values[b];
+                case RegisterProgram.NEG_F -> values[a] = bits(-f(values[b]));
+                case RegisterProgram.NOT -> values[a] = values[b] == 0 ? 1 : 0;
+                case RegisterProgram.AND -> values[a] = values[b] != 0 & values[c] != 0 ? 1 : 0;
+                case RegisterProgram.OR -> values[a] = values[b] != 0 | values[c] != 0 ? 1 : 0;
+                case RegisterProgram.ITOF -> values[a] = bits((float) values[b]);
+                case RegisterProgram.STR -> refs[a] = append(new StringBuilder(), values, refs, b, (byte) c).toString();
+                case RegisterProgram.CONCAT -> refs[a] = (String) refs[b] + refs[c];
+
+                case RegisterProgram.JMP -> {
+                    pc = a;
+                    continue;
+                }
+                case RegisterProgram.JF -> {
+                    if (values[b] == 0) {
+                        pc = a;
+                        continue;
+                    }
+                }
+                case RegisterProgram.JF_F -> {
+                    if ((int) f(values[b]) == 0) {
+                        pc = a;
+                        continue;
+                    }
+                }
+                case RegisterProgram.JNLT_I -> {
+                    if (values[b] >= values[c]) {
+                        pc = a;
+                        continue;
+                    }
+                }
+                case RegisterProgram.JNGT_I -> {
+                    if (values[b] <= values[c]) {
+                        pc = a;
+                        continue;
+                    }
+                }
+                case RegisterProgram.JNEQ_I -> {
+                    if (values[b] != values[c]) {
+                        pc = a;
+                        continue;
+                    }
+                }
+                case RegisterProgram.FOPEN -> refs[a] = new FileHandle((String) refs[b], c >= 0 ? (String) refs[c] : "a");
+                case RegisterProgram.FAPPEND ->
+                        ((FileHandle) refs[a]).append(files, line(values, refs, a + 1, b, program.types, c));
+                case RegisterProgram.FWRITE ->
+                        ((FileHandle) refs[a]).write(files, line(values, refs, a + 1, b, program.types, c));
+                case RegisterProgram.INVALID -> throw new RuntimeException(program.strings[a]);
+                default -> throw new RuntimeException("Unknown opcode: " + code[pc]);
+            }
+            pc += 4;
+        }
+    }
+
+    private void read(int opcode, int register, int[] values, Object[] refs) {
+        out.flush();
+        try {
+            switch (opcode) {
+                case RegisterProgram.READ_I -> values[register] = input.readInt();
+                case RegisterProgram.READ_F -> values[register] = bits(input.readFloat());
+                case RegisterProgram.READ_S -> refs[register] = input.readLine();
+                default -> values[register] = input.readBool() ? 1 : 0;
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Invalid input during READ");
+        }
+    }
+
+    private static int divisor(int value) {
+        if (value == 0) {
+            throw new RuntimeException("Division by zero");
+        }
+        return value;
+    }
+
+    private StringBuilder line(int[] values, Object[] refs, int first, int count, byte[] types, int typeOffset) {
+        line.setLength(0);
+        for (int i = 0; i < count; i++) {
+            append(line, values, refs, first + i, types[typeOffset + i]);
+        }
+        return line;
+    }
+
+    private static StringBuilder append(StringBuilder out, int[] values, Object[] refs, int register, byte type) {
+        return switch (type) {
+            case Bytecode.T_INT -> out.append(values[register]);
+            case Bytecode.T_FLOAT -> out.append(f(values[register]));
+            case Bytecode.T_BOOL -> out.append(values[register] != 0);
+            default -> out.append(refs[register]);
+        };
+    }
+
+    private static float f(int bits) {
+        return Float.intBitsToFloat(bits);
+    }
+
+    private static int bits(float value) {
+        return Float.floatToRawIntBits(value);
+    }
+}
@@ -0,0 +1,160 @@
+package cz.university.runtime;
+
+/**
+ * Three-address form of a program, executed by {@link RegisterMachine} and
+ * produced from stack code by {@link RegisterCompiler}.
+ *
+ * <p>Every instruction is four words in {@link #code}: the opcode, then
+ * {@code a}, {@code b} and {@code c}. Instructions that produce a value write
+ * register {@code a} from registers {@code b} and {@code c}. Registers are laid
+ * out as the variables (register = variable slot), then one temporary per
+ * operand stack level, then from {@link #constants} on the constants, which
+ * {@link #values} and {@link #refs} preload (floats as raw bits). Jump
+ * targets are word offsets into {@link #code}.</p>
+ *
+ * <p>{@code PRINT}, {@code FAPPEND} and {@code FWRITE} take {@code b} values
+ * from consecutive registers starting at {@code a} (after the file for the
+ * file operations); {@code c} indexes their {@link Bytecode} value types in
+ * {@link #types}.</p>
+ */
+public final class RegisterProgram {
+
+    public static final int MOVE = 0;        // a = b (int, float, bool)
+    public static final int MOVE_REF = 1;    // a = b (string, file)
+    public static final int CHECK = 2;       // fail unless variable a was assigned
+    public static final int MARK = 3;        // variable a is assigned
+    public static final int READ_I = 4;
+    public static final int READ_F = 5;
+    public static final int READ_S = 6;
+    public static final int READ_B = 7;
+    public static final int PRINT = 8;
+
+    public static final int ADD_I = 9;
+    public static final int SUB_I = 10;
+    public static final int MUL_I = 11;
+    public static final int DIV_I = 12;
+    public static final int MOD_I = 13;
+    public static final int ADD_F = 14;
+    public static final int SUB_F = 15;
+    public static final int MUL_F = 16;
+    public static final int DIV_F = 17;
+
+    public static final int LT_I = 18;
+    public static final int GT_I = 19;
+    public static final int LE_I = 20;
+    public static final int GE_I = 21;
+    public static final int EQ_I = 22;       // also bool
+    public static final int LT_F = 23;
+    public static final int GT_F = 24;
+    public static final int LE_F = 25;
+    public static final int GE_F = 26;
+    public static final int EQ_F = 27;
+    public static final int EQ_S = 28;
+
+    public static final int NEG_I = 29;
+    public static final int NEG_F = 30;
+    public static final int NOT = 31;
+    public static final int AND = 32;
+    public static final int OR = 33;
+    public static final int ITOF = 34;
+    public static final int STR = 35;        // a = text of b, whose type is c
+    public static final int CONCAT = 36;     // a = b + c (strings)
+
+    public static final int JMP = 37;        // goto a
+    public static final int JF = 38;         // goto a if b (int or bool) is 0
+    public static final int JF_F = 39;       // goto a if b (float) truncates to 0
+    public static final int JNLT_I = 40;     // goto a unless b < c
+    public static final int JNGT_I = 41;     // goto a unless b > c
+    public static final int JNEQ_I = 42;     // goto a unless b == c
+
+    public static final int FOPEN = 43;      // a = file b opened with mode c (-1: none)
+    public static final int FAPPEND = 44;
+    public static final int FWRITE = 45;
+    public static final int INVALID = 46;    // throw strings[a]
+
+    private static final String[] NAMES = {
+            "move", "move_ref", "check", "mark", "read I", "read F", "read S", "read B", "print",
+            "add I", "sub I", "mul I", "div I", "mod", "add F", "sub F", "mul F", "div F",
+            "lt I", "gt I", "le I", "ge I", "eq I", "lt F", "gt F", "le F", "ge F", "eq F", "eq S",
+            "neg I", "neg F", "not", "and", "or", "itof", "str", "concat",
+            "jmp", "jf", "jf F", "jnlt I", "jngt I", "jneq I",
+            "fopen", "fappend", "fwrite", "invalid",
+    };
+
+    final int[] code;
+    final int variables;
+    final int constants;
+    final int[] values;
+    final Object[] refs;
+    final byte[] types;
+    final String[] strings;
+    final String[] names;
+
+    RegisterProgram(int[] code, int variables, int constants, int[] values, Object[] refs, byte[] types,
+                    String[] strings, String[] names) {
+        this.code = code;
+        this.variables = variables;
+        this.constants = constants;
+        this.values = values;
+        this.refs = refs;
+        this.types = types;
+        this.strings = strings;
+        this.names = names;
+    }
+
+    /** Number of instructions. */
+    public int size() {
+        return code.length / 4;
+    }
+
+    public int opcode(int index) {
+        return code[index * 4];
+    }
+
+    public int registerCount() {
+        return values.length;
+    }
+
+    public static String name(int opcode) {
+        return opcode >= 0 && opcode < NAMES.length ? NAMES[opcode] : "op#" + opcode;
+    }
+
+    /** One instruction per line, jump targets as instruction indexes. */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < code.length; i += 4) {
+            int opcode = code[i];
+            out.append(i / 4).append(": ").append(name(opcode));
+            switch (opcode) {
+                case JMP -> out.append(" @").append(code[i + 1] / 4);
+                case JF, JF_F -> out.append(" @").append(code[i + 1] / 4).append(", ").append(register(code[i + 2]));
+                case JNLT_I, JNGT_I, JNEQ_I -> out.append(" @").append(code[i + 1] / 4)
+                        .append(", ").append(register(code[i + 2])).append(", ").append(register(code[i + 3]));
+                case CHECK, MARK, READ_I, READ_F, READ_S, READ_B -> out.append(' ').append(register(code[i + 1]));
+                case PRINT, FAPPEND, FWRITE -> out.append(' ').append(register(code[i + 1])).append(" x").append(code[i + 2]);
+                case INVALID -> out.append(" \"").append(strings[code[i + 1]]).append('"');
+                case MOVE, MOVE_REF, NEG_I, NEG_F, NOT, ITOF, STR -> out.append(' ').append(register(code[i + 1]))
+                        .append(", ").append(register(code[i + 2]));
+                case FOPEN -> {
+                    out.append(' ').append(register(code[i + 1])).append(", ").append(register(code[i + 2]));
+                    if (code[i + 3] >= 0) out.append(", ").append(register(code[i + 3]));
+                }
+                default -> out.append(' ').append(register(code[i + 1])).append(", ").append(register(code[i + 2]))
+                        .append(", ").append(register(code[i + 3]));
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    private String register(int register) {
+        if (register < variables) {
+            return names[register] != null ? names[register] : "v" + register;
+        }
+        if (register < constants) {
+            return "r" + register;
+        }
+        return refs[register] != null ? "\"" + refs[register] + "\"" : "#" + values[register];
+    }
+}
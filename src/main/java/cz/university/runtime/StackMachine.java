@@ -2,344 +2,356 @@ package cz.university.runtime;
 
 import cz.university.runtime.FileHandle;
 
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.*;
 
+/**
+ * Executes linked programs. The {@link Linker} has already proven stack depth
+ * and operand types, so the operations below only check what depends on runtime
+ * values (division by zero, reading a variable that was never assigned).
+ *
+ * <p>Values are kept unboxed: ints, bools (0/1) and floats (raw IEEE bits) live
+ * in an {@code int[]}, strings and file handles in a parallel {@code Object[]},
+ * and a {@code byte[]} of {@link Bytecode} type tags says which one a slot
+ * holds. Variables use the same layout, with tag 0 meaning "never assigned".
+ * Numeric code therefore runs without allocating.</p>
+ *
+ * <p>{@code print} output is buffered (see {@link Output}) and flushed before
+ * every {@code read} and when the program ends; input is parsed from a byte
+ * buffer (see {@link Input}). Files stay open for the whole
+ * run (see {@link FilePool}) and are flushed and closed when it ends, also on
+ * an error.</p>
+ *
+ * <p>With {@link #setJitThreshold} set, loops whose back edge is taken that
+ * many times are compiled to JVM bytecode (see {@link HotLoops}).</p>
+ */
 public class StackMachine {
-    private Stack<Object> stack = new Stack<>();
-    private Map<String, Object> variables = new HashMap<>();
-    private Map<String, Integer> labels = new HashMap<>();
-    private List<String> instructions;
-    private Scanner scanner = new Scanner(System.in);
-
-    public void execute(List<String> instructions) {
-        this.instructions = instructions;
-        preprocessLabels();
-
-        for (int i = 0; i < instructions.size(); i++) {
-            String line = instructions.get(i).trim();
-            if (line.isEmpty()) continue;
-
-            String[] parts = line.split("\\s+", 3);
-            String command = parts[0];
-
-            switch (command) {
-                case "push":
-                    push(parts[1], parts[2]);
-                    break;
-                case "pop":
-                    pop();
-                    break;
-                case "load":
-                    load(parts[1]);
-                    break;
-                case "save":
-                    save(parts[1]);
-                    break;
-                case "print":
-                    check(parts.length >= 2, "Invalid PRINT instruction: " + line);
-                    print(parts[1]);
-                    break;
-                case "read":
-                    read(parts[1]);
-                    break;
-                case "add":
-                case "sub":
-                case "mul":
-                case "div":
-                case "mod":
-                case "gt":
-                case "lt":
-                case "ge":
-                case "le":
-                case "eq":
-                    binaryOperation(command, parts.length > 1 ? parts[1] : null);
-                    break;
-                case "uminus":
-                    uminus(parts[1]);
-                    break;
-                case "concat":
-                    concat();
-                    break;
-                case "and":
-                case "or":
-                    logicalOperation(command);
-                    break;
-                case "not":
-                    notOperation();
-                    break;
-                case "itof":
-                    itof();
-                    break;
-                case "label":
-                    // already processed
-                    break;
-                case "jmp":
-                    i = jump(parts[1]) - 1;
-                    break;
-                case "fjmp":
-                    i = fjump(parts[1], i) - 1;
-                    break;
-                case "fopen":
-                    fopen();
-                    break;
-                case "fappend":
-                    fappendN(Integer.parseInt(parts[1]));
-                    break;
-                case "fwrite":
-                    fwrite(Integer.parseInt(parts[1]));
-                    break;
-                default:
-                    throw new RuntimeException("Unknown instruction: " + command);
-            }
-        }
-    }
-
-    private void preprocessLabels() {
-        for (int i = 0; i < instructions.size(); i++) {
-            String line = instructions.get(i).trim();
-            if (line.startsWith("label")) {
-                String[] parts = line.split("\\s+");
-                if (parts.length >= 2) {
-                    labels.put(parts[1], i);
-                }
-            }
-        }
+    private int[] stack;
+    private Object[] refs;
+    private byte[] tags;
+    private int[] variables;
+    private Object[] variableRefs;
+    private byte[] variableTags;
+    private String[] variableNames;
+    private Input input;
+    private final StringBuilder line = new StringBuilder();
+    private Output output;
+    private Output out;
+    private FilePool files;
+    private int jitThreshold = 0;
+    private HotLoops hotLoops;
+
+    /** Where {@code print} goes; by default the {@code System.out} of the {@link #execute} call. */
+    public void setOutput(Output output) {
+        this.output = output;
     }
 
-    private void push(String type, String value) {
-        switch (type) {
-            case "I":
-                stack.push(Integer.parseInt(value));
-                break;
-            case "F":
-                stack.push(Float.parseFloat(value));
-                break;
-            case "S":
-                if (value.startsWith("\"") && value.endsWith("\"") && value.length() >= 2) {
-                    value = value.substring(1, value.length() - 1);
-                }
-                stack.push(value);
-                break;
-            case "B":
-                stack.push(Boolean.parseBoolean(value));
-                break;
-            default:
-                throw new RuntimeException("Unknown PUSH type: " + type);
-        }
+    /** Where {@code read} comes from; by default the {@code System.in} of the first {@link #execute} call. */
+    public void setInput(Input input) {
+        this.input = input;
     }
 
-    private void pop() {
-        check(!stack.isEmpty(), "Stack underflow on POP");
-        stack.pop();
+    /** Compiles loops after {@code threshold} iterations; 0 (the default) interprets everything. */
+    public void setJitThreshold(int threshold) {
+        this.jitThreshold = threshold;
     }
 
-    private void load(String varName) {
-        check(variables.containsKey(varName), "Variable '" + varName + "' not defined");
-        stack.push(variables.get(varName));
+    /** Number of loops compiled by the last {@link #execute} call. */
+    public int getCompiledLoops() {
+        return hotLoops != null ? hotLoops.compiled() : 0;
     }
 
-    private void save(String varName) {
-        check(!stack.isEmpty(), "Stack underflow on SAVE");
-        Object value = stack.pop();
-        variables.put(varName, value);
+    public void execute(List<String> instructions) {
+        execute(Program.decode(instructions));
     }
 
-    private void print(String countStr) {
-        int count = Integer.parseInt(countStr);
-        List<Object> values = new ArrayList<>();
-        for (int i = 0; i < count; i++) {
-            check(!stack.isEmpty(), "Stack underflow on PRINT");
-            values.add(stack.pop());
-        }
-        Collections.reverse(values);
-
-        StringBuilder output = new StringBuilder();
-        for (Object value : values) {
-            output.append(value);
+    public void execute(Program program) {
+        out = output != null ? output : Output.of(System.out);
+        if (input == null) {
+            input = Input.of(System.in);
         }
-
-        System.out.println(output);
-    }
-
-
-    private void read(String type) {
+        files = new FilePool();
         try {
-            switch (type) {
-                case "I":
-                    stack.push(Integer.parseInt(scanner.nextLine()));
-                    break;
-                case "F":
-                    stack.push(Float.parseFloat(scanner.nextLine()));
-                    break;
-                case "S":
-                    stack.push(scanner.nextLine());
-                    break;
-                case "B":
-                    stack.push(Boolean.parseBoolean(scanner.nextLine()));
-                    break;
-                default:
-                    throw new RuntimeException("Unknown READ type: " + type);
+            run(Linker.link(program));
+        } finally {
+            try {
+                out.flush();
+            } finally {
+                files.close();
             }
-        } catch (Exception e) {
-            throw new RuntimeException("Invalid input during READ");
         }
     }
 
-    private void binaryOperation(String op, String type) {
-        check(stack.size() >= 2, "Stack underflow on " + op);
-        Object b = stack.pop();
-        Object a = stack.pop();
-
-        if (type == null) type = "I";
-
-        switch (type) {
-            case "I":
-                int ai = (Integer) a;
-                int bi = (Integer) b;
-                switch (op) {
-                    case "add": stack.push(ai + bi); break;
-                    case "sub": stack.push(ai - bi); break;
-                    case "mul": stack.push(ai * bi); break;
-                    case "div": check(bi != 0, "Division by zero"); stack.push(ai / bi); break;
-                    case "mod": check(bi != 0, "Division by zero"); stack.push(ai % bi); break;
-                    case "gt": stack.push(ai > bi); break;
-                    case "lt": stack.push(ai < bi); break;
-                    case "ge": stack.push(ai >= bi); break;
-                    case "le": stack.push(ai <= bi); break;
-                    case "eq": stack.push(ai == bi); break;
-                    default: throw new RuntimeException("Unsupported int operation: " + op);
+    private void run(Program program) {
+        int depth = Math.max(1, program.maxStack);
+        stack = new int[depth];
+        refs = new Object[depth];
+        tags = new byte[depth];
+        int slots = program.variables.length;
+        variables = new int[slots];
+        variableRefs = new Object[slots];
+        variableTags = new byte[slots];
+        variableNames = program.variables;
+
+        final int[] code = program.code;
+        final int[] dispatch = program.dispatch != null ? program.dispatch : code;
+        final int[] operands = program.operands;
+        final String[] strings = program.strings;
+        final int[] floatBits = new int[program.floats.length];
+        for (int i = 0; i < floatBits.length; i++) {
+            floatBits[i] = Float.floatToRawIntBits(program.floats[i]);
+        }
+        final int[] stack = this.stack;
+        final Object[] refs = this.refs;
+        final byte[] tags = this.tags;
+        final int[] variables = this.variables;
+        final Object[] variableRefs = this.variableRefs;
+        final byte[] variableTags = this.variableTags;
+        final HotLoops hotLoops = jitThreshold > 0 ? new HotLoops(program, jitThreshold) : null;
+        this.hotLoops = hotLoops;
+
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int operand = operands[pc];
+            switch (dispatch[pc]) {
+                case Bytecode.PUSH_I -> { stack[sp] = operand; tags[sp++] = Bytecode.T_INT; }
+                case Bytecode.PUSH_F -> { stack[sp] = floatBits[operand]; tags[sp++] = Bytecode.T_FLOAT; }
+                case Bytecode.PUSH_S -> { refs[sp] = strings[operand]; tags[sp++] = Bytecode.T_STRING; }
+                case Bytecode.PUSH_B -> { stack[sp] = operand; tags[sp++] = Bytecode.T_BOOL; }
+                case Bytecode.POP -> refs[--sp] = null;
+                case Bytecode.LOAD -> {
+                    byte tag = variableTags[operand];
+                    if (tag == 0) {
+                        throw undefined(operand);
+                    }
+                    stack[sp] = variables[operand];
+                    refs[sp] = variableRefs[operand];
+                    tags[sp++] = tag;
+                }
+                case Bytecode.SAVE -> {
+                    sp--;
+                    variables[operand] = stack[sp];
+                    variableRefs[operand] = refs[sp];
+                    variableTags[operand] = tags[sp];
+                    refs[sp] = null;
+                }
+                case Bytecode.PRINT -> sp = print(sp, operand);
+                case Bytecode.READ_I, Bytecode.READ_F, Bytecode.READ_S, Bytecode.READ_B -> sp = read(sp, code[pc]);
+
+                case Bytecode.ADD_I -> { sp--; stack[sp - 1] += stack[sp]; }
+                case Bytecode.SUB_I -> { sp--; stack[sp - 1] -= stack[sp]; }
+                case Bytecode.MUL_I -> { sp--; stack[sp - 1] *= stack[sp]; }
+                case Bytecode.DIV_I -> { sp--; check(stack[sp] != 0, "Division by zero"); stack[sp - 1] /= stack[sp]; }
+                case Bytecode.MOD_I -> { sp--; check(stack[sp] != 0, "Division by zero"); stack[sp - 1] %= stack[sp]; }
+                case Bytecode.ADD_F -> { sp--; stack[sp - 1] = bits(f(stack[sp - 1]) + f(stack[sp])); }
+                case Bytecode.SUB_F -> { sp--; stack[sp - 1] = bits(f(stack[sp - 1]) - f(stack[sp])); }
+                case Bytecode.MUL_F -> { sp--; stack[sp - 1] = bits(f(stack[sp - 1]) * f(stack[sp])); }
+                case Bytecode.DIV_F -> {
+                    sp--;
+                    check(f(stack[sp]) != 0.0f, "Division by zero");
+                    stack[sp - 1] = bits(f(stack[sp - 1]) / f(stack[sp]));
+                }
+
+                case Bytecode.GT_I -> { sp--; bool(sp - 1, stack[sp - 1] > stack[sp]); }
+                case Bytecode.LT_I -> { sp--; bool(sp - 1, stack[sp - 1] < stack[sp]); }
+                case Bytecode.GE_I -> { sp--; bool(sp - 1, stack[sp - 1] >= stack[sp]); }
+                case Bytecode.LE_I -> { sp--; bool(sp - 1, stack[sp - 1] <= stack[sp]); }
+                case Bytecode.EQ_I, Bytecode.EQ_B -> { sp--; bool(sp - 1, stack[sp - 1] == stack[sp]); }
+                case Bytecode.GT_F -> { sp--; bool(sp - 1, f(stack[sp - 1]) > f(stack[sp])); }
+                case Bytecode.LT_F -> { sp--; bool(sp - 1, f(stack[sp - 1]) < f(stack[sp])); }
+                case Bytecode.GE_F -> { sp--; bool(sp - 1, f(stack[sp - 1]) >= f(stack[sp])); }
+                case Bytecode.LE_F -> { sp--; bool(sp - 1, f(stack[sp - 1]) <= f(stack[sp])); }
+                case Bytecode.EQ_F -> { sp--; bool(sp - 1, f(stack[sp - 1]) == f(stack[sp])); }
+                case Bytecode.EQ_S -> { sp--; bool(sp - 1, refs[sp - 1].equals(refs[sp])); }
+
+                case Bytecode.UMINUS_I -> stack[sp - 1] = -stack[sp - 1];
+                case Bytecode.UMINUS_F -> stack[sp - 1] = bits(-f(stack[sp - 1]));
+                case Bytecode.CONCAT -> {
+                    sp--;
+                    refs[sp - 1] = text(sp - 1) + text(sp);
+                    tags[sp - 1] = Bytecode.T_STRING;
+                }
+                case Bytecode.AND -> { sp--; bool(sp - 1, stack[sp - 1] != 0 & stack[sp] != 0); }
+                case Bytecode.OR -> { sp--; bool(sp - 1, stack[sp - 1] != 0 | stack[sp] != 0); }
+                case Bytecode.NOT -> stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                case Bytecode.ITOF -> { stack[sp - 1] = bits((float) stack[sp - 1]); tags[sp - 1] = Bytecode.T_FLOAT; }
+
+                case Bytecode.JMP -> {
+                    if (hotLoops != null && operand <= pc && sp == 0) {
+                        int exit = hotLoops.backEdge(pc, variables, variableTags);
+                        if (exit >= 0) {
+                            pc = exit;
+                            continue;
+                        }
+                    }
+                    pc = operand;
+                    continue;
+                }
+                case Bytecode.FJMP -> {
+                    sp--;
+                    boolean isFalse = tags[sp] == Bytecode.T_FLOAT ? (int) f(stack[sp]) == 0 : stack[sp] == 0;
+                    if (isFalse) {
+                        pc = operand;
+                        continue;
+                    }
                 }
-                break;
-            case "F":
-                float af = (a instanceof Integer) ? (Integer) a : (Float) a;
-                float bf = (b instanceof Integer) ? (Integer) b : (Float) b;
-                switch (op) {
-                    case "add": stack.push(af + bf); break;
-                    case "sub": stack.push(af - bf); break;
-                    case "mul": stack.push(af * bf); break;
-                    case "div": check(bf != 0.0f, "Division by zero"); stack.push(af / bf); break;
-                    case "gt": stack.push(af > bf); break;
-                    case "lt": stack.push(af < bf); break;
-                    case "ge": stack.push(af >= bf); break;
-                    case "le": stack.push(af <= bf); break;
-                    case "eq": stack.push(af == bf); break;
-                    default: throw new RuntimeException("Unsupported float operation: " + op);
+                case Bytecode.FOPEN -> sp = fopen(sp, operand);
+                case Bytecode.FAPPEND -> sp = fappendN(sp, operand);
+                case Bytecode.FWRITE -> sp = fwrite(sp, operand);
+                case Bytecode.INVALID -> throw new RuntimeException(strings[operand]);
+
+                // superinstructions: operands of the covered instructions are read in place
+                case Bytecode.IF_LT_VC, Bytecode.IF_GT_VC, Bytecode.IF_EQ_VC -> {
+                    if (variableTags[operand] == 0) throw undefined(operand);
+                    int a = variables[operand];
+                    int b = operands[pc + 1];
+                    int op = dispatch[pc];
+                    boolean holds = op == Bytecode.IF_LT_VC ? a < b : op == Bytecode.IF_GT_VC ? a > b : a == b;
+                    pc = holds ? pc + 4 : operands[pc + 3];
+                    continue;
                 }
-                break;
-            case "S":
-                String sa = (String) a;
-                String sb = (String) b;
-                if ("eq".equals(op)) {
-                    stack.push(sa.equals(sb));
-                } else if ("concat".equals(op)) {
-                    stack.push(sa + sb);
-                } else {
-                    throw new RuntimeException("Unsupported string operation: " + op);
+                case Bytecode.IF_LT_VV, Bytecode.IF_GT_VV, Bytecode.IF_EQ_VV -> {
+                    int other = operands[pc + 1];
+                    if (variableTags[operand] == 0) throw undefined(operand);
+                    if (variableTags[other] == 0) throw undefined(other);
+                    int a = variables[operand];
+                    int b = variables[other];
+                    int op = dispatch[pc];
+                    boolean holds = op == Bytecode.IF_LT_VV ? a < b : op == Bytecode.IF_GT_VV ? a > b : a == b;
+                    pc = holds ? pc + 4 : operands[pc + 3];
+                    continue;
                 }
-                break;
-            case "B":
-                boolean ba = (Boolean) a;
-                boolean bb = (Boolean) b;
-                if ("eq".equals(op)) {
-                    stack.push(ba == bb);
-                } else {
-                    throw new RuntimeException("Unsupported boolean operation: " + op);
+                case Bytecode.ADD_VV_I, Bytecode.SUB_VV_I, Bytecode.MUL_VV_I -> {
+                    int other = operands[pc + 1];
+                    if (variableTags[operand] == 0) throw undefined(operand);
+                    if (variableTags[other] == 0) throw undefined(other);
+                    int a = variables[operand];
+                    int b = variables[other];
+                    int op = dispatch[pc];
+                    stack[sp] = op == Bytecode.ADD_VV_I ? a + b : op == Bytecode.SUB_VV_I ? a - b : a * b;
+                    tags[sp++] = Bytecode.T_INT;
+                    pc += 3;
+                    continue;
                 }
-                break;
-            default:
-                throw new RuntimeException("Unknown type for binary operation: " + type);
+                case Bytecode.ADD_VC_I, Bytecode.SUB_VC_I, Bytecode.MUL_VC_I, Bytecode.DIV_VC_I, Bytecode.MOD_VC_I -> {
+                    if (variableTags[operand] == 0) throw undefined(operand);
+                    int a = variables[operand];
+                    int b = operands[pc + 1];
+                    stack[sp] = switch (dispatch[pc]) {
+                        case Bytecode.ADD_VC_I -> a + b;
+                        case Bytecode.SUB_VC_I -> a - b;
+                        case Bytecode.MUL_VC_I -> a * b;
+                        case Bytecode.DIV_VC_I -> a / b;
+                        default -> a % b;
+                    };
+                    tags[sp++] = Bytecode.T_INT;
+                    pc += 3;
+                    continue;
+                }
+                case Bytecode.INC_I -> {
+                    if (variableTags[operand] == 0) throw undefined(operand);
+                    variables[operand] += operands[pc + 1];
+                    pc += 4;
+                    continue;
+                }
+                case Bytecode.DEC_I -> {
+                    if (variableTags[operand] == 0) throw undefined(operand);
+                    variables[operand] -= operands[pc + 1];
+                    pc += 4;
+                    continue;
+                }
+                case Bytecode.INC_F -> {
+                    if (variableTags[operand] == 0) throw undefined(operand);
+                    variables[operand] = bits(f(variables[operand]) + f(floatBits[operands[pc + 1]]));
+                    pc += 4;
+                    continue;
+                }
+                case Bytecode.SAVE_LOAD_POP -> {
+                    sp--;
+                    variables[operand] = stack[sp];
+                    variableRefs[operand] = refs[sp];
+                    variableTags[operand] = tags[sp];
+                    refs[sp] = null;
+                    pc += 3;
+                    continue;
+                }
+                default -> throw new RuntimeException("Unknown opcode: " + code[pc]);
+            }
+            pc++;
         }
     }
 
-    private void uminus(String type) {
-        check(!stack.isEmpty(), "Stack underflow on UMINUS");
-        Object value = stack.pop();
-        if (type.equals("I")) {
-            stack.push(-((Integer) value));
-        } else if (type.equals("F")) {
-            stack.push(-((Float) value));
-        } else {
-            throw new RuntimeException("Unknown UMINUS type: " + type);
-        }
+    private RuntimeException undefined(int slot) {
+        return new RuntimeException("Variable '" + variableNames[slot] + "' not defined");
     }
 
-    private void concat() {
-        check(stack.size() >= 2, "Stack underflow on CONCAT");
-        Object b = stack.pop();
-        Object a = stack.pop();
-        stack.push(a.toString() + b.toString());
+    private static float f(int bits) {
+        return Float.intBitsToFloat(bits);
     }
 
-    private void logicalOperation(String op) {
-        check(stack.size() >= 2, "Stack underflow on " + op);
-        Object b = stack.pop();
-        Object a = stack.pop();
-        boolean ba = toBoolean(a);
-        boolean bb = toBoolean(b);
-        switch (op) {
-            case "and": stack.push(ba && bb); break;
-            case "or": stack.push(ba || bb); break;
-            default: throw new RuntimeException("Unknown logical operation: " + op);
-        }
+    private static int bits(float value) {
+        return Float.floatToRawIntBits(value);
     }
 
-    private boolean toBoolean(Object value) {
-        if (value instanceof Integer) {
-            return ((Integer) value) != 0;
-        } else if (value instanceof Boolean) {
-            return (Boolean) value;
-        } else {
-            throw new RuntimeException("Unsupported type for boolean logic: " + value.getClass().getSimpleName());
-        }
+    private void bool(int index, boolean value) {
+        stack[index] = value ? 1 : 0;
+        tags[index] = Bytecode.T_BOOL;
     }
 
-    private void notOperation() {
-        check(!stack.isEmpty(), "Stack underflow on NOT");
-        Object a = stack.pop();
-        if (a instanceof Boolean bool) {
-            stack.push(!bool);
-        } else {
-            throw new RuntimeException("NOT applied to non-boolean");
+    private void append(StringBuilder out, int index) {
+        switch (tags[index]) {
+            case Bytecode.T_INT -> out.append(stack[index]);
+            case Bytecode.T_FLOAT -> out.append(f(stack[index]));
+            case Bytecode.T_BOOL -> out.append(stack[index] != 0);
+            default -> out.append(refs[index]);
         }
     }
 
-
-    private void itof() {
-        check(!stack.isEmpty(), "Stack underflow on ITOF");
-        Object value = stack.pop();
-        if (value instanceof Integer) {
-            stack.push(((Integer) value).floatValue());
-        } else {
-            stack.push(value); // already float
-        }
+    private String text(int index) {
+        return switch (tags[index]) {
+            case Bytecode.T_INT -> Integer.toString(stack[index]);
+            case Bytecode.T_FLOAT -> Float.toString(f(stack[index]));
+            case Bytecode.T_BOOL -> Boolean.toString(stack[index] != 0);
+            default -> refs[index].toString();
+        };
     }
 
-    private int jump(String label) {
-        check(labels.containsKey(label), "Label '" + label + "' not found");
-        return labels.get(label);
+    private int print(int sp, int count) {
+        line.setLength(0);
+        for (int i = sp - count; i < sp; i++) {
+            append(line, i);
+            refs[i] = null;
+        }
+        out.println(line);
+        return sp - count;
     }
 
-    private int fjump(String label, int currentIndex) {
-        check(!stack.isEmpty(), "Stack underflow on FJMP");
-        Object value = stack.pop();
-        int intValue;
-        if (value instanceof Integer) {
-            intValue = (Integer) value;
-        } else if (value instanceof Float) {
-            intValue = ((Float) value).intValue();
-        } else if (value instanceof Boolean) {
-            intValue = ((Boolean) value) ? 1 : 0;
-        } else {
-            throw new RuntimeException("Unsupported type for FJMP: " + value.getClass().getSimpleName());
-        }
 
-        if (intValue == 0) {
-            return jump(label);
+    private int read(int sp, int opcode) {
+        out.flush();
+        try {
+            switch (opcode) {
+                case Bytecode.READ_I -> {
+                    stack[sp] = input.readInt();
+                    tags[sp] = Bytecode.T_INT;
+                }
+                case Bytecode.READ_F -> {
+                    stack[sp] = bits(input.readFloat());
+                    tags[sp] = Bytecode.T_FLOAT;
+                }
+                case Bytecode.READ_S -> {
+                    refs[sp] = input.readLine();
+                    tags[sp] = Bytecode.T_STRING;
+                }
+                default -> {
+                    stack[sp] = input.readBool() ? 1 : 0;
+                    tags[sp] = Bytecode.T_BOOL;
+                }
+            }
+            return sp + 1;
+        } catch (Exception e) {
+            throw new RuntimeException("Invalid input during READ");
         }
-        return currentIndex + 1;
     }
 
 
@@ -349,75 +361,42 @@ public class StackMachine {
         }
     }
 
-    private void fopen() {
-        check(!stack.isEmpty(), "Stack underflow on FOPEN");
-
-        Object top = stack.pop();
-
-        if (stack.isEmpty()) {
-            check(top instanceof String, "FOPEN expects string filename");
-            stack.push(new FileHandle((String) top, "a"));
+    private int fopen(int sp, int arguments) {
+        if (arguments == 1) {
+            refs[sp - 1] = new FileHandle((String) refs[sp - 1], "a");
         } else {
-            Object filename = stack.pop();
-            Object mode = top;
-
-            check(filename instanceof String, "FOPEN expects string filename");
-            check(mode instanceof String, "FOPEN expects string mode");
-
-            stack.push(new FileHandle((String) filename, (String) mode));
+            sp--;
+            refs[sp - 1] = new FileHandle((String) refs[sp - 1], (String) refs[sp]);
         }
+        tags[sp - 1] = Bytecode.T_FILE;
+        return sp;
     }
 
-    private void fappendN(int n) {
-        check(stack.size() >= n + 1, "Stack underflow on FAPPEND");
-
-        List<Object> values = new ArrayList<>();
-        for (int i = 0; i < n; i++) {
-            values.add(stack.pop());
-        }
-        Collections.reverse(values);
-
-        Object handle = stack.pop();
-        check(handle instanceof FileHandle, "FAPPEND expects a FileHandle");
-
-        FileHandle fileHandle = (FileHandle) handle;
-
-        try (FileWriter fw = new FileWriter(fileHandle.getName(), true);
-             PrintWriter writer = new PrintWriter(fw)) {
-            for (Object val : values) {
-                writer.print(val);
-            }
-            writer.println();
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to append to file: " + fileHandle.getName());
-        }
+    private int fappendN(int sp, int n) {
+        FileHandle fileHandle = (FileHandle) refs[sp - n - 1];
+        fileHandle.append(files, values(sp, n));
+        return clear(sp, n);
     }
 
-    private void fwrite(int n) {
-        check(stack.size() >= n + 1, "Stack underflow on FWRITE");
-
-        List<Object> values = new ArrayList<>();
-        for (int i = 0; i < n; i++) {
-            values.add(stack.pop());
-        }
-        Collections.reverse(values);
-
-        Object handle = stack.pop();
-        check(handle instanceof FileHandle, "FWRITE expects a FileHandle");
-
-        FileHandle fileHandle = (FileHandle) handle;
+    private int fwrite(int sp, int n) {
+        FileHandle fileHandle = (FileHandle) refs[sp - n - 1];
+        fileHandle.write(files, values(sp, n));
+        return clear(sp, n);
+    }
 
-        try (FileWriter fw = new FileWriter(fileHandle.getName(), false);
-             PrintWriter writer = new PrintWriter(fw)) {
-            for (Object val : values) {
-                writer.print(val);
-            }
-            writer.println();
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to write to file: " + fileHandle.getName());
+    private StringBuilder values(int sp, int n) {
+        line.setLength(0);
+        for (int i = sp - n; i < sp; i++) {
+            append(line, i);
         }
+        return line;
     }
 
+    private int clear(int sp, int n) {
+        sp -= n + 1;
+        Arrays.fill(refs, sp, sp + n + 1, null);
+        return sp;
+    }
 
 
 }
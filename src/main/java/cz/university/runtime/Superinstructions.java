@@ -0,0 +1,103 @@
+package cz.university.runtime;
+
+/**
+ * Picks superinstructions for a verified, linked program: short opcode
+ * sequences that the code generator emits for loop headers, assignments and
+ * arithmetic on variables are dispatched as one fused opcode (see the list in
+ * {@link Bytecode}).
+ *
+ * <p>The result is a dispatch table parallel to the code. Only the first slot
+ * of a chosen sequence changes; the following slots keep their plain opcodes
+ * and operands, which the fused opcode reads. A sequence is never fused when a
+ * jump lands inside it, and types need no checks because the {@link Linker}
+ * has already proven every operand of the plain sequence.</p>
+ */
+final class Superinstructions {
+
+    private Superinstructions() {
+    }
+
+    static int[] select(int[] code, int[] operands) {
+        int size = code.length;
+        boolean[] target = new boolean[size + 1];
+        for (int pc = 0; pc < size; pc++) {
+            if (code[pc] == Bytecode.JMP || code[pc] == Bytecode.FJMP) {
+                target[operands[pc]] = true;
+            }
+        }
+
+        int[] dispatch = code.clone();
+        int pc = 0;
+        while (pc < size) {
+            int fused = match(code, operands, pc);
+            int length = Bytecode.length(fused);
+            if (fused != code[pc] && !jumpInside(target, pc, length)) {
+                dispatch[pc] = fused;
+                pc += length;
+            } else {
+                pc++;
+            }
+        }
+        return dispatch;
+    }
+
+    private static boolean jumpInside(boolean[] target, int pc, int length) {
+        for (int i = pc + 1; i < pc + length; i++) {
+            if (target[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The longest superinstruction starting at {@code pc}, or the plain opcode. */
+    private static int match(int[] code, int[] operands, int pc) {
+        int op0 = code[pc];
+        int op1 = at(code, pc + 1);
+        int op2 = at(code, pc + 2);
+        int op3 = at(code, pc + 3);
+
+        if (op0 == Bytecode.SAVE) {
+            boolean reload = op1 == Bytecode.LOAD && op2 == Bytecode.POP && operands[pc + 1] == operands[pc];
+            return reload ? Bytecode.SAVE_LOAD_POP : op0;
+        }
+        if (op0 != Bytecode.LOAD) {
+            return op0;
+        }
+
+        boolean sameVariable = op3 == Bytecode.SAVE && operands[pc + 3] == operands[pc];
+        if (op1 == Bytecode.PUSH_I) {
+            boolean nonZero = operands[pc + 1] != 0;
+            if (op3 == Bytecode.FJMP && (op2 == Bytecode.LT_I || op2 == Bytecode.GT_I || op2 == Bytecode.EQ_I)) {
+                return op2 == Bytecode.LT_I ? Bytecode.IF_LT_VC : op2 == Bytecode.GT_I ? Bytecode.IF_GT_VC : Bytecode.IF_EQ_VC;
+            }
+            return switch (op2) {
+                case Bytecode.ADD_I -> sameVariable ? Bytecode.INC_I : Bytecode.ADD_VC_I;
+                case Bytecode.SUB_I -> sameVariable ? Bytecode.DEC_I : Bytecode.SUB_VC_I;
+                case Bytecode.MUL_I -> Bytecode.MUL_VC_I;
+                case Bytecode.DIV_I -> nonZero ? Bytecode.DIV_VC_I : op0;
+                case Bytecode.MOD_I -> nonZero ? Bytecode.MOD_VC_I : op0;
+                default -> op0;
+            };
+        }
+        if (op1 == Bytecode.PUSH_F) {
+            return sameVariable && op2 == Bytecode.ADD_F ? Bytecode.INC_F : op0;
+        }
+        if (op1 == Bytecode.LOAD) {
+            if (op3 == Bytecode.FJMP && (op2 == Bytecode.LT_I || op2 == Bytecode.GT_I || op2 == Bytecode.EQ_I)) {
+                return op2 == Bytecode.LT_I ? Bytecode.IF_LT_VV : op2 == Bytecode.GT_I ? Bytecode.IF_GT_VV : Bytecode.IF_EQ_VV;
+            }
+            return switch (op2) {
+                case Bytecode.ADD_I -> Bytecode.ADD_VV_I;
+                case Bytecode.SUB_I -> Bytecode.SUB_VV_I;
+                case Bytecode.MUL_I -> Bytecode.MUL_VV_I;
+                default -> op0;
+            };
+        }
+        return op0;
+    }
+
+    private static int at(int[] code, int pc) {
+        return pc < code.length ? code[pc] : -1;
+    }
+}
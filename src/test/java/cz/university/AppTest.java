@@ -1,38 +1,147 @@
 package cz.university;
 
+import cz.university.codegen.AotCompiler;
+import cz.university.codegen.ClosureCompiler;
 import cz.university.codegen.CodeGeneratorVisitor;
+import cz.university.codegen.ConstantFolder;
+import cz.university.codegen.DeadCodeEliminator;
 import cz.university.codegen.Instruction;
+import cz.university.codegen.JavaSourceGenerator;
+import cz.university.codegen.PeepholeOptimizer;
+import cz.university.runtime.Input;
+import cz.university.runtime.Output;
+import cz.university.runtime.Program;
+import cz.university.runtime.ProgramFile;
+import cz.university.runtime.RegisterMachine;
+import cz.university.runtime.StackMachine;
 import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.tree.*;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
 public class AppTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private List<Instruction> generate(String source) {
-        CharStream input = CharStreams.fromString(source);
-        cz.university.LanguageLexer lexer = new cz.university.LanguageLexer(input);
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
-        cz.university.LanguageParser parser = new cz.university.LanguageParser(tokens);
-        ParseTree tree = parser.program();
+        ParseTree tree = new TwoStageParser(ConsoleErrorListener.INSTANCE).parse(CharStreams.fromString(source));
 
         TypeCheckerVisitor checker = new TypeCheckerVisitor();
         checker.visit(tree);
         assertTrue("Type errors: " + checker.getErrors(), checker.getErrors().isEmpty());
 
-        CodeGeneratorVisitor generator = new CodeGeneratorVisitor(checker.getSymbolTable());
+        CodeGeneratorVisitor generator = new CodeGeneratorVisitor(checker.getSymbolTable(), checker.getTypes());
         generator.visit(tree);
         List<Instruction> list = generator.getInstructions();
         return list;
     }
 
+    private ParseTree check(String source, SymbolTable[] symbols) {
+        ParseTree tree = new TwoStageParser(ConsoleErrorListener.INSTANCE).parse(CharStreams.fromString(source));
+        TypeCheckerVisitor checker = new TypeCheckerVisitor();
+        checker.visit(tree);
+        assertTrue("Type errors: " + checker.getErrors(), checker.getErrors().isEmpty());
+        symbols[0] = checker.getSymbolTable();
+        return tree;
+    }
+
+    /** Output of the program on the stack VM, or the message it failed with. */
+    private String runOnVm(String source, String input) {
+        List<Instruction> code = generate(source);
+        return capture(input, () -> new StackMachine().execute(Program.assemble(code)));
+    }
+
+    /** Output of the program compiled to a JAR, or the message it failed with. */
+    private String runCompiled(String source, String input) throws IOException {
+        SymbolTable[] symbols = new SymbolTable[1];
+        ParseTree tree = check(source, symbols);
+        JavaSourceGenerator java = new JavaSourceGenerator(symbols[0]);
+        java.visit(tree);
+        Path jar = folder.newFolder().toPath().resolve("program.jar");
+        AotCompiler.writeJar(java.getSource(), jar);
+
+        return capture(input, () -> {
+            try (URLClassLoader loader = new URLClassLoader(new URL[]{jar.toUri().toURL()}, null)) {
+                loader.loadClass(JavaSourceGenerator.CLASS_NAME).getMethod("main", String[].class)
+                        .invoke(null, (Object) new String[0]);
+            } catch (InvocationTargetException e) {
+                throw (RuntimeException) e.getCause();
+            } catch (ReflectiveOperationException | IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+    }
+
+    /** Output of the program on the register VM, or the message it failed with. */
+    private String runOnRegisters(String source, String input) {
+        List<Instruction> code = generate(source);
+        return capture(input, () -> new RegisterMachine().execute(Program.assemble(code)));
+    }
+
+    /** Output of the program run by the closure-compiled tree, or the message it failed with. */
+    private String runWithClosures(String source, String input) {
+        SymbolTable[] symbols = new SymbolTable[1];
+        ParseTree tree = check(source, symbols);
+        Runnable program = new ClosureCompiler(symbols[0]).compile(tree);
+        return capture(input, program);
+    }
+
+    private static String capture(String input, Runnable program) {
+        InputStream originalIn = System.in;
+        PrintStream originalOut = System.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setIn(new ByteArrayInputStream(input.getBytes()));
+        System.setOut(new PrintStream(buffer, true));
+        try {
+            program.run();
+        } catch (RuntimeException e) {
+            buffer.writeBytes(("error: " + e.getMessage()).getBytes());
+        } finally {
+            System.setIn(originalIn);
+            System.setOut(originalOut);
+        }
+        return buffer.toString();
+    }
+
+    /** Standard output of {@code App.main(args)} run in a new JVM whose working directory is {@code dir}. */
+    private static String runApp(Path dir, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), App.class.getName()));
+        command.addAll(List.of(args));
+        Process process = new ProcessBuilder(command)
+                .directory(dir.toFile())
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        process.getOutputStream().close();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertEquals("exit status of App " + command, 0, process.waitFor());
+        return output;
+    }
+
     @Test
     public void testInitialValues() throws TypeException {
         SymbolTable st = new SymbolTable();
@@ -648,6 +757,70 @@ public class AppTest {
         }
     }
 
+    @Test
+    public void testForStatementFloatPromotion() {
+        System.out.println("---- testForStatementFloatPromotion ----");
+        String input = """
+        float x;
+        for (x = 0; x < 2.5; x = x + 1) {
+        }
+        """;
+        List<Instruction> instr = generate(input);
+        instr.forEach(System.out::println);
+
+        List<String> expected = List.of(
+                "push F 0.0", "save x",
+                "push I 0", "itof", "save x",
+                "label 0",
+                "load x", "push F 2.5", "lt F", "fjmp 1",
+                "load x", "push I 1", "itof", "add F", "save x",
+                "jmp 0",
+                "label 1"
+        );
+
+        assertEquals(expected.size(), instr.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), instr.get(i).toString());
+        }
+    }
+
+    @Test
+    public void testVariableSlots() {
+        System.out.println("---- testVariableSlots ----");
+        String input = """
+        int a;
+        float b;
+        b = a;
+        """;
+        List<Instruction> instr = generate(input);
+        instr.forEach(System.out::println);
+
+        assertEquals(0, instr.get(1).getSlot());   // save a
+        assertEquals(1, instr.get(3).getSlot());   // save b
+        assertEquals(0, instr.get(4).getSlot());   // load a
+        assertEquals(1, instr.get(6).getSlot());   // save b
+        assertEquals(-1, instr.get(5).getSlot());  // itof
+    }
+
+    @Test
+    public void testInstructionLines() {
+        System.out.println("---- testInstructionLines ----");
+        String input = """
+        int a;
+        while (a < 3)
+            a = a + 1;
+        """;
+        List<Instruction> instr = generate(input);
+        instr.forEach(System.out::println);
+
+        assertEquals(1, instr.get(0).getLine());   // push I 0
+        assertEquals(2, instr.get(2).getLine());   // label 0
+        assertEquals(2, instr.get(5).getLine());   // lt I
+        assertEquals(3, instr.get(8).getLine());   // push I 1
+        assertEquals(2, instr.get(13).getLine());  // jmp 0
+        assertTrue(instr.stream().allMatch(i -> i.getLine() > 0));
+    }
+
     @Test
     public void testChainAssignment() {
         System.out.println("---- testChainAssignment ----");
@@ -673,6 +846,151 @@ public class AppTest {
         }
     }
 
+    @Test
+    public void testPeepholeChainAssignment() {
+        System.out.println("---- testPeepholeChainAssignment ----");
+        String input = """
+        int i, j, k;
+        i = j = k = 55;
+        """;
+
+        PeepholeOptimizer optimizer = new PeepholeOptimizer();
+        List<Instruction> instr = optimizer.optimize(generate(input));
+        instr.forEach(System.out::println);
+
+        List<String> expected = List.of(
+                "push I 55", "save k",
+                "load k", "save j",
+                "load j", "save i"
+        );
+        assertEquals(expected, instr.stream().map(Instruction::toString).toList());
+        assertEquals(2, (int) optimizer.getRemoved().get(PeepholeOptimizer.Rule.LOAD_POP));
+        assertEquals(6, (int) optimizer.getRemoved().get(PeepholeOptimizer.Rule.DEAD_STORE));
+        assertEquals(8, optimizer.getRemovedTotal());
+    }
+
+    @Test
+    public void testPeepholeIfWithoutElse() {
+        System.out.println("---- testPeepholeIfWithoutElse ----");
+        String input = """
+        int a;
+        if (a < 1) write a;
+        """;
+
+        List<Instruction> instr = new PeepholeOptimizer().optimize(generate(input));
+        instr.forEach(System.out::println);
+
+        List<String> expected = List.of(
+                "push I 0", "save a",
+                "load a", "push I 1", "lt I", "fjmp 0",
+                "load a", "print 1",
+                "label 0"
+        );
+        assertEquals(expected, instr.stream().map(Instruction::toString).toList());
+    }
+
+    @Test
+    public void testPeepholeRulesAreConfigurable() {
+        System.out.println("---- testPeepholeRulesAreConfigurable ----");
+        String input = """
+        int a;
+        a = 1;
+        if (a < 1) write a;
+        """;
+
+        List<Instruction> original = generate(input);
+        PeepholeOptimizer optimizer = new PeepholeOptimizer(EnumSet.of(PeepholeOptimizer.Rule.JUMP_TO_NEXT));
+        List<Instruction> instr = optimizer.optimize(original);
+        instr.forEach(System.out::println);
+
+        assertEquals(original.size() - 1, instr.size());
+        assertTrue(instr.stream().noneMatch(i -> i.getOpCode() == Instruction.OpCode.JMP));
+        assertEquals("Peephole: removed 1 instructions (jumps to next instruction: 1)", optimizer.report());
+    }
+
+    @Test
+    public void testConstantFolding() {
+        System.out.println("---- testConstantFolding ----");
+        String input = """
+        write 3 * 4 + 2, "a" . "b" . "c", -500, 1 + 2.5, 7 / 2, !(1 < 2), 1 / 0, 1.0 / 0.0;
+        """;
+
+        List<Instruction> instr = new ConstantFolder().optimize(generate(input));
+        instr.forEach(System.out::println);
+
+        List<String> expected = List.of(
+                "push I 14", "push S \"abc\"", "push I -500", "push F 3.5", "push I 3", "push B false",
+                "push I 1", "push I 0", "div I",
+                "push F 1.0", "push F 0.0", "div F",
+                "print 8"
+        );
+        assertEquals(expected, instr.stream().map(Instruction::toString).toList());
+    }
+
+    @Test
+    public void testConstantPropagation() {
+        System.out.println("---- testConstantPropagation ----");
+        String input = """
+        int a, i;
+        a = 5;
+        i = 0;
+        while (i < 3) {
+            write a * 2, i;
+            i = i + 1;
+        }
+        """;
+
+        ConstantFolder folder = new ConstantFolder();
+        List<Instruction> instr = folder.optimize(generate(input));
+        instr.forEach(System.out::println);
+
+        List<String> text = instr.stream().map(Instruction::toString).toList();
+        int body = text.indexOf("fjmp 1");
+        assertEquals(List.of("push I 10", "load i", "print 2"), text.subList(body + 1, body + 4));
+        assertEquals("load i", text.get(body - 3));
+        assertTrue(folder.getPropagated() >= 1);
+    }
+
+    @Test
+    public void testDeadCodeElimination() {
+        System.out.println("---- testDeadCodeElimination ----");
+        String input = """
+        int a;
+        if (false) write 1; else write 2;
+        while (false) a = 1;
+        write a;
+        """;
+
+        List<Instruction> instr = new DeadCodeEliminator().optimize(generate(input));
+        instr.forEach(System.out::println);
+
+        List<String> expected = List.of(
+                "push I 0", "save a",
+                "push I 2", "print 1",
+                "load a", "print 1"
+        );
+        assertEquals(expected, instr.stream().map(Instruction::toString).toList());
+    }
+
+    @Test
+    public void testDeadCodeAfterInfiniteLoop() {
+        System.out.println("---- testDeadCodeAfterInfiniteLoop ----");
+        String input = """
+        int a;
+        while (1 < 2) a = a + 1;
+        write a;
+        """;
+
+        List<Instruction> instr = new DeadCodeEliminator().optimize(new ConstantFolder().optimize(generate(input)));
+        instr.forEach(System.out::println);
+
+        List<String> text = instr.stream().map(Instruction::toString).toList();
+        assertFalse(text.contains("print 1"));
+        assertFalse(text.contains("fjmp 1"));
+        assertEquals("label 0", text.get(2));
+        assertEquals("jmp 0", text.get(text.size() - 1));
+    }
+
     @Test
     public void testFileAppendExpr() {
         System.out.println("---- testFileAppendExpr ----");
@@ -778,4 +1096,395 @@ public class AppTest {
     }
 
 
+
+    @Test
+    public void testCompiledJarMatchesStackMachine() throws IOException {
+        String input = "5\n2.5\nhello\ntrue\n";
+        for (int testNum = 1; testNum <= 3; testNum++) {
+            String source = Files.readString(Path.of("src/test/resources/PLC_t" + testNum + ".in"));
+            assertEquals("PLC_t" + testNum, runOnVm(source, input), runCompiled(source, input));
+        }
+    }
+
+    @Test
+    public void testCompiledJarMatchesStackMachineOnErrors() throws IOException {
+        List<String> programs = List.of(
+                "int a; a = 7; write a / 2, a % 4; write a / (a - 7);",
+                "float f; f = 1; write f / 4; write f / 0.0;",
+                "bool b; b = false && 1 / 0 == 1;",
+                "if (false) { int x; } write \"x:\"; write x;",
+                "int i; i = 0; while (i < 3) { string s; s = s . \"a\"; write s, i; i = i + 1; }",
+                "file f; f << 1;",
+                "int n; read n; write n * 2; read n;"
+        );
+        for (String source : programs) {
+            assertEquals(source, runOnVm(source, "21\nx\n"), runCompiled(source, "21\nx\n"));
+        }
+    }
+
+    @Test
+    public void testCompiledJarMatchesStackMachineOnFloatInequality() throws IOException {
+        String source = "float x; x = 2.5; write x != 2.5, x != 1, 1 != 1.0, 2 != x;";
+        assertEquals("falsetruefalsetrue\n", runCompiled(source, ""));
+        assertEquals(runOnVm(source, ""), runCompiled(source, ""));
+    }
+
+    @Test
+    public void testClosuresMatchStackMachine() throws IOException {
+        String input = "5\n2.5\nhello\ntrue\n";
+        for (int testNum = 1; testNum <= 3; testNum++) {
+            String source = Files.readString(Path.of("src/test/resources/PLC_t" + testNum + ".in"));
+            assertEquals("PLC_t" + testNum, runOnVm(source, input), runWithClosures(source, input));
+        }
+    }
+
+    @Test
+    public void testClosuresMatchStackMachineOnErrors() {
+        List<String> programs = List.of(
+                "int a; a = 7; write a / 2, a % 4; write a / (a - 7);",
+                "float f; f = 1; write f / 4; write f / 0.0;",
+                "bool b; b = false && 1 / 0 == 1;",
+                "if (false) { int x; } write \"x:\"; write x;",
+                "int i; i = 0; while (i < 3) { string s; s = s . \"a\"; write s, i; i = i + 1; }",
+                "int i, j; for (i = 0; i < 4; i = i + 1) { j = j + i * 2; } write i, j, 2147483648;",
+                "file f; f << 1;",
+                "int n; read n; write n * 2; read n;"
+        );
+        for (String source : programs) {
+            assertEquals(source, runOnVm(source, "21\nx\n"), runWithClosures(source, "21\nx\n"));
+        }
+    }
+
+    @Test
+    public void testClosuresBufferOutputAndFlushBeforeReadAndOnError() {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int[] writtenAtRead = {-1};
+        InputStream in = new InputStream() {
+            private final byte[] line = "4\n".getBytes(StandardCharsets.UTF_8);
+            private int at = 0;
+
+            @Override
+            public int read() {
+                if (writtenAtRead[0] < 0) writtenAtRead[0] = written.size();
+                return at < line.length ? line[at++] : -1;
+            }
+        };
+        SymbolTable[] symbols = new SymbolTable[1];
+        ParseTree tree = check("int n; write \"n?\"; read n; write n * 2; write n / 0;", symbols);
+        ClosureCompiler compiler = new ClosureCompiler(symbols[0]);
+        compiler.setOutput(new Output(Channels.newChannel(written), Output.DEFAULT_CAPACITY));
+        compiler.setInput(Input.of(in));
+        RuntimeException e = assertThrows(RuntimeException.class, () -> compiler.compile(tree).run());
+        assertEquals("Division by zero", e.getMessage());
+        String separator = System.lineSeparator();
+        assertEquals(("n?" + separator).length(), writtenAtRead[0]);
+        assertEquals("n?" + separator + "8" + separator, written.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testClosuresMatchStackMachineOnFloatInequality() {
+        String source = "float x; x = 2.5; write x != 2.5, x != 1, 1 != 1.0, 2 != x;";
+        assertEquals("falsetruefalsetrue\n", runOnVm(source, ""));
+        assertEquals(runOnVm(source, ""), runWithClosures(source, ""));
+        assertEquals(runOnVm(source, ""), runOnRegisters(source, ""));
+    }
+
+    @Test
+    public void testRegisterMachineMatchesStackMachine() throws IOException {
+        String input = "5\n2.5\nhello\ntrue\n";
+        for (int testNum = 1; testNum <= 3; testNum++) {
+            String source = Files.readString(Path.of("src/test/resources/PLC_t" + testNum + ".in"));
+            assertEquals("PLC_t" + testNum, runOnVm(source, input), runOnRegisters(source, input));
+        }
+        List<String> programs = List.of(
+                "int a; a = 7; write a / 2, a % 4; write a / (a - 7);",
+                "bool b; b = false && 1 / 0 == 1;",
+                "if (false) { int x; } write \"x:\"; write x;",
+                "int i; i = 0; while (i < 3) { string s; s = s . \"a\"; write s, i; i = i + 1; }",
+                "int n; read n; write n * 2; read n;"
+        );
+        for (String source : programs) {
+            assertEquals(source, runOnVm(source, "21\nx\n"), runOnRegisters(source, "21\nx\n"));
+        }
+    }
+
+    @Test
+    public void testFileWritesMatchAcrossEngines() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("engines.txt");
+        String path = file.toString();
+        String source = "file f; int i;"
+                + "f = open(\"" + path + "\", \"a\"); f << \"old\";"
+                + "f = open(\"" + path + "\", \"w\");"
+                + "for (i = 0; i < 3; i = i + 1) { f << \"line \" << i; }"
+                + "f = open(\"" + path + "\", \"a\"); f << \"end\";";
+        List<String> expected = List.of("line 0", "line 1", "line 2", "end");
+
+        runOnVm(source, "");
+        assertEquals("stack VM", expected, Files.readAllLines(file));
+        Files.delete(file);
+        runOnRegisters(source, "");
+        assertEquals("register VM", expected, Files.readAllLines(file));
+        Files.delete(file);
+        runWithClosures(source, "");
+        assertEquals("closures", expected, Files.readAllLines(file));
+        Files.delete(file);
+        runCompiled(source, "");
+        assertEquals("compiled JAR", expected, Files.readAllLines(file));
+    }
+
+    @Test
+    public void testBufferedFileWritesAreFlushedWhenTheRunFails() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("failing.txt");
+        String source = "file f; int i; f = open(\"" + file + "\", \"w\");"
+                + "for (i = 0; i < 1000; i = i + 1) { f << i; } write i / (i - 1000);";
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            expected.add(Integer.toString(i));
+        }
+
+        assertEquals("error: Division by zero", runWithClosures(source, ""));
+        assertEquals("closures", expected, Files.readAllLines(file));
+        assertEquals("error: Division by zero", runCompiled(source, ""));
+        assertEquals("compiled JAR", expected, Files.readAllLines(file));
+    }
+
+    @Test
+    public void testAppRunsInMemoryAndWritesArtifactsOnlyWhenAsked() throws IOException, InterruptedException {
+        Path dir = folder.newFolder("app").toPath();
+        Path resources = Files.createDirectories(dir.resolve("src/test/resources"));
+        String source = "int a; a = 2; write a + 1;";
+        Files.writeString(resources.resolve("program.lang"), source);
+        String separator = System.lineSeparator();
+
+        String plain = runApp(dir, "program.lang");
+        assertTrue(plain, plain.contains("3" + separator));
+        assertFalse(plain, plain.contains("(program"));
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(List.of(dir.resolve("src")), files.toList());
+        }
+
+        assertTrue(runApp(dir, "--dump-tree", "program.lang").contains("(program"));
+
+        runApp(dir, "--emit-text", "program.lang");
+        assertEquals(generate(source).stream().map(Object::toString).toList(),
+                Files.readAllLines(dir.resolve("output.out")));
+        assertFalse(Files.exists(dir.resolve("output.bin")));
+
+        runApp(dir, "--emit-binary", "program.lang");
+        assertTrue(Files.exists(dir.resolve("output.bin")));
+        String loaded = runApp(dir, "output.bin");
+        assertTrue(loaded, loaded.contains("3" + separator));
+    }
+
+    @Test
+    public void testBatchCompilesEveryFileAndKeepsGoingAfterErrors() throws IOException {
+        Path dir = folder.newFolder("batch").toPath();
+        Files.createDirectories(dir.resolve("nested"));
+        Files.writeString(dir.resolve("a.lang"), "int a; a = 1; write a;");
+        Files.writeString(dir.resolve("b.lang"), "int b; b = \"text\";");
+        Files.writeString(dir.resolve("nested/c.lang"), "int c c = 1;");
+        Files.writeString(dir.resolve("nested/d.lang"), "write 2 + 3;");
+        Files.writeString(dir.resolve("notes.txt"), "not a program");
+        Files.writeString(dir.resolve("manifest.txt"), "# two programs\na.lang\n\nnested/d.lang\n");
+
+        List<Path> all = BatchCompiler.sources(dir.toString());
+        assertEquals(List.of(dir.resolve("a.lang"), dir.resolve("b.lang"),
+                dir.resolve("nested/c.lang"), dir.resolve("nested/d.lang")), all);
+        assertEquals(List.of(dir.resolve("nested/c.lang"), dir.resolve("nested/d.lang")),
+                BatchCompiler.sources(dir + "/nested/*.lang"));
+        assertEquals(List.of(dir.resolve("a.lang"), dir.resolve("nested/d.lang")),
+                BatchCompiler.sources(dir.resolve("manifest.txt").toString()));
+
+        BatchCompiler compiler = new BatchCompiler(false, false, false);
+        List<BatchCompiler.Result> results = all.stream().map(compiler::compile).toList();
+        assertTrue(results.get(0).ok());
+        assertEquals(generate("int a; a = 1; write a;").toString(), results.get(0).instructions().toString());
+        assertFalse(results.get(1).ok());
+        assertFalse(results.get(2).ok());
+        assertTrue(results.get(2).errors().get(0).startsWith("line 1:"));
+        assertTrue(results.get(3).ok());
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        assertEquals(2, BatchCompiler.report(results, 0, new PrintStream(report, true)));
+        assertTrue(report.toString().contains("Compiled 4 files, 2 failed"));
+    }
+
+    @Test
+    public void testParallelBatchMatchesSequentialCompilation() throws IOException {
+        Path dir = folder.newFolder("parallel").toPath();
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            Path file = dir.resolve("p" + i + ".lang");
+            Files.copy(Path.of("src/test/resources/PLC_t" + (i % 3 + 1) + ".in"), file);
+            files.add(file);
+        }
+        Files.writeString(files.get(7), "int x; x = true;");
+
+        BatchCompiler sequential = new BatchCompiler(true, false, false);
+        List<BatchCompiler.Result> parallel = BatchCompiler.compileAll(files, 4,
+                () -> new BatchCompiler(true, false, true));
+        assertEquals(files.size(), parallel.size());
+        for (int i = 0; i < files.size(); i++) {
+            BatchCompiler.Result expected = sequential.compile(files.get(i));
+            assertEquals(files.get(i), parallel.get(i).file());
+            assertEquals(expected.errors(), parallel.get(i).errors());
+            assertEquals(expected.instructions().toString(), parallel.get(i).instructions().toString());
+            assertEquals(expected.ok(), Files.exists(dir.resolve("p" + i + ".bin")));
+        }
+    }
+
+    @Test
+    public void testTwoStageParsingFallsBackToFullLlOnErrors() {
+        List<String> errors = new ArrayList<>();
+        TwoStageParser parser = new TwoStageParser(new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+                                    int charPositionInLine, String msg, RecognitionException e) {
+                errors.add(line + ":" + charPositionInLine);
+            }
+        });
+        String valid = "int a; a = 1; while (a < 3) { write a; a = a + 1; }";
+        ParseTree tree = parser.parse(CharStreams.fromString(valid));
+        assertEquals(TwoStageParser.Stage.SLL, parser.getLastStage());
+        assertTrue(errors.isEmpty());
+
+        parser.parse(CharStreams.fromString("int a;\na = ;"));
+        assertEquals(TwoStageParser.Stage.LL, parser.getLastStage());
+        assertEquals(List.of("2:4"), errors);
+
+        assertEquals(tree.toStringTree(parser.getParser()),
+                parser.parse(CharStreams.fromString(valid)).toStringTree(parser.getParser()));
+        assertTrue(parser.report(), parser.report().startsWith("Parsing: 2 with SLL"));
+    }
+
+    @Test
+    public void testStatementByStatementCompilationMatchesWholeTree() throws IOException {
+        for (int testNum = 1; testNum <= 3; testNum++) {
+            String source = Files.readString(Path.of("src/test/resources/PLC_t" + testNum + ".in"));
+            TwoStageParser parser = new TwoStageParser(ConsoleErrorListener.INSTANCE);
+            parser.open(CharStreams.fromString(source));
+            TypeCheckerVisitor checker = new TypeCheckerVisitor();
+            CodeGeneratorVisitor generator = new CodeGeneratorVisitor(checker.getSymbolTable());
+            int statements = 0;
+            for (ParserRuleContext statement; (statement = parser.nextStatement()) != null; statements++) {
+                assertNull(statement.getParent());
+                checker.visit(statement);
+                generator.visit(statement);
+            }
+            assertTrue(checker.getErrors().isEmpty());
+            assertTrue(statements > 1);
+            assertEquals("PLC_t" + testNum, generate(source).toString(), generator.getInstructions().toString());
+        }
+    }
+
+    @Test
+    public void testUnbufferedStatementParsingKeepsCodeAndErrorPositions() throws IOException {
+        String source = Files.readString(Path.of("src/test/resources/PLC_t2.in"));
+        TwoStageParser parser = new TwoStageParser(ConsoleErrorListener.INSTANCE);
+        parser.openUnbuffered(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+        TypeCheckerVisitor checker = new TypeCheckerVisitor();
+        CodeGeneratorVisitor generator = new CodeGeneratorVisitor(checker.getSymbolTable());
+        for (ParserRuleContext statement; (statement = parser.nextStatement()) != null; ) {
+            checker.visit(statement);
+            generator.visit(statement);
+        }
+        assertEquals(generate(source).toString(), generator.getInstructions().toString());
+
+        List<String> errors = new ArrayList<>();
+        TwoStageParser failing = new TwoStageParser(new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+                                    int charPositionInLine, String msg, RecognitionException e) {
+                errors.add(line + ":" + charPositionInLine + " " + msg);
+            }
+        });
+        failing.openUnbuffered(new ByteArrayInputStream("int a;\nwrite \"ok\";\n  a = * 2;\nwrite a;".getBytes()));
+        int statements = 0;
+        while (failing.nextStatement() != null) {
+            statements++;
+        }
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0), errors.get(0).startsWith("3:6 extraneous input '*'"));
+        assertEquals(TwoStageParser.Stage.SLL, failing.getLastStage());
+        assertEquals(4, statements);
+    }
+
+    @Test
+    public void testCodeGenerationReadsCheckerTypes() throws IOException {
+        for (int testNum = 1; testNum <= 3; testNum++) {
+            String source = Files.readString(Path.of("src/test/resources/PLC_t" + testNum + ".in"));
+            ParseTree tree = new TwoStageParser(ConsoleErrorListener.INSTANCE).parse(CharStreams.fromString(source));
+            TypeCheckerVisitor checker = new TypeCheckerVisitor();
+            checker.visit(tree);
+            CodeGeneratorVisitor derived = new CodeGeneratorVisitor(checker.getSymbolTable());
+            derived.visit(tree);
+            assertEquals("PLC_t" + testNum, derived.getInstructions().toString(), generate(source).toString());
+        }
+
+        // unary minus has no statically derivable type, so this needs the annotations
+        assertEquals("4\n", runOnVm("int a; a = 2; write (-a) + 6;", ""));
+
+        StringBuilder nested = new StringBuilder("int x; x = 1; write ");
+        for (int i = 0; i < 300; i++) {
+            nested.append("(x + ");
+        }
+        nested.append("1.5").append(")".repeat(300)).append(";");
+        assertEquals("301.5\n", runOnVm(nested.toString(), ""));
+    }
+
+    @Test
+    public void testLongOperatorChainsCompileWithoutDeepRecursion() {
+        int operands = 50000;
+        assertEquals(operands + 1 + "\n", runOnVm("int x; x = 1; write 1" + " + x".repeat(operands) + ";", ""));
+        assertEquals("true\n", runOnVm("bool b; b = true; write b" + " && b".repeat(operands) + ";", ""));
+
+        List<Instruction> instructions = generate("file f; f = open(\"chain.txt\", \"a\"); f" + " << 1".repeat(operands) + ";");
+        assertEquals("fappend " + operands, instructions.get(instructions.size() - 1).toString());
+    }
+
+    @Test
+    public void testCompileCacheKeysStoresAndEvicts() throws IOException {
+        Path sources = folder.newFolder("cached").toPath();
+        Path first = Files.writeString(sources.resolve("first.lang"), "int a; a = 2; write a * 21;");
+        Path copy = Files.writeString(sources.resolve("copy.lang"), "int a; a = 2; write a * 21;");
+        Path second = Files.writeString(sources.resolve("second.lang"), "write \"x\";");
+
+        String key = CompileCache.key(first, "");
+        assertEquals(key, CompileCache.key(copy, ""));
+        assertNotEquals(key, CompileCache.key(first, "optimize"));
+        assertNotEquals(key, CompileCache.key(second, ""));
+        assertEquals(CompileCache.compilerVersion(), CompileCache.compilerVersion());
+        assertEquals(key, CompileCache.key(first, "", CompileCache.compilerVersion()));
+
+        Path directory = folder.getRoot().toPath().resolve("cache");
+        CompileCache cache = new CompileCache(directory, Long.MAX_VALUE);
+        assertNull(cache.load(key));
+        cache.store(key, Program.assemble(generate(Files.readString(first))));
+        Program cached = cache.load(key);
+        assertEquals("42\n", capture("", () -> new StackMachine().execute(cached)));
+        // a rebuilt compiler has another version and does not see this entry
+        assertNull(cache.load(CompileCache.key(first, "", CompileCache.compilerVersion() + "-rebuilt")));
+
+        // an unreadable entry is a miss, not a failure
+        Files.writeString(directory.resolve(key + ".bin"), "garbage");
+        assertNull(cache.load(key));
+        assertFalse(Files.exists(directory.resolve(key + ".bin")));
+
+        // so is an entry that decodes but fails verification, instead of failing every run
+        ProgramFile.write(Program.decode(List.of("add I", "print 1")), directory.resolve(key + ".bin"));
+        assertNull(cache.load(key));
+        assertFalse(Files.exists(directory.resolve(key + ".bin")));
+
+        // the limit holds only the larger first entry, so storing the second evicts the least recently used one
+        cache.store(key, Program.assemble(generate(Files.readString(first))));
+        long size = Files.size(directory.resolve(key + ".bin"));
+        Files.setLastModifiedTime(directory.resolve(key + ".bin"), FileTime.fromMillis(0));
+        String secondKey = CompileCache.key(second, "");
+        new CompileCache(directory, size).store(secondKey, Program.assemble(generate(Files.readString(second))));
+        assertFalse(Files.exists(directory.resolve(key + ".bin")));
+        assertTrue(Files.exists(directory.resolve(secondKey + ".bin")));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.count());
+        }
+    }
 }
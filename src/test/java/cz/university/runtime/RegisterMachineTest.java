@@ -0,0 +1,118 @@
+package cz.university.runtime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RegisterMachineTest {
+
+    private static final List<String> LOOPS = List.of(
+            "push I 0", "save i", "push I 0", "save s", "push F 0.0", "save f", "push B false", "save b",
+            "label 0",
+            "load i", "push I 100", "lt I", "fjmp 1",
+            "push I 0", "save j",
+            "label 2",
+            "load j", "push I 3", "lt I", "fjmp 3",
+            "load s", "load i", "load j", "mul I", "push I 7", "mod", "add I", "save s",
+            "load j", "push I 1", "add I", "save j",
+            "jmp 2",
+            "label 3",
+            "load f", "load i", "itof", "push F 2.0", "div F", "add F", "save f",
+            "load b", "not", "save b",
+            "load i", "push I 1", "add I", "save i",
+            "jmp 0",
+            "label 1",
+            "load s", "load f", "load b", "load i", "push I 50", "gt I", "print 4"
+    );
+
+    private static String capture(Runnable program) {
+        PrintStream original = System.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer, true));
+        try {
+            program.run();
+        } catch (RuntimeException e) {
+            buffer.writeBytes(("error: " + e.getMessage()).getBytes());
+        } finally {
+            System.setOut(original);
+        }
+        return buffer.toString().replace("\r\n", "\n");
+    }
+
+    private static void assertSameAsStackMachine(List<String> instructions) {
+        String expected = capture(() -> new StackMachine().execute(instructions));
+        assertEquals(expected, capture(() -> new RegisterMachine().execute(instructions)));
+    }
+
+    @Test
+    public void testLoadsAndSavesFoldIntoThreeAddressInstructions() {
+        RegisterProgram program = RegisterCompiler.compile(Program.decode(List.of(
+                "push I 0", "save i",
+                "label 0",
+                "load i", "push I 10", "lt I", "fjmp 1",
+                "load i", "push I 1", "add I", "save i",
+                "jmp 0",
+                "label 1"
+        )));
+        assertEquals("0: move i, #0\n"
+                + "1: jnlt I @4, i, #10\n"
+                + "2: add I i, i, #1\n"
+                + "3: jmp @1\n", program.toString());
+    }
+
+    @Test
+    public void testMatchesStackMachine() {
+        assertSameAsStackMachine(LOOPS);
+        assertSameAsStackMachine(List.of(
+                "push F -0.5", "uminus F", "save f",
+                "push S \"a\"", "push S \"a\"", "eq S", "save b",
+                "load f", "push S \" \"", "load b", "push S \" \"",
+                "push I 7", "push I 2", "div I", "itof",
+                "push B true",
+                "push F 0.5", "fjmp 0",
+                "not",
+                "label 0",
+                "print 6"
+        ));
+        assertSameAsStackMachine(List.of(
+                "push S \"n=\"", "push I 4", "concat", "push B true", "concat", "save s",
+                "push I 1", "save a", "load a", "load a", "push I 2", "add I", "save a", "load a", "print 2",
+                "load s", "print 1"
+        ));
+    }
+
+    @Test
+    public void testOldValueSurvivesOverwrite() {
+        // the first load of a is still on the stack when a is reassigned
+        RegisterProgram program = RegisterCompiler.compile(Program.decode(List.of(
+                "push I 1", "save a", "load a", "push I 5", "save a", "load a", "print 2"
+        )));
+        assertEquals(5, program.size());
+        assertEquals("15\n", capture(() -> new RegisterMachine().execute(program)));
+    }
+
+    @Test
+    public void testRuntimeErrors() {
+        assertSameAsStackMachine(List.of("push I 1", "push I 0", "div I"));
+        assertSameAsStackMachine(List.of("push F 1.0", "push F 0.0", "div F"));
+        assertSameAsStackMachine(List.of("load x", "print 1", "push I 1", "save x"));
+        assertSameAsStackMachine(List.of(
+                "push B false", "fjmp 0", "push I 1", "save x", "label 0",
+                "push S ok", "print 1", "load x", "print 1"));
+        assertSameAsStackMachine(List.of("push B false", "fjmp 0", "bogus 1", "label 0", "push S ok", "print 1"));
+    }
+
+    @Test
+    public void testDefinitelyAssignedVariablesAreNotChecked() {
+        RegisterProgram program = RegisterCompiler.compile(Program.decode(LOOPS));
+        for (int i = 0; i < program.size(); i++) {
+            assertNotEquals(RegisterProgram.CHECK, program.opcode(i));
+            assertNotEquals(RegisterProgram.MARK, program.opcode(i));
+        }
+        assertTrue(program.size() < Linker.link(Program.decode(LOOPS)).size() / 2);
+    }
+}
@@ -0,0 +1,471 @@
+package cz.university.runtime;
+
+import cz.university.codegen.Instruction;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+import static org.junit.Assert.*;
+
+public class StackMachineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String run(List<String> instructions) {
+        return run(new StackMachine(), instructions);
+    }
+
+    private String run(StackMachine machine, List<String> instructions) {
+        PrintStream original = System.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer, true));
+        try {
+            machine.execute(instructions);
+        } finally {
+            System.setOut(original);
+        }
+        return buffer.toString().replace("\r\n", "\n");
+    }
+
+    @Test
+    public void testDecodeResolvesLabelsAndSkipsEmptyLines() {
+        Program program = Program.decode(List.of(
+                "push I 1",
+                "",
+                "fjmp 7",
+                "jmp 7",
+                "label 7"
+        ));
+        assertEquals(4, program.size());
+        assertEquals(Bytecode.PUSH_I, program.opcode(0));
+        assertEquals(1, program.operand(0));
+        assertEquals(Bytecode.FJMP, program.opcode(1));
+        assertEquals(3, program.operand(1));
+        assertEquals(3, program.operand(2));
+    }
+
+    @Test
+    public void testArithmeticAndPrint() {
+        String out = run(List.of(
+                "push S \"sum: \"",
+                "push I 2", "push I 3", "push I 5", "mul I", "add I",
+                "push F 1.5", "push I 3", "itof", "mul F",
+                "print 3"
+        ));
+        assertEquals("sum: 174.5\n", out);
+    }
+
+    @Test
+    public void testLoopWithVariables() {
+        String out = run(List.of(
+                "push I 0", "save a",
+                "label 0",
+                "load a", "push I 3", "lt I", "fjmp 1",
+                "load a", "print 1",
+                "load a", "push I 1", "add I", "save a",
+                "jmp 0",
+                "label 1"
+        ));
+        assertEquals("0\n1\n2\n", out);
+    }
+
+    @Test
+    public void testMalformedInstructionFailsOnlyWhenExecuted() {
+        String out = run(List.of(
+                "push B false", "fjmp 0",
+                "bogus 1",
+                "label 0",
+                "push S ok", "print 1"
+        ));
+        assertEquals("ok\n", out);
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> run(List.of("bogus 1")));
+        assertEquals("Unknown instruction: bogus", e.getMessage());
+    }
+
+    @Test
+    public void testUnboxedValuesKeepTheirType() {
+        String out = run(List.of(
+                "push F -0.5", "uminus F", "save f",
+                "push S \"a\"", "push S \"a\"", "eq S", "save b",
+                "load f", "push S \" \"", "load b", "push S \" \"",
+                "push I 7", "push I 2", "div I", "itof",
+                "push B true",
+                "push F 0.5", "fjmp 0",
+                "not",
+                "label 0",
+                "print 6"
+        ));
+        assertEquals("0.5 true 3.0true\n", out);
+    }
+
+    @Test
+    public void testDivisionByZero() {
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> run(List.of("push I 1", "push I 0", "div I")));
+        assertEquals("Division by zero", e.getMessage());
+    }
+
+    @Test
+    public void testLinkerStripsLabelsAndComputesMaxStack() {
+        Program linked = Linker.link(Program.decode(List.of(
+                "push I 0", "save a",
+                "label 0",
+                "load a", "push I 3", "lt I", "fjmp 1",
+                "load a", "push I 1", "add I", "save a",
+                "jmp 0",
+                "label 1"
+        )));
+        assertTrue(linked.isLinked());
+        assertEquals(11, linked.size());
+        assertEquals(2, linked.maxStack());
+        assertEquals(Bytecode.FJMP, linked.opcode(5));
+        assertEquals(11, linked.operand(5));
+        assertEquals(Bytecode.JMP, linked.opcode(10));
+        assertEquals(2, linked.operand(10));
+    }
+
+    @Test
+    public void testVerifierRejectsUnderflowAndTypeErrors() {
+        RuntimeException underflow = assertThrows(RuntimeException.class,
+                () -> Linker.link(Program.decode(List.of("push I 1", "add I"))));
+        assertTrue(underflow.getMessage(), underflow.getMessage().contains("Stack underflow"));
+
+        RuntimeException type = assertThrows(RuntimeException.class,
+                () -> Linker.link(Program.decode(List.of("push S x", "push I 1", "add I"))));
+        assertTrue(type.getMessage(), type.getMessage().contains("expected int, got string"));
+
+        RuntimeException merge = assertThrows(RuntimeException.class,
+                () -> Linker.link(Program.decode(List.of(
+                        "label 0", "push I 1", "push B true", "fjmp 0"))));
+        assertTrue(merge.getMessage(), merge.getMessage().contains("inconsistent stack"));
+    }
+
+    @Test
+    public void testLoadOfUnassignedVariableFailsAtRuntime() {
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> run(List.of("load x", "print 1", "push I 1", "save x")));
+        assertEquals("Variable 'x' not defined", e.getMessage());
+    }
+
+    @Test
+    public void testAssembleUsesSymbolTableSlots() {
+        Program program = Program.assemble(List.of(
+                new Instruction(Instruction.OpCode.PUSH_I, "7"),
+                new Instruction(Instruction.OpCode.SAVE_I, "b", 1),
+                new Instruction(Instruction.OpCode.LOAD, "b", 1),
+                new Instruction(Instruction.OpCode.SAVE_I, "a", 0)
+        ));
+        assertEquals(2, program.variableCount());
+        assertEquals(1, program.operand(1));
+        assertEquals(0, program.operand(3));
+    }
+
+    @Test
+    public void testBinaryProgramRoundTrip() throws IOException {
+        Program program = Program.assemble(List.of(
+                new Instruction(Instruction.OpCode.PUSH_F, "2.5", -1, 1),
+                new Instruction(Instruction.OpCode.SAVE_F, "f", 0, 1),
+                new Instruction(Instruction.OpCode.LABEL, "0", -1, 2),
+                new Instruction(Instruction.OpCode.PUSH_S, "\"žluťoučký\"", -1, 2),
+                new Instruction(Instruction.OpCode.LOAD, "f", 0, 2),
+                new Instruction(Instruction.OpCode.PRINT, "2", -1, 3)
+        ));
+        Path file = folder.getRoot().toPath().resolve("program.bin");
+        ProgramFile.write(program, file);
+        Program loaded = ProgramFile.load(file);
+
+        assertArrayEquals(program.code, loaded.code);
+        assertArrayEquals(program.operands, loaded.operands);
+        assertArrayEquals(program.strings, loaded.strings);
+        assertArrayEquals(program.variables, loaded.variables);
+        assertEquals(2.5f, loaded.floats[0], 0.0f);
+        assertArrayEquals(new int[]{1, 1, 2, 2, 2, 3}, loaded.lines);
+
+        Program linked = Linker.link(loaded);
+        assertEquals(5, linked.size());
+        assertEquals(2, linked.line(2));
+    }
+
+    @Test
+    public void testBinaryProgramRejectsCorruptFiles() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("program.bin");
+        Files.write(file, List.of("push I 1"));
+        IOException notProgram = assertThrows(IOException.class, () -> ProgramFile.load(file));
+        assertTrue(notProgram.getMessage(), notProgram.getMessage().startsWith("Not a compiled program"));
+
+        ProgramFile.write(Program.decode(List.of("push S \"hello\"", "print 1")), file);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+        IOException truncated = assertThrows(IOException.class, () -> ProgramFile.load(file));
+        assertTrue(truncated.getMessage(), truncated.getMessage().startsWith("Truncated program file"));
+
+        // the code section ends the file; point the jump past the end of the code
+        ProgramFile.write(Program.decode(List.of("push I 1", "print 1", "jmp 0", "label 0")), file);
+        bytes = Files.readAllBytes(file);
+        ByteBuffer.wrap(bytes).putInt(bytes.length - 12, 5);
+        Files.write(file, bytes);
+        IOException badJump = assertThrows(IOException.class, () -> ProgramFile.load(file));
+        assertTrue(badJump.getMessage(), badJump.getMessage().startsWith("Jump target 5 out of range"));
+    }
+
+    @Test
+    public void testSuperinstructionsAreSelectedAfterLinking() {
+        Program linked = Linker.link(Program.decode(List.of(
+                "push I 0", "save i", "load i", "pop",
+                "label 0",
+                "load i", "push I 3", "lt I", "fjmp 1",
+                "load i", "load i", "mul I", "print 1",
+                "load i", "push I 1", "add I", "save i",
+                "jmp 0",
+                "label 1"
+        )));
+        assertEquals(Bytecode.SAVE_LOAD_POP, linked.dispatch(1));
+        assertEquals(Bytecode.IF_LT_VC, linked.dispatch(4));
+        assertEquals(Bytecode.MUL_VV_I, linked.dispatch(8));
+        assertEquals(Bytecode.INC_I, linked.dispatch(12));
+        // the covered instructions keep their plain opcodes
+        assertEquals(Bytecode.LT_I, linked.dispatch(6));
+        assertEquals(Bytecode.LOAD, linked.opcode(4));
+    }
+
+    @Test
+    public void testNoSuperinstructionAcrossJumpTarget() {
+        Program linked = Linker.link(Program.decode(List.of(
+                "push I 1", "save i",
+                "load i", "push B true", "fjmp 0",
+                "label 0",
+                "push I 2", "add I", "print 1"
+        )));
+        assertEquals(Bytecode.LOAD, linked.dispatch(2));
+    }
+
+    @Test
+    public void testSuperinstructionsMatchPlainExecution() {
+        String out = run(List.of(
+                "push I 0", "save i", "push F 0.0", "save f", "push I 10", "save n",
+                "label 0",
+                "load i", "load n", "lt I", "fjmp 1",
+                "load i", "push I 7", "mod", "load i", "push I 2", "div I", "add I",
+                "load n", "load i", "sub I", "print 2",
+                "load f", "push F 0.5", "add F", "save f",
+                "load i", "push I 3", "add I", "save i",
+                "jmp 0",
+                "label 1",
+                "load f", "load i", "push I 1", "sub I", "print 2"
+        ));
+        assertEquals("010\n47\n94\n61\n2.011\n", out);
+
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> run(List.of("load x", "push I 1", "add I", "save x")));
+        assertEquals("Variable 'x' not defined", e.getMessage());
+    }
+
+    @Test
+    public void testJitCompiledLoopsMatchInterpreter() {
+        List<String> program = List.of(
+                "push I 0", "save i", "push I 0", "save s", "push F 0.0", "save f", "push B false", "save b",
+                "label 0",
+                "load i", "push I 100", "lt I", "fjmp 1",
+                "push I 0", "save j",
+                "label 2",
+                "load j", "push I 3", "lt I", "fjmp 3",
+                "load s", "load i", "load j", "mul I", "push I 7", "mod", "add I", "save s",
+                "load j", "push I 1", "add I", "save j",
+                "jmp 2",
+                "label 3",
+                "load f", "load i", "itof", "push F 2.0", "div F", "add F", "save f",
+                "load b", "not", "save b",
+                "load i", "push I 1", "add I", "save i",
+                "jmp 0",
+                "label 1",
+                "load s", "load f", "load b", "load i", "push I 50", "gt I", "print 4"
+        );
+        StackMachine machine = new StackMachine();
+        machine.setJitThreshold(2);
+        assertEquals(run(program), run(machine, program));
+        assertEquals(2, machine.getCompiledLoops());
+    }
+
+    @Test
+    public void testJitFallsBackForUnsupportedLoops() {
+        StackMachine machine = new StackMachine();
+        machine.setJitThreshold(1);
+        String out = run(machine, List.of(
+                "push I 0", "save i",
+                "label 0",
+                "load i", "push I 3", "lt I", "fjmp 1",
+                "load i", "print 1",
+                "load i", "push I 1", "add I", "save i",
+                "jmp 0",
+                "label 1"
+        ));
+        assertEquals("0\n1\n2\n", out);
+        assertEquals(0, machine.getCompiledLoops());
+    }
+
+    @Test
+    public void testJitDivisionByZero() {
+        StackMachine machine = new StackMachine();
+        machine.setJitThreshold(1);
+        RuntimeException e = assertThrows(RuntimeException.class, () -> run(machine, List.of(
+                "push I 60", "save n", "push I 0", "save i",
+                "label 0",
+                "load i", "push I 5", "lt I", "fjmp 1",
+                "load n", "push I 3", "load i", "sub I", "div I", "save n",
+                "load i", "push I 1", "add I", "save i",
+                "jmp 0",
+                "label 1"
+        )));
+        assertEquals("Division by zero", e.getMessage());
+        assertEquals(1, machine.getCompiledLoops());
+    }
+
+    @Test
+    public void testOutputIsFlushedBeforeRead() {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int[] writtenAtRead = {-1};
+        InputStream originalIn = System.in;
+        System.setIn(new InputStream() {
+            private final byte[] line = "42\n".getBytes(StandardCharsets.UTF_8);
+            private int at = 0;
+
+            @Override
+            public int read() {
+                if (writtenAtRead[0] < 0) writtenAtRead[0] = written.size();
+                return at < line.length ? line[at++] : -1;
+            }
+        });
+        try {
+            StackMachine machine = new StackMachine();
+            machine.setOutput(new Output(Channels.newChannel(written), Output.DEFAULT_CAPACITY));
+            machine.execute(List.of("push S \"n?\"", "print 1", "read I", "push I 1", "add I", "print 1"));
+        } finally {
+            System.setIn(originalIn);
+        }
+        String separator = System.lineSeparator();
+        assertEquals(("n?" + separator).length(), writtenAtRead[0]);
+        assertEquals("n?" + separator + "43" + separator, written.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testOutputEncodesUtf8AcrossBufferBoundaries() {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        Output output = new Output(Channels.newChannel(written), 8);
+        output.println("plain ascii line");
+        output.println("žluťoučký kůň €");
+        output.println(new StringBuilder("x"));
+        output.flush();
+        String separator = System.lineSeparator();
+        assertEquals("plain ascii line" + separator + "žluťoučký kůň €" + separator + "x" + separator,
+                written.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testOutputIsFlushedAfterDelayWithoutFurtherWrites() throws InterruptedException {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        Output output = new Output(Channels.newChannel(written), Output.DEFAULT_CAPACITY);
+        output.println("progress");
+        assertEquals(0, written.size());
+        long deadline = System.nanoTime() + 50 * Output.MAX_DELAY_NANOS;
+        while (written.size() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("progress" + System.lineSeparator(), written.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testInputParsesLikeScannerAcrossBufferBoundaries() {
+        List<String> ints = List.of("42", "-7", "+3", "2147483647", "-2147483648", "00012");
+        List<String> floats = List.of("1.5", "-0.1", "3", ".25", "7.", "-0", "1e3", " 2.5 ", "NaN",
+                "3.14159265358979", "123456789.123", "16777217");
+        String text = String.join("\r\n", ints) + "\n" + String.join("\r", floats)
+                + "\nTRUE\nyes\nžluťoučký kůň\n\nlast";
+        Input input = new Input(Channels.newChannel(
+                new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8))), 4);
+        for (String value : ints) {
+            assertEquals(Integer.parseInt(value), input.readInt());
+        }
+        for (String value : floats) {
+            assertEquals(Float.floatToRawIntBits(Float.parseFloat(value)),
+                    Float.floatToRawIntBits(input.readFloat()));
+        }
+        assertTrue(input.readBool());
+        assertFalse(input.readBool());
+        assertEquals("žluťoučký kůň", input.readLine());
+        assertEquals("", input.readLine());
+        assertEquals("last", input.readLine());
+        assertThrows(NoSuchElementException.class, input::readLine);
+    }
+
+    @Test
+    public void testInputEndsLinesWhereScannerDoes() {
+        String text = "5\u0085a\u2028€ b\u2029\u00a0c\r\u0085\n\rž\u2028\u2028x€";
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        for (int capacity = 1; capacity <= 6; capacity++) {
+            Scanner scanner = new Scanner(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8);
+            Input input = new Input(Channels.newChannel(new ByteArrayInputStream(bytes)), capacity);
+            assertEquals(5, input.readInt());
+            scanner.nextLine();
+            while (scanner.hasNextLine()) {
+                assertEquals("capacity " + capacity, scanner.nextLine(), input.readLine());
+            }
+            assertThrows(NoSuchElementException.class, input::readLine);
+        }
+    }
+
+    @Test
+    public void testInvalidInputFailsRead() {
+        for (String line : List.of("", "-", "12a", "2147483648", " 1", "1.2.3")) {
+            StackMachine machine = new StackMachine();
+            machine.setInput(new Input(Channels.newChannel(
+                    new ByteArrayInputStream((line + "\n").getBytes(StandardCharsets.UTF_8))), 16));
+            String opcode = line.contains(".") ? "read F" : "read I";
+            RuntimeException e = assertThrows(RuntimeException.class, () -> run(machine, List.of(opcode, "print 1")));
+            assertEquals("Invalid input during READ", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testFileHandlesShareOneBufferedFilePerPath() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("out.txt");
+        Files.writeString(file, "old" + System.lineSeparator());
+        String name = "push S \"" + file + "\"";
+        run(List.of(
+                name, "push S a", "fopen", "save f",
+                "load f", "push S x", "fappend 1",
+                name, "push S w", "fopen", "save g",
+                "load g", "push S y", "fwrite 1",
+                "load g", "push S z", "push I 1", "fwrite 2",
+                "load f", "push S q", "fappend 1"
+        ));
+        assertEquals(List.of("y", "z1", "q"), Files.readAllLines(file));
+    }
+
+    @Test
+    public void testFilesAreFlushedWhenProgramFails() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("out.txt");
+        assertThrows(RuntimeException.class, () -> run(List.of(
+                "push S \"" + file + "\"", "push S w", "fopen", "save f",
+                "load f", "push S before", "fwrite 1",
+                "push I 1", "push I 0", "div I"
+        )));
+        assertEquals(List.of("before"), Files.readAllLines(file));
+    }
+}